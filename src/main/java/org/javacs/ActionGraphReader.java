@@ -0,0 +1,302 @@
+package org.javacs;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * ActionGraphReader finds the paths that `bazel aquery --output=proto` passes to an argument like --classpath, without
+ * parsing the whole ActionGraphContainer. On a big repository that output is hundreds of MB, and almost all of it is
+ * targets, dep sets and arguments we don't care about. The reader walks the container one record at a time with a
+ * CodedInputStream, skips every field it doesn't need, and keeps only artifact ids, path fragments and the values of
+ * `filterArgument`.
+ *
+ * <p>Bazel has written two versions of the container: analysis.proto identifies everything with strings and spells
+ * out each artifact's exec path, while analysis_v2.proto uses integer ids and builds paths out of a tree of
+ * PathFragments. The field numbers are the same, but in V1 the id in field 1 of every record is a string, and in V2 it
+ * is a varint, so the first record tells us which version we are reading.
+ */
+class ActionGraphReader {
+    private static final int CONTAINER_ARTIFACTS = 1, CONTAINER_ACTIONS = 2, CONTAINER_PATH_FRAGMENTS = 8;
+
+    private static final int ID = 1;
+    /** exec_path in V1, path_fragment_id in V2 */
+    private static final int ARTIFACT_PATH = 2;
+
+    private static final int ACTION_MNEMONIC = 4, ACTION_ARGUMENTS = 6, ACTION_OUTPUT_IDS = 9;
+    private static final int FRAGMENT_LABEL = 2, FRAGMENT_PARENT_ID = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String filterMnemonic, filterArgument;
+    private final byte[] filterArgumentBytes;
+    /** Null until the first record has been read */
+    private Boolean v2;
+
+    /** Every value that was passed to filterArgument by an action with filterMnemonic */
+    private final Set<String> argumentPaths = new HashSet<>();
+
+    // V2 artifacts, outputs and path fragments, indexed by their integer ids
+    private int[] artifactIds = new int[1024], artifactFragments = new int[1024];
+    private int artifactCount;
+    private final BitSet outputIds = new BitSet();
+    private String[] labels = new String[1024];
+    private int[] parents = new int[1024];
+    private int fragmentCount;
+
+    // V1 artifacts and outputs
+    private final List<String> artifactIdsV1 = new ArrayList<>(), execPathsV1 = new ArrayList<>();
+    private final Set<String> outputIdsV1 = new HashSet<>();
+
+    private ActionGraphReader(String filterMnemonic, String filterArgument) {
+        this.filterMnemonic = filterMnemonic;
+        this.filterArgument = filterArgument;
+        this.filterArgumentBytes = filterArgument.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The exec paths of the artifacts that actions with `filterMnemonic` pass to `filterArgument`, leaving out artifacts
+     * that are themselves outputs of those actions, unless the argument is --output.
+     */
+    static Set<String> read(InputStream in, String filterMnemonic, String filterArgument) throws IOException {
+        var reader = new ActionGraphReader(filterMnemonic, filterArgument);
+        var input = CodedInputStream.newInstance(in, BUFFER_SIZE);
+        while (true) {
+            var tag = input.readTag();
+            if (tag == 0) break;
+            var field = WireFormat.getTagFieldNumber(tag);
+            var wanted =
+                    field == CONTAINER_ARTIFACTS || field == CONTAINER_ACTIONS || field == CONTAINER_PATH_FRAGMENTS;
+            if (!wanted || WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                input.skipField(tag);
+                continue;
+            }
+            if (reader.v2 == null) {
+                // Records are small, so it's cheap to copy the first one and look at it twice
+                var record = input.readBytes();
+                reader.v2 = isV2(field, record.newCodedInput());
+                // readRecord reads up to the current limit, so give the copy the same limit as the records below
+                var copy = record.newCodedInput();
+                copy.pushLimit(record.size());
+                reader.readRecord(field, copy);
+                continue;
+            }
+            var limit = input.pushLimit(input.readRawVarint32());
+            reader.readRecord(field, input);
+            input.popLimit(limit);
+        }
+        return reader.result();
+    }
+
+    /** V1 ids are strings and V2 ids are varints. V2 leaves out ids that are 0, and only V2 has path fragments. */
+    private static boolean isV2(int field, CodedInputStream record) throws IOException {
+        if (field == CONTAINER_PATH_FRAGMENTS) return true;
+        while (true) {
+            var tag = record.readTag();
+            if (tag == 0) return true;
+            if (WireFormat.getTagFieldNumber(tag) == ID) {
+                return WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT;
+            }
+            record.skipField(tag);
+        }
+    }
+
+    /** Read one record of the container, up to the current limit of `input` */
+    private void readRecord(int field, CodedInputStream input) throws IOException {
+        switch (field) {
+            case CONTAINER_ARTIFACTS:
+                if (v2) readArtifact(input);
+                else readArtifactV1(input);
+                break;
+            case CONTAINER_ACTIONS:
+                readAction(input);
+                break;
+            case CONTAINER_PATH_FRAGMENTS:
+                if (v2) readPathFragment(input);
+                else skipRest(input);
+                break;
+        }
+    }
+
+    private void readArtifact(CodedInputStream input) throws IOException {
+        int id = 0, fragment = 0;
+        while (!input.isAtEnd()) {
+            var tag = input.readTag();
+            if (tag == tag(ID, WireFormat.WIRETYPE_VARINT)) {
+                id = input.readUInt32();
+            } else if (tag == tag(ARTIFACT_PATH, WireFormat.WIRETYPE_VARINT)) {
+                fragment = input.readUInt32();
+            } else {
+                input.skipField(tag);
+            }
+        }
+        if (artifactCount == artifactIds.length) {
+            artifactIds = Arrays.copyOf(artifactIds, artifactCount * 2);
+            artifactFragments = Arrays.copyOf(artifactFragments, artifactCount * 2);
+        }
+        artifactIds[artifactCount] = id;
+        artifactFragments[artifactCount] = fragment;
+        artifactCount++;
+    }
+
+    private void readArtifactV1(CodedInputStream input) throws IOException {
+        String id = "", execPath = "";
+        while (!input.isAtEnd()) {
+            var tag = input.readTag();
+            if (tag == tag(ID, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                id = input.readString();
+            } else if (tag == tag(ARTIFACT_PATH, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                execPath = input.readString();
+            } else {
+                input.skipField(tag);
+            }
+        }
+        artifactIdsV1.add(id);
+        execPathsV1.add(execPath);
+    }
+
+    private void readPathFragment(CodedInputStream input) throws IOException {
+        int id = 0, parent = 0;
+        String label = "";
+        while (!input.isAtEnd()) {
+            var tag = input.readTag();
+            if (tag == tag(ID, WireFormat.WIRETYPE_VARINT)) {
+                id = input.readUInt32();
+            } else if (tag == tag(FRAGMENT_LABEL, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                label = input.readString();
+            } else if (tag == tag(FRAGMENT_PARENT_ID, WireFormat.WIRETYPE_VARINT)) {
+                parent = input.readUInt32();
+            } else {
+                input.skipField(tag);
+            }
+        }
+        if (id < 0) throw new IOException("Path fragment id " + Integer.toUnsignedString(id) + " is too big");
+        if (id >= labels.length) {
+            var size = Math.max(id + 1, labels.length * 2);
+            labels = Arrays.copyOf(labels, size);
+            parents = Arrays.copyOf(parents, size);
+        }
+        labels[id] = label;
+        parents[id] = parent;
+        fragmentCount++;
+    }
+
+    /**
+     * Collect the values of filterArgument, which are every argument after it up to the next flag. Arguments are only
+     * decoded while we're collecting them, or when they're the same length as filterArgument.
+     */
+    private void readAction(CodedInputStream input) throws IOException {
+        String mnemonic = null;
+        var arguments = new ArrayList<String>();
+        var outputs = new ArrayList<Integer>();
+        var outputsV1 = new ArrayList<String>();
+        var isFilterArgument = false;
+        while (!input.isAtEnd()) {
+            var tag = input.readTag();
+            if (tag == tag(ACTION_MNEMONIC, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                mnemonic = input.readString();
+                if (!mnemonic.equals(filterMnemonic)) {
+                    skipRest(input);
+                    return;
+                }
+            } else if (tag == tag(ACTION_ARGUMENTS, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                if (isFilterArgument) {
+                    var argument = input.readString();
+                    if (argument.startsWith("-")) isFilterArgument = false;
+                    else arguments.add(argument);
+                    continue;
+                }
+                var length = input.readRawVarint32();
+                if (length != filterArgumentBytes.length) {
+                    input.skipRawBytes(length);
+                    continue;
+                }
+                isFilterArgument = Arrays.equals(input.readRawBytes(length), filterArgumentBytes);
+            } else if (v2 && tag == tag(ACTION_OUTPUT_IDS, WireFormat.WIRETYPE_VARINT)) {
+                outputs.add(input.readUInt32());
+            } else if (v2 && tag == tag(ACTION_OUTPUT_IDS, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                // Packed repeated uint32
+                var limit = input.pushLimit(input.readRawVarint32());
+                while (!input.isAtEnd()) {
+                    outputs.add(input.readUInt32());
+                }
+                input.popLimit(limit);
+            } else if (!v2 && tag == tag(ACTION_OUTPUT_IDS, WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                outputsV1.add(input.readString());
+            } else {
+                input.skipField(tag);
+            }
+        }
+        // Fields are normally written in order, so mnemonic comes before arguments, but it doesn't have to
+        if (mnemonic != null && !mnemonic.equals(filterMnemonic)) return;
+        argumentPaths.addAll(arguments);
+        for (var id : outputs) {
+            outputIds.set(id);
+        }
+        outputIdsV1.addAll(outputsV1);
+    }
+
+    private static void skipRest(CodedInputStream input) throws IOException {
+        input.skipRawBytes(input.getBytesUntilLimit());
+    }
+
+    private static int tag(int field, int wireType) {
+        return (field << 3) | wireType;
+    }
+
+    private Set<String> result() throws IOException {
+        var found = new HashSet<String>();
+        if (argumentPaths.isEmpty()) return found;
+        var includeOutputs = filterArgument.equals("--output");
+        if (v2) {
+            // Only build the paths of artifacts whose file name matches one of the arguments
+            var fileNames = new HashSet<String>();
+            for (var p : argumentPaths) {
+                fileNames.add(p.substring(p.lastIndexOf('/') + 1));
+            }
+            for (var i = 0; i < artifactCount; i++) {
+                if (!includeOutputs && outputIds.get(artifactIds[i])) continue;
+                var fragment = artifactFragments[i];
+                if (fragment >= labels.length || !fileNames.contains(labels[fragment])) continue;
+                var relative = path(fragment);
+                if (argumentPaths.contains(relative)) found.add(relative);
+            }
+        } else {
+            for (var i = 0; i < artifactIdsV1.size(); i++) {
+                if (!includeOutputs && outputIdsV1.contains(artifactIdsV1.get(i))) continue;
+                var relative = execPathsV1.get(i);
+                if (argumentPaths.contains(relative)) found.add(relative);
+            }
+        }
+        for (var relative : found) {
+            LOG.info("...found bazel dependency " + relative);
+        }
+        return found;
+    }
+
+    /** Join the labels of `fragment` and its ancestors with `/` */
+    private String path(int fragment) throws IOException {
+        var chain = new int[8];
+        var depth = 0;
+        for (var f = fragment; f != 0; f = parents[f]) {
+            if (f < 0 || f >= labels.length || labels[f] == null) {
+                throw new IOException("Path fragment " + Integer.toUnsignedString(f) + " is missing");
+            }
+            if (depth > fragmentCount) throw new IOException("Path fragment " + fragment + " is its own ancestor");
+            if (depth == chain.length) chain = Arrays.copyOf(chain, depth * 2);
+            chain[depth++] = f;
+        }
+        var path = new StringBuilder();
+        for (var i = depth - 1; i >= 0; i--) {
+            if (path.length() > 0) path.append('/');
+            path.append(labels[chain[i]]);
+        }
+        return path.toString();
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -3,11 +3,61 @@ package org.javacs;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
-/** Cache maps a file + an arbitrary key to a value. When the file is modified, the mapping expires. */
+/**
+ * Cache maps a file + an arbitrary key to a value. When the file is modified, every mapping for that file expires.
+ * FileStore calls invalidateAll(file) when it hears about a change, so the expired mappings don't take up space until
+ * they are evicted. Each cache holds at most `capacity()` mappings; when it is full, the least-recently-used mapping
+ * is evicted.
+ *
+ * <p>Most caches hold booleans or short lists, so counting mappings is a good enough bound on their memory. Caches of
+ * values that grow with the file, like whole source strings, should also be given a size function and a `maxSize`,
+ * and then evict until the sizes of their values add up to no more than that.
+ */
 class Cache<K, V> {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    /** Shared by all caches, so the user can tune memory use with a single setting */
+    private static volatile int capacity = DEFAULT_CAPACITY;
+
+    static int capacity() {
+        return capacity;
+    }
+
+    static void setCapacity(int newCapacity) {
+        if (newCapacity < 1) throw new IllegalArgumentException("Cache capacity must be positive, was " + newCapacity);
+        capacity = newCapacity;
+    }
+
+    /** Every cache that has been created, so files can be invalidated everywhere at once */
+    private static final List<Cache<?, ?>> caches = new CopyOnWriteArrayList<>();
+
+    /** Forget every mapping for `file` in every cache */
+    static void invalidateAll(Path file) {
+        for (var cache : caches) {
+            cache.invalidate(file);
+        }
+    }
+
+    /** The size, hits, misses and evictions of every cache */
+    static String report() {
+        var report = new StringJoiner("; ");
+        for (var cache : caches) {
+            report.add(cache.name + " has " + cache);
+        }
+        return report.toString();
+    }
+
     private static class Key<K> {
         final Path file;
         final K key;
@@ -32,44 +82,133 @@ class Cache<K, V> {
 
     private class Value {
         final V value;
-        final Instant created = Instant.now();
+        final Instant created;
+        final long size;
 
-        Value(V value) {
+        Value(V value, Instant created) {
             this.value = value;
+            this.created = created;
+            this.size = sizeOf.applyAsLong(value);
         }
     }
 
-    private final Map<Key, Value> map = new HashMap<>();
+    private final String name;
+    private final ToLongFunction<V> sizeOf;
+    private final long maxSize;
+
+    /** A cache bounded only by the number of mappings */
+    Cache(String name) {
+        this(name, __ -> 0, Long.MAX_VALUE);
+    }
+
+    /** A cache that is also bounded by the total `sizeOf` its values */
+    Cache(String name, ToLongFunction<V> sizeOf, long maxSize) {
+        this.name = name;
+        this.sizeOf = sizeOf;
+        this.maxSize = maxSize;
+        caches.add(this);
+    }
 
-    boolean has(Path file, K k) {
+    /** map is in access order, so the first entry is always the least-recently used */
+    private final LinkedHashMap<Key<K>, Value> map = new LinkedHashMap<>(16, 0.75f, true);
+    /** keysByFile[file] is every key in map that belongs to file */
+    private final Map<Path, Set<Key<K>>> keysByFile = new HashMap<>();
+
+    private long totalSize, hits, misses, evictions;
+
+    synchronized boolean has(Path file, K k) {
         return !needs(file, k);
     }
 
-    boolean needs(Path file, K k) {
+    synchronized boolean needs(Path file, K k) {
         // If key is not in map, it needs to be loaded
         var key = new Key<K>(file, k);
-        if (!map.containsKey(key)) return true;
-
-        // If key was loaded before file was last modified, it needs to be reloaded
         var value = map.get(key);
+        if (value == null) {
+            misses++;
+            return true;
+        }
+
+        // If key was loaded before file was last modified, it needs to be reloaded,
+        // and so does every other key for the same file
         var modified = FileStore.modified(file);
-        if (modified == null) return true;
-        // TODO remove all keys associated with file when file changes
-        return value.created.isBefore(modified);
+        if (modified == null || value.created.isBefore(modified)) {
+            invalidate(file);
+            misses++;
+            return true;
+        }
+        hits++;
+        return false;
     }
 
-    void load(Path file, K k, V v) {
-        // TODO limit total size of cache
-        var key = new Key<K>(file, k);
-        var value = new Value(v);
-        map.put(key, value);
+    /**
+     * The value for `file` + `k`, which is computed and cached if it's missing or stale. `compute` runs outside the
+     * lock, so other lookups don't wait for it, and its result is returned even if it is evicted right away.
+     */
+    V get(Path file, K k, Supplier<V> compute) {
+        synchronized (this) {
+            if (!needs(file, k)) return map.get(new Key<K>(file, k)).value;
+        }
+        // Anything that modifies the file while we compute makes this value stale
+        var started = Instant.now();
+        var v = compute.get();
+        load(file, k, new Value(v, started));
+        return v;
     }
 
-    V get(Path file, K k) {
+    private synchronized void load(Path file, K k, Value value) {
         var key = new Key<K>(file, k);
-        if (!map.containsKey(key)) {
-            throw new IllegalArgumentException(k + " is not in map " + map);
+        var replaced = map.put(key, value);
+        if (replaced != null) totalSize -= replaced.size;
+        totalSize += value.size;
+        keysByFile.computeIfAbsent(file, __ -> new HashSet<>()).add(key);
+        while (map.size() > capacity || (totalSize > maxSize && map.size() > 1)) {
+            evictEldest();
+        }
+    }
+
+    /** Forget every mapping for `file` */
+    synchronized void invalidate(Path file) {
+        var keys = keysByFile.remove(file);
+        if (keys == null) return;
+        for (var key : keys) {
+            totalSize -= map.remove(key).size;
         }
-        return map.get(key).value;
+    }
+
+    private void evictEldest() {
+        var eldest = map.keySet().iterator().next();
+        totalSize -= map.remove(eldest).size;
+        var siblings = keysByFile.get(eldest.file);
+        siblings.remove(eldest);
+        if (siblings.isEmpty()) {
+            keysByFile.remove(eldest.file);
+        }
+        evictions++;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized long totalSize() {
+        return totalSize;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d hits, %d misses, %d evictions", map.size(), hits, misses, evictions);
     }
 }
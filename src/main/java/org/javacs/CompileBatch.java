@@ -4,20 +4,41 @@ import com.sun.source.tree.*;
 import com.sun.source.util.*;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
 import javax.lang.model.util.*;
 import javax.tools.*;
+import org.javacs.lsp.CancelToken;
 
 class CompileBatch implements AutoCloseable {
     static final int MAX_COMPLETION_ITEMS = 50;
 
     final JavaCompilerService parent;
+    final ReusableCompiler compiler;
     final ReusableCompiler.Borrow borrow;
+    private static final TaskListener CANCEL_LISTENER =
+            new TaskListener() {
+                @Override
+                public void started(TaskEvent e) {
+                    CancelToken.checkCancelled();
+                }
+
+                @Override
+                public void finished(TaskEvent e) {
+                    CancelToken.checkCancelled();
+                }
+            };
+
+    /** Diagnostics reported while compiling this batch */
+    final List<Diagnostic<? extends JavaFileObject>> diags = new ArrayList<>();
     /** Indicates the task that requested the compilation is finished with it. */
     boolean closed;
+    /** The thread that is using this batch, while it is not closed */
+    Thread owner = Thread.currentThread();
 
     final JavacTask task;
     final Trees trees;
@@ -25,14 +46,19 @@ class CompileBatch implements AutoCloseable {
     final Types types;
     final List<CompilationUnitTree> roots;
 
-    CompileBatch(JavaCompilerService parent, Collection<? extends JavaFileObject> files) {
+    CompileBatch(JavaCompilerService parent, ReusableCompiler compiler, Collection<? extends JavaFileObject> files) {
         this.parent = parent;
-        this.borrow = batchTask(parent, files);
+        this.compiler = compiler;
+        this.borrow = batchTask(parent, compiler, diags, files);
         this.task = borrow.task;
         this.trees = Trees.instance(borrow.task);
         this.elements = borrow.task.getElements();
         this.types = borrow.task.getTypes();
         this.roots = new ArrayList<>();
+        // Give up between phases if the request that needs this batch has been cancelled
+        borrow.task.addTaskListener(CANCEL_LISTENER);
+        // Remember which version of each file we are compiling, so the reference index can tell when it goes stale
+        var versions = versions(files);
         // Compile all roots
         try {
             for (var t : borrow.task.parse()) {
@@ -42,7 +68,45 @@ class CompileBatch implements AutoCloseable {
             // You can get at `Element` values using `Trees`
             borrow.task.analyze();
         } catch (IOException e) {
+            borrow.close();
             throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            // Nobody else can close the borrow of a batch that was never made, and the compiler may yet be reused
+            borrow.close();
+            throw e;
+        }
+        indexReferences(versions);
+    }
+
+    /** The version of each workspace file that javac will read from FileStore, rather than from explicit contents */
+    private static Map<Path, Instant> versions(Collection<? extends JavaFileObject> files) {
+        var versions = new HashMap<Path, Instant>();
+        for (var f : files) {
+            if (!(f instanceof SourceFileObject)) continue;
+            var source = (SourceFileObject) f;
+            if (source.contents != null || !FileStore.contains(source.path)) continue;
+            var modified = FileStore.modified(source.path);
+            if (modified != null) versions.put(source.path, modified);
+        }
+        return versions;
+    }
+
+    /** Add the files that analyzed without errors to the reference index, unless it's already up to date */
+    private void indexReferences(Map<Path, Instant> versions) {
+        // References that don't resolve wouldn't be indexed, so a file with errors has to be searched as text
+        var hasErrors = new HashSet<URI>();
+        for (var d : diags) {
+            if (d.getKind() == Diagnostic.Kind.ERROR && d.getSource() != null) {
+                hasErrors.add(d.getSource().toUri());
+            }
+        }
+        for (var root : roots) {
+            var uri = root.getSourceFile().toUri();
+            if (!uri.getScheme().equals("file") || hasErrors.contains(uri)) continue;
+            var file = Paths.get(uri);
+            var modified = versions.get(file);
+            if (modified == null || parent.references.isFresh(file)) continue;
+            parent.references.update(file, modified, root, task, versions, parent.stubs);
         }
     }
 
@@ -53,7 +117,7 @@ class CompileBatch implements AutoCloseable {
     Set<Path> needsAdditionalSources() {
         // Check for "class not found errors" that refer to package private classes
         var addFiles = new HashSet<Path>();
-        for (var err : parent.diags) {
+        for (var err : diags) {
             if (!err.getCode().equals("compiler.err.cant.resolve.location")) continue;
             if (!isValidFileRange(err)) continue;
             var className = errorText(err);
@@ -97,14 +161,16 @@ class CompileBatch implements AutoCloseable {
 
     @Override
     public void close() {
-        closed = true;
+        parent.closeBatch(this);
     }
 
     private static ReusableCompiler.Borrow batchTask(
-            JavaCompilerService parent, Collection<? extends JavaFileObject> sources) {
-        parent.diags.clear();
+            JavaCompilerService parent,
+            ReusableCompiler compiler,
+            List<Diagnostic<? extends JavaFileObject>> diags,
+            Collection<? extends JavaFileObject> sources) {
         var options = options(parent.classPath, parent.addExports);
-        return parent.compiler.getTask(parent.fileManager, parent.diags::add, options, List.of(), sources);
+        return compiler.getTask(compiler.fileManager, diags::add, options, List.of(), sources);
     }
 
     /** Combine source path or class path entries using the system separator, for example ':' in unix */
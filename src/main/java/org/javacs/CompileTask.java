@@ -12,6 +12,7 @@ public class CompileTask implements AutoCloseable {
     public final List<CompilationUnitTree> roots;
     public final List<Diagnostic<? extends JavaFileObject>> diagnostics;
     private final Runnable close;
+    private boolean closed;
 
     public CompilationUnitTree root() {
         if (roots.size() != 1) {
@@ -51,6 +52,10 @@ public class CompileTask implements AutoCloseable {
 
     @Override
     public void close() {
+        // Callers sometimes close early and then again in try-with-resources. By the second close,
+        // the batch may already belong to another request, so only the first close counts.
+        if (closed) return;
+        closed = true;
         close.run();
     }
 }
@@ -0,0 +1,80 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.tools.JavaFileManager;
+
+/**
+ * CompilerPool hands out at most `size` ReusableCompilers at a time, so that several javac tasks can run in parallel,
+ * each in its own context. Compilers that are checked back in keep their context, so the next task that uses them
+ * doesn't have to load the JDK symbols again.
+ *
+ * <p>CompilerPool is not thread-safe by itself; JavaCompilerService guards it with its own lock, because checking out
+ * a compiler can require evicting a cached compile batch first.
+ */
+class CompilerPool {
+    /** Shared by all pools, so the user can tune parallelism with a single setting */
+    private static volatile int defaultSize = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    static int defaultSize() {
+        return defaultSize;
+    }
+
+    static void setDefaultSize(int newSize) {
+        if (newSize < 1) throw new IllegalArgumentException("Compiler pool size must be positive, was " + newSize);
+        defaultSize = newSize;
+    }
+
+    final int size;
+    /** Creates the file manager of each new compiler, because compilers in the pool run at the same time */
+    private final Supplier<JavaFileManager> fileManagers;
+    private final ArrayDeque<ReusableCompiler> idle = new ArrayDeque<>();
+    private int checkedOut;
+
+    CompilerPool(int size, Supplier<JavaFileManager> fileManagers) {
+        if (size < 1) throw new IllegalArgumentException("Compiler pool size must be positive, was " + size);
+        this.size = size;
+        this.fileManagers = fileManagers;
+    }
+
+    /** True if every compiler in the pool is checked out, so checkout() would fail */
+    boolean isExhausted() {
+        return checkedOut >= size;
+    }
+
+    ReusableCompiler checkout() {
+        if (isExhausted()) {
+            throw new RuntimeException("All " + size + " compilers are in use!");
+        }
+        checkedOut++;
+        if (idle.isEmpty()) {
+            return new ReusableCompiler(fileManagers.get());
+        }
+        return idle.pop();
+    }
+
+    /** Return `compiler` to the pool, so its context can be reused by the next checkout */
+    void checkin(ReusableCompiler compiler) {
+        checkedOut--;
+        idle.push(compiler);
+    }
+
+    /** Forget `compiler`, for example because its context may be broken or memory is tight */
+    void discard(ReusableCompiler compiler) {
+        checkedOut--;
+        if (compiler.fileManager == null) return;
+        try {
+            compiler.fileManager.close();
+        } catch (IOException e) {
+            LOG.warning("Failed to close file manager: " + e.getMessage());
+        }
+    }
+
+    int checkedOut() {
+        return checkedOut;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
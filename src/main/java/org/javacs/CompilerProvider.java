@@ -15,8 +15,6 @@ public interface CompilerProvider {
 
     List<String> packagePrivateTopLevelTypes(String packageName);
 
-    Iterable<Path> search(String query);
-
     Optional<JavaFileObject> findAnywhere(String className);
 
     Path findTypeDeclaration(String className);
@@ -33,5 +31,8 @@ public interface CompilerProvider {
 
     CompileTask compile(Collection<? extends JavaFileObject> sources);
 
+    /** The number of compile tasks that can run at the same time */
+    int parallelism();
+
     Path NOT_FOUND = Paths.get("");
 }
@@ -0,0 +1,87 @@
+package org.javacs;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+import javax.lang.model.type.TypeKind;
+
+/**
+ * EraseMethodBodies blanks out the bodies of the methods in a source file, so javac only has to enter its signatures
+ * when another file depends on it. Every character keeps its offset, so positions that javac reports in the erased file
+ * are still correct in the original. Bodies of methods that return a value are replaced by `throw null;`, so that flow
+ * analysis doesn't report a missing return.
+ *
+ * <p>Constructors and initializer blocks are left alone, because they may call super(...) or assign final fields.
+ */
+class EraseMethodBodies extends TreeScanner<Void, Void> {
+    private static final String THROW = "throw null;";
+
+    private final Parser parse;
+    private final StringBuilder buf;
+
+    private EraseMethodBodies(Parser parse) {
+        this.parse = parse;
+        this.buf = new StringBuilder(parse.contents);
+    }
+
+    static String erase(Parser parse) {
+        var erase = new EraseMethodBodies(parse);
+        erase.scan(parse.root, null);
+        return erase.buf.toString();
+    }
+
+    @Override
+    public Void visitMethod(MethodTree t, Void __) {
+        var body = t.getBody();
+        if (body == null || t.getName().contentEquals("<init>")) {
+            return super.visitMethod(t, null);
+        }
+        var pos = Trees.instance(parse.task).getSourcePositions();
+        var start = (int) pos.getStartPosition(parse.root, body);
+        var end = (int) pos.getEndPosition(parse.root, body);
+        // If the body has a syntax error, javac may not know where it ends
+        if (start == -1 || end == -1 || end > buf.length() || buf.charAt(start) != '{' || buf.charAt(end - 1) != '}') {
+            return super.visitMethod(t, null);
+        }
+        if (isVoid(t)) {
+            blank(start + 1, end - 1);
+            return null;
+        }
+        // Put `throw null;` in the first stretch of the body that is long enough, without moving any line breaks
+        var at = findRoomForThrow(start + 1, end - 1);
+        if (at != -1) {
+            blank(start + 1, end - 1);
+            buf.replace(at, at + THROW.length(), THROW);
+        }
+        return null;
+    }
+
+    /** The start of the first run of THROW.length() chars in [start, end) that will be blank, or -1 if there is none */
+    private int findRoomForThrow(int start, int end) {
+        var run = 0;
+        for (var i = start; i < end; i++) {
+            var c = buf.charAt(i);
+            if (c == '\n' || c == '\r') {
+                run = 0;
+            } else if (++run == THROW.length()) {
+                return i + 1 - run;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isVoid(MethodTree t) {
+        var type = t.getReturnType();
+        return type instanceof PrimitiveTypeTree && ((PrimitiveTypeTree) type).getPrimitiveTypeKind() == TypeKind.VOID;
+    }
+
+    /** Replace everything but line breaks in [start, end) with spaces */
+    private void blank(int start, int end) {
+        for (var i = start; i < end; i++) {
+            var c = buf.charAt(i);
+            if (c != '\n' && c != '\r') {
+                buf.setCharAt(i, ' ');
+            }
+        }
+    }
+}
@@ -5,8 +5,12 @@ import java.net.URI;
 import java.nio.charset.CharacterCodingException;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import java.util.logging.Logger;
 import javax.lang.model.element.TypeElement;
 import org.javacs.lsp.DidChangeTextDocumentParams;
@@ -18,34 +22,55 @@ public class FileStore {
 
     private static final Set<Path> workspaceRoots = new HashSet<>();
 
-    private static final Map<Path, VersionedContent> activeDocuments = new HashMap<>();
+    private static final Map<Path, VersionedContent> activeDocuments = new ConcurrentHashMap<>();
 
     /** javaSources[file] is the javaSources time of a .java source file. */
-    // TODO organize by package name for speed of list(...)
-    private static final TreeMap<Path, Info> javaSources = new TreeMap<>();
+    private static final ConcurrentSkipListMap<Path, Info> javaSources = new ConcurrentSkipListMap<>();
+
+    /** javaSourcesByPackage[packageName] is every file in javaSources that declares packageName. */
+    private static final Map<String, Set<Path>> javaSourcesByPackage = new ConcurrentHashMap<>();
 
     private static class Info {
         final Instant modified;
+        final long size;
         final String packageName;
 
-        Info(Instant modified, String packageName) {
+        Info(Instant modified, long size, String packageName) {
             this.modified = modified;
+            this.size = size;
             this.packageName = packageName;
         }
     }
 
+    /** snapshot[file] is what we knew about file the last time the server ran, see loadSnapshot(...) */
+    private static final Map<Path, Info> snapshot = new ConcurrentHashMap<>();
+
+    /** Set when javaSources changes, cleared by saveSnapshot(...) */
+    private static volatile boolean modifiedSinceSnapshot;
+
     static void setWorkspaceRoots(Set<Path> newRoots) {
+        setWorkspaceRoots(newRoots, __ -> {});
+    }
+
+    /**
+     * Crawl any new roots for .java files, and forget files in roots that have been removed. While the crawl is running,
+     * `progress` is periodically called on this thread with the number of source files found so far.
+     */
+    static void setWorkspaceRoots(Set<Path> newRoots, IntConsumer progress) {
         newRoots = normalize(newRoots);
         for (var root : workspaceRoots) {
             if (!newRoots.contains(root)) {
-                workspaceRoots.removeIf(f -> f.startsWith(root));
+                removeFiles(root);
             }
         }
+        var addRoots = new ArrayList<Path>();
         for (var root : newRoots) {
             if (!workspaceRoots.contains(root)) {
-                addFiles(root);
+                addRoots.add(root);
             }
         }
+        addFiles(addRoots, progress);
+        snapshot.clear();
         workspaceRoots.clear();
         workspaceRoots.addAll(newRoots);
     }
@@ -58,34 +83,95 @@ public class FileStore {
         return normalize;
     }
 
-    private static void addFiles(Path root) {
+    /**
+     * Reading the package declaration of every file is mostly waiting on the disk, which is slow on network file
+     * systems, so we crawl with more threads than there are cores.
+     */
+    private static final int CRAWL_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static void addFiles(List<Path> roots, IntConsumer progress) {
+        if (roots.isEmpty()) return;
+        var started = Instant.now();
+        var found = new AtomicInteger();
+        var pool = new ForkJoinPool(CRAWL_THREADS);
         try {
-            Files.walkFileTree(root, new FindJavaSources());
-        } catch (IOException e) {
+            var tasks = new ArrayList<ForkJoinTask<Void>>();
+            for (var root : roots) {
+                tasks.add(pool.submit(new FindJavaSources(root, found)));
+            }
+            for (var task : tasks) {
+                // Report progress from this thread, so the crawl threads never write to the client
+                while (true) {
+                    try {
+                        task.get(200, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException __) {
+                        progress.accept(found.get());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
         }
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("Found %d java sources in %d ms", found.get(), elapsed));
     }
 
-    static class FindJavaSources extends SimpleFileVisitor<Path> {
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-            if (attrs.isSymbolicLink()) {
-                LOG.warning("Don't check " + dir + " for java sources");
-                return FileVisitResult.SKIP_SUBTREE;
-            }
-            return FileVisitResult.CONTINUE;
+    private static void removeFiles(Path root) {
+        var remove = new ArrayList<Path>();
+        for (var file : javaSources.tailMap(root, true).keySet()) {
+            if (!file.startsWith(root)) break;
+            remove.add(file);
+        }
+        for (var file : remove) {
+            removeInfo(file);
+        }
+    }
+
+    /** Find .java files in dir, forking a new task for each subdirectory so directories are listed in parallel. */
+    static class FindJavaSources extends RecursiveAction {
+        private final Path dir;
+        private final AtomicInteger found;
+
+        FindJavaSources(Path dir, AtomicInteger found) {
+            this.dir = dir;
+            this.found = found;
         }
 
         @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes _attrs) {
-            if (isJavaFile(file)) {
-                readInfoFromDisk(file);
+        protected void compute() {
+            var subdirs = new ArrayList<FindJavaSources>();
+            try (var children = Files.newDirectoryStream(dir)) {
+                for (var child : children) {
+                    var attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        subdirs.add(new FindJavaSources(child, found));
+                    } else if (isJavaFile(child)) {
+                        if (attrs.isSymbolicLink()) {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                        }
+                        var remembered = snapshot.get(child);
+                        if (isUnchanged(remembered, attrs)) {
+                            putInfo(child, remembered);
+                        } else {
+                            readInfoFromDisk(child, attrs);
+                        }
+                        found.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warning("Don't check " + dir + " for java sources: " + e.getMessage());
             }
-            return FileVisitResult.CONTINUE;
+            invokeAll(subdirs);
         }
     }
 
-    static Collection<Path> all() {
+    public static Collection<Path> all() {
         return javaSources.keySet();
     }
 
@@ -93,16 +179,14 @@ public class FileStore {
         activeDocuments.clear();
         workspaceRoots.clear();
         javaSources.clear();
+        javaSourcesByPackage.clear();
+        snapshot.clear();
     }
 
     static List<Path> list(String packageName) {
-        var list = new ArrayList<Path>();
-        for (var file : javaSources.keySet()) {
-            if (javaSources.get(file).packageName.equals(packageName)) {
-                list.add(file);
-            }
-        }
-        return list;
+        var files = javaSourcesByPackage.get(packageName);
+        if (files == null) return List.of();
+        return new ArrayList<>(files);
     }
 
     public static Set<Path> sourceRoots() {
@@ -135,10 +219,11 @@ public class FileStore {
         return isJavaFile(file) && javaSources.containsKey(file);
     }
 
-    static Instant modified(Path file) {
+    public static Instant modified(Path file) {
         // If file is open, use last in-memory modification time
-        if (activeDocuments.containsKey(file)) {
-            return activeDocuments.get(file).modified;
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            return active.modified;
         }
         // If we've never checked before, look up modified time on disk
         if (!javaSources.containsKey(file)) {
@@ -196,34 +281,139 @@ public class FileStore {
 
     static void externalCreate(Path file) {
         readInfoFromDisk(file);
+        Cache.invalidateAll(file);
     }
 
     static void externalChange(Path file) {
         readInfoFromDisk(file);
+        Cache.invalidateAll(file);
     }
 
     static void externalDelete(Path file) {
-        javaSources.remove(file);
+        removeInfo(file);
+        Cache.invalidateAll(file);
     }
 
     private static void readInfoFromDisk(Path file) {
         try {
-            var time = Files.getLastModifiedTime(file).toInstant();
-            var packageName = StringSearch.packageName(file);
-            javaSources.put(file, new Info(time, packageName));
-        } catch (NoSuchFileException | CharacterCodingException e) {
+            readInfoFromDisk(file, Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
-            javaSources.remove(file);
+            removeInfo(file);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static void readInfoFromDisk(Path file, BasicFileAttributes attrs) {
+        try {
+            var time = attrs.lastModifiedTime().toInstant();
+            var packageName = StringSearch.packageName(file);
+            putInfo(file, new Info(time, attrs.size(), packageName));
+        } catch (CharacterCodingException e) {
+            LOG.warning(e.getMessage());
+            removeInfo(file);
+        }
+    }
+
+    /**
+     * Update javaSources and javaSourcesByPackage together, so they always agree. Writers are serialized because the
+     * workspace crawl publishes from many threads, but readers never need to lock.
+     */
+    private static synchronized void putInfo(Path file, Info info) {
+        removeInfo(file);
+        javaSources.put(file, info);
+        javaSourcesByPackage.computeIfAbsent(info.packageName, __ -> new ConcurrentSkipListSet<>()).add(file);
+        modifiedSinceSnapshot = true;
+    }
+
+    private static synchronized void removeInfo(Path file) {
+        var existing = javaSources.remove(file);
+        if (existing == null) return;
+        modifiedSinceSnapshot = true;
+        var files = javaSourcesByPackage.get(existing.packageName);
+        if (files == null) return;
+        files.remove(file);
+        if (files.isEmpty()) {
+            javaSourcesByPackage.remove(existing.packageName);
+        }
+    }
+
+    private static boolean isUnchanged(Info remembered, BasicFileAttributes attrs) {
+        if (remembered == null) return false;
+        return remembered.size == attrs.size() && remembered.modified.equals(attrs.lastModifiedTime().toInstant());
+    }
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Remember the modified time, size and package of files from a previous run, so the next workspace crawl only has
+     * to read the package declaration of files that have changed since then.
+     */
+    static void loadSnapshot(Path file) {
+        snapshot.clear();
+        if (!Files.exists(file)) return;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                LOG.info("...ignoring " + file + " because it was written by a different version");
+                return;
+            }
+            var packageCount = in.readInt();
+            for (var i = 0; i < packageCount; i++) {
+                var packageName = in.readUTF();
+                var fileCount = in.readInt();
+                for (var j = 0; j < fileCount; j++) {
+                    var path = Paths.get(in.readUTF());
+                    var modified = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                    var size = in.readLong();
+                    snapshot.put(path, new Info(modified, size, packageName));
+                }
+            }
+            LOG.info(String.format("Loaded %d java sources from %s", snapshot.size(), file));
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Failed to load " + file + ": " + e.getMessage());
+            snapshot.clear();
+        }
+    }
+
+    /** Write javaSources to file, grouped by package so each package name is only written once. */
+    static synchronized void saveSnapshot(Path file) {
+        try {
+            Files.createDirectories(file.getParent());
+            var temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(javaSourcesByPackage.size());
+                for (var packageName : javaSourcesByPackage.keySet()) {
+                    var files = javaSourcesByPackage.get(packageName);
+                    out.writeUTF(packageName);
+                    out.writeInt(files.size());
+                    for (var f : files) {
+                        var info = javaSources.get(f);
+                        out.writeUTF(f.toString());
+                        out.writeLong(info.modified.getEpochSecond());
+                        out.writeInt(info.modified.getNano());
+                        out.writeLong(info.size);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modifiedSinceSnapshot = false;
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + file + ": " + e.getMessage());
+        }
+    }
+
+    static boolean modifiedSinceSnapshot() {
+        return modifiedSinceSnapshot;
+    }
+
     static void open(DidOpenTextDocumentParams params) {
         if (!isJavaFile(params.textDocument.uri)) return;
         var document = params.textDocument;
         var file = Paths.get(document.uri);
         activeDocuments.put(file, new VersionedContent(document.text, document.version));
+        Cache.invalidateAll(file);
     }
 
     static void change(DidChangeTextDocumentParams params) {
@@ -235,21 +425,23 @@ public class FileStore {
             LOG.warning("Ignored change with version " + document.version + " <= " + existing.version);
             return;
         }
-        var newText = existing.content;
+        var newText = existing.text;
         for (var change : params.contentChanges) {
-            if (change.range == null) newText = change.text;
+            if (change.range == null) newText = Rope.of(change.text);
             else newText = patch(newText, change);
         }
         activeDocuments.put(file, new VersionedContent(newText, document.version));
+        Cache.invalidateAll(file);
     }
 
     static void close(DidCloseTextDocumentParams params) {
         if (!isJavaFile(params.textDocument.uri)) return;
         var file = Paths.get(params.textDocument.uri);
         activeDocuments.remove(file);
+        Cache.invalidateAll(file);
     }
 
-    static Set<Path> activeDocuments() {
+    public static Set<Path> activeDocuments() {
         return activeDocuments.keySet();
     }
 
@@ -257,8 +449,9 @@ public class FileStore {
         if (!isJavaFile(file)) {
             throw new RuntimeException(file + " is not a java file");
         }
-        if (activeDocuments.containsKey(file)) {
-            return activeDocuments.get(file).content;
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            return active.content();
         }
         try {
             return Files.readString(file);
@@ -273,7 +466,7 @@ public class FileStore {
     static InputStream inputStream(Path file) {
         var uri = file.toUri();
         if (activeDocuments.containsKey(uri)) {
-            var string = activeDocuments.get(uri).content;
+            var string = activeDocuments.get(uri).content();
             var bytes = string.getBytes();
             return new ByteArrayInputStream(bytes);
         }
@@ -291,7 +484,7 @@ public class FileStore {
     static BufferedReader bufferedReader(Path file) {
         var uri = file.toUri();
         if (activeDocuments.containsKey(uri)) {
-            var string = activeDocuments.get(uri).content;
+            var string = activeDocuments.get(uri).content();
             return new BufferedReader(new StringReader(string));
         }
         try {
@@ -308,65 +501,40 @@ public class FileStore {
         return bufferedReader(file);
     }
 
-    /** Convert from line/column (1-based) to offset (0-based) */
-    static int offset(String contents, int line, int column) {
-        line--;
-        column--;
-        int cursor = 0;
-        while (line > 0) {
-            if (contents.charAt(cursor) == '\n') {
-                line--;
-            }
-            cursor++;
+    private static final Cache<Void, LineIndex> cacheLineIndex = new Cache<>("lineIndex");
+
+    /**
+     * The line index of the current contents of `file`. Open documents build it the first time it is needed after each
+     * change; other files keep it until they are modified on disk. Positions in a compiled tree belong to the version
+     * that was compiled, which may be older, so they should be converted with the tree's own LineMap.
+     */
+    public static LineIndex lineIndex(Path file) {
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            return active.lineIndex();
         }
-        return cursor + column;
+        return cacheLineIndex.get(file, null, () -> LineIndex.of(contents(file)));
     }
 
-    private static String patch(String sourceText, TextDocumentContentChangeEvent change) {
-        try {
-            var range = change.range;
-            var reader = new BufferedReader(new StringReader(sourceText));
-            var writer = new StringWriter();
-
-            // Skip unchanged lines
-            int line = 0;
-
-            while (line < range.start.line) {
-                writer.write(reader.readLine() + '\n');
-                line++;
-            }
-
-            // Skip unchanged chars
-            for (int character = 0; character < range.start.character; character++) {
-                writer.write(reader.read());
-            }
-
-            // Write replacement text
-            writer.write(change.text);
-
-            // Skip replaced text
-            if (change.range.start.line == change.range.end.line) {
-                int chars = change.range.end.character - change.range.start.character;
-                reader.skip(chars);
-            } else {
-                int lines = change.range.end.line - change.range.start.line;
-                int chars = change.range.end.character;
-                for (int lineSkip = 0; lineSkip < lines; lineSkip++) {
-                    reader.readLine();
-                }
-                reader.skip(chars);
-            }
+    /** Convert from line/column (1-based) to offset (0-based) in the current contents of `file` */
+    static int offset(Path file, int line, int column) {
+        return lineIndex(file).offset(line - 1, column - 1);
+    }
 
-            // Write remaining text
-            while (true) {
-                int next = reader.read();
+    /**
+     * Apply `change` to an open document. Building a LineIndex for every change would cost O(file), so edits find their
+     * offsets using the line break counts in the rope instead.
+     */
+    private static Rope patch(Rope sourceText, TextDocumentContentChangeEvent change) {
+        var range = change.range;
+        var start = offset(sourceText, range.start.line, range.start.character);
+        var end = Math.max(start, offset(sourceText, range.end.line, range.end.character));
+        return sourceText.replace(start, end, change.text);
+    }
 
-                if (next == -1) return writer.toString();
-                else writer.write(next);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /** Convert from an LSP line/character (0-based) to an offset, clamped to the end of the text */
+    private static int offset(Rope text, int line, int character) {
+        return Math.min(text.lineStart(line) + character, text.length());
     }
 
     static boolean isJavaFile(Path file) {
@@ -394,26 +562,53 @@ public class FileStore {
                 return Optional.of(f);
             }
         }
-        // Slow path: look for text `class Foo` in any file in package
-        for (var f : list(packageName)) {
-            if (StringSearch.containsType(f, el)) {
-                return Optional.of(f);
-            }
-        }
-        return Optional.empty();
+        // Slow path: look for text `class Foo` in any file in package, several files at a time
+        var kind = el.getKind();
+        var simpleName = el.getSimpleName().toString();
+        var found = StringSearch.searchParallel(list(packageName), f -> StringSearch.containsType(f, kind, simpleName), 1);
+        if (found.isEmpty()) return Optional.empty();
+        return Optional.of(found.get(0));
     }
 
     private static final Logger LOG = Logger.getLogger("main");
 }
 
 class VersionedContent {
-    final String content;
+    final Rope text;
     final int version;
     final Instant modified = Instant.now();
+    /** text as a String, which is only built when somebody asks for it */
+    private volatile String content;
+    /** The line index of this version, which is only built when somebody asks for it */
+    private volatile LineIndex lines;
 
     VersionedContent(String content, int version) {
         Objects.requireNonNull(content, "content is null");
+        this.text = Rope.of(content);
+        this.version = version;
         this.content = content;
+    }
+
+    VersionedContent(Rope text, int version) {
+        this.text = text;
         this.version = version;
     }
+
+    String content() {
+        var content = this.content;
+        if (content == null) {
+            content = text.toString();
+            this.content = content;
+        }
+        return content;
+    }
+
+    LineIndex lineIndex() {
+        var lines = this.lines;
+        if (lines == null) {
+            lines = LineIndex.of(content());
+            this.lines = lines;
+        }
+        return lines;
+    }
 }
@@ -1,15 +1,22 @@
 package org.javacs;
 
-import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtosV2;
-import com.google.devtools.build.lib.analysis.AnalysisProtosV2.PathFragment;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -69,7 +76,7 @@ class InferConfig {
         // Maven
         var pomXml = workspaceRoot.resolve("pom.xml");
         if (Files.exists(pomXml)) {
-            return mvnDependencies(pomXml, "dependency:list");
+            return mavenDependencies(pomXml, false);
         }
 
         // Bazel
@@ -81,6 +88,94 @@ class InferConfig {
         return Collections.emptySet();
     }
 
+    /**
+     * Infer the class path and doc path together. The fingerprint is taken before the build tool runs, so if a build
+     * file changes while it's running, the result won't match the next fingerprint.
+     */
+    InferredConfig infer() {
+        return infer(fingerprint());
+    }
+
+    /**
+     * Infer the class path and doc path of the build files that hashed to `fingerprint`. The doc path is resolved on
+     * another thread while this one resolves the class path, so the two build tool runs overlap.
+     */
+    InferredConfig infer(String fingerprint) {
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var docPath = executor.submit(this::buildDocPath);
+            var classPath = classPath();
+            return new InferredConfig(fingerprint, classPath, docPath.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** The names of the files that determine what classPath() and buildDocPath() find */
+    private static final Set<String> BUILD_FILES =
+            Set.of("pom.xml", "BUILD", "BUILD.bazel", "WORKSPACE", "WORKSPACE.bazel", "javaconfig.json");
+
+    /**
+     * A hash of the name and contents of every build file in the workspace, and the bazel WORKSPACE file above it. If
+     * the fingerprint hasn't changed, neither have the class path and doc path, unless the user has changed the
+     * contents of their local repositories.
+     */
+    String fingerprint() {
+        var files = new TreeSet<Path>();
+        var bazelWorkspace = bazelWorkspaceRoot().resolve("WORKSPACE");
+        if (Files.exists(bazelWorkspace)) files.add(bazelWorkspace);
+        try {
+            Files.walkFileTree(
+                    workspaceRoot,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            if (dir.equals(workspaceRoot)) return FileVisitResult.CONTINUE;
+                            var name = dir.getFileName().toString();
+                            // Build output and hidden directories don't contain build files we care about
+                            if (name.startsWith(".") || name.startsWith("bazel-") || name.equals("target")
+                                    || name.equals("node_modules")) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (BUILD_FILES.contains(file.getFileName().toString())) files.add(file);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            LOG.warning("Can't read " + file + ": " + e.getMessage());
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+            var digest = MessageDigest.getInstance("SHA-256");
+            for (var f : files) {
+                digest.update(f.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(f));
+                digest.update((byte) 0);
+            }
+            var hex = new StringBuilder();
+            for (var b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private Path bazelWorkspaceRoot() {
         for (var current = workspaceRoot; current != null; current = current.getParent()) {
             if (Files.exists(current.resolve("WORKSPACE"))) {
@@ -110,7 +205,7 @@ class InferConfig {
         // Maven
         var pomXml = workspaceRoot.resolve("pom.xml");
         if (Files.exists(pomXml)) {
-            return mvnDependencies(pomXml, "dependency:sources");
+            return mavenDependencies(pomXml, true);
         }
 
         // Bazel
@@ -173,6 +268,17 @@ class InferConfig {
         return artifact.artifactId + '-' + artifact.version + (source ? "-sources" : "") + ".jar";
     }
 
+    /**
+     * Read the dependencies of pomXml from the local repository if everything they need is there, because that takes
+     * milliseconds and running maven takes seconds. Otherwise, ask maven, which can download what's missing.
+     */
+    private Set<Path> mavenDependencies(Path pomXml, boolean sources) {
+        var resolver = new MavenResolver(mavenHome.resolve("repository"), this::findMavenJar);
+        var resolved = resolver.resolve(pomXml, sources);
+        if (resolved != null) return resolved;
+        return mvnDependencies(pomXml, sources ? "dependency:sources" : "dependency:list");
+    }
+
     static Set<Path> mvnDependencies(Path pomXml, String goal) {
         Objects.requireNonNull(pomXml, "pom.xml path is null");
         try {
@@ -186,7 +292,6 @@ class InferConfig {
                 "-DincludeScope=test",
                 "-DoutputAbsoluteArtifactFilename=true",
             };
-            var output = Files.createTempFile("java-language-server-maven-output", ".txt");
             LOG.info("Running " + String.join(" ", command) + " ...");
             var workingDirectory = pomXml.toAbsolutePath().getParent().toFile();
             var process =
@@ -194,22 +299,24 @@ class InferConfig {
                             .command(command)
                             .directory(workingDirectory)
                             .redirectError(ProcessBuilder.Redirect.INHERIT)
-                            .redirectOutput(output.toFile())
                             .start();
+            // Read dependencies as maven prints them, so the output never has to be stored
+            var dependencies = new HashSet<Path>();
+            var stdout = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8);
+            try (var output = new BufferedReader(stdout)) {
+                for (var line = output.readLine(); line != null; line = output.readLine()) {
+                    var jar = readDependency(line);
+                    if (jar != NOT_FOUND) {
+                        dependencies.add(jar);
+                    }
+                }
+            }
             // Wait for process to exit
             var result = process.waitFor();
             if (result != 0) {
                 LOG.severe("`" + String.join(" ", command) + "` returned " + result);
                 return Set.of();
             }
-            // Read output
-            var dependencies = new HashSet<Path>();
-            for (var line : Files.readAllLines(output)) {
-                var jar = readDependency(line);
-                if (jar != NOT_FOUND) {
-                    dependencies.add(jar);
-                }
-            }
             return dependencies;
         } catch (InterruptedException | IOException e) {
             throw new RuntimeException(e);
@@ -376,104 +483,22 @@ class InferConfig {
         if (output == NOT_FOUND) {
             return Set.of();
         }
-        return readActionGraph(output, filterArgument);
+        return readActionGraph(output, filterMnemonic, filterArgument);
     }
 
-    private Set<String> readActionGraph(Path output, String filterArgument) {
+    private Set<String> readActionGraph(Path output, String filterMnemonic, String filterArgument) {
         try {
-            var containerV2 = AnalysisProtosV2.ActionGraphContainer.parseFrom(Files.newInputStream(output));
-            if (containerV2.getArtifactsCount() != 0 && containerV2.getArtifactsList().get(0).getId() != 0) {
-                return readActionGraphFromV2(containerV2, filterArgument);
+            try (var in = Files.newInputStream(output)) {
+                return ActionGraphReader.read(in, filterMnemonic, filterArgument);
+            } finally {
+                // The action graph of a big repository is hundreds of MB, so don't leave it lying around
+                Files.deleteIfExists(output);
             }
-            var containerV1 = AnalysisProtos.ActionGraphContainer.parseFrom(Files.newInputStream(output));
-            return readActionGraphFromV1(containerV1, filterArgument);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Set<String> readActionGraphFromV1(AnalysisProtos.ActionGraphContainer container, String filterArgument) {
-        var argumentPaths = new HashSet<String>();
-        var outputIds = new HashSet<String>();
-        for (var action : container.getActionsList()) {
-            var isFilterArgument = false;
-            for (var argument : action.getArgumentsList()) {
-                if (isFilterArgument && argument.startsWith("-")) {
-                    isFilterArgument = false;
-                    continue;
-                }
-                if (!isFilterArgument) {
-                    isFilterArgument = argument.equals(filterArgument);
-                    continue;
-                }
-                argumentPaths.add(argument);
-            }
-            outputIds.addAll(action.getOutputIdsList());
-        }
-        var artifactPaths = new HashSet<String>();
-        for (var artifact : container.getArtifactsList()) {
-            if (!argumentPaths.contains(artifact.getExecPath())) {
-                // artifact was not specified by --filterArgument
-                continue;
-            }
-            if (outputIds.contains(artifact.getId()) && !filterArgument.equals("--output")) {
-                // artifact is the output of another java action
-                continue;
-            }
-            var relative = artifact.getExecPath();
-            LOG.info("...found bazel dependency " + relative);
-            artifactPaths.add(relative);
-        }
-        return artifactPaths;
-    }
-
-    private Set<String> readActionGraphFromV2(AnalysisProtosV2.ActionGraphContainer container, String filterArgument) {
-        var argumentPaths = new HashSet<String>();
-        var outputIds = new HashSet<Integer>();
-        for (var action : container.getActionsList()) {
-            var isFilterArgument = false;
-            for (var argument : action.getArgumentsList()) {
-                if (isFilterArgument && argument.startsWith("-")) {
-                    isFilterArgument = false;
-                    continue;
-                }
-                if (!isFilterArgument) {
-                    isFilterArgument = argument.equals(filterArgument);
-                    continue;
-                }
-                argumentPaths.add(argument);
-            }
-            outputIds.addAll(action.getOutputIdsList());
-        }
-        var artifactPaths = new HashSet<String>();
-        for (var artifact : container.getArtifactsList()) {
-            if (outputIds.contains(artifact.getId()) && !filterArgument.equals("--output")) {
-                // artifact is the output of another java action
-                continue;
-            }
-            var relative = buildPath(container.getPathFragmentsList(), artifact.getPathFragmentId());
-            if (!argumentPaths.contains(relative)) {
-                // artifact was not specified by --filterArgument
-                continue;
-            }
-            LOG.info("...found bazel dependency " + relative);
-            artifactPaths.add(relative);
-        }
-        return artifactPaths;
-    }
-
-    private static String buildPath(List<PathFragment> fragments, int id) {
-        for (PathFragment fragment : fragments) {
-            if (fragment.getId() == id) {
-                if (fragment.getParentId() != 0) {
-                    return buildPath(fragments, fragment.getParentId()) + "/" + fragment.getLabel();
-                }
-                return fragment.getLabel();
-            }
-        }
-        throw new RuntimeException();
-    }
-
     private static Path fork(Path workspaceRoot, String[] command) {
         try {
             LOG.info("Running " + String.join(" ", command) + " ...");
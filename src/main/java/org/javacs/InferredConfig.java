@@ -0,0 +1,86 @@
+package org.javacs;
+
+import static org.javacs.JsonHelper.GSON;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The class path and doc path that InferConfig found by running the build tool, and a fingerprint of the build files
+ * they were inferred from. They are saved in the workspace, so when the server restarts and the build files haven't
+ * changed, it can skip running Maven or Bazel again.
+ */
+class InferredConfig {
+    final String fingerprint;
+    final Set<Path> classPath, docPath;
+
+    InferredConfig(String fingerprint, Set<Path> classPath, Set<Path> docPath) {
+        this.fingerprint = fingerprint;
+        this.classPath = classPath;
+        this.docPath = docPath;
+    }
+
+    /** True if `other` has the same class path and doc path, even if it was inferred from different build files */
+    boolean sameConfig(InferredConfig other) {
+        return classPath.equals(other.classPath) && docPath.equals(other.docPath);
+    }
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** How InferredConfig is written to disk */
+    private static class Json {
+        int version;
+        String fingerprint;
+        List<String> classPath = new ArrayList<>(), docPath = new ArrayList<>();
+    }
+
+    /** Read a config that was written by save(...), or null if there isn't one or it can't be read */
+    static InferredConfig load(Path file) {
+        if (!Files.exists(file)) return null;
+        try {
+            var json = GSON.fromJson(Files.readString(file), Json.class);
+            if (json == null || json.version != FORMAT_VERSION || json.fingerprint == null) {
+                LOG.info("...ignoring " + file + " because it was written by a different version");
+                return null;
+            }
+            return new InferredConfig(json.fingerprint, paths(json.classPath), paths(json.docPath));
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Failed to load " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Set<Path> paths(List<String> strings) {
+        var paths = new HashSet<Path>();
+        for (var s : strings) {
+            paths.add(Paths.get(s));
+        }
+        return paths;
+    }
+
+    void save(Path file) {
+        var json = new Json();
+        json.version = FORMAT_VERSION;
+        json.fingerprint = fingerprint;
+        for (var p : classPath) {
+            json.classPath.add(p.toString());
+        }
+        for (var p : docPath) {
+            json.docPath.add(p.toString());
+        }
+        Collections.sort(json.classPath);
+        Collections.sort(json.docPath);
+        try {
+            Files.createDirectories(file.getParent());
+            var temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.writeString(temp, GSON.toJson(json));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,254 @@
+package org.javacs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+
+/**
+ * JarIndex remembers the top-level classes in each jar on the class path, so creating a compiler doesn't have to open
+ * every jar again. A jar is only scanned when its size or modification time changes, and the index is saved in the
+ * workspace, so unchanged jars aren't scanned again after the server restarts either.
+ *
+ * <p>The class names of a jar are kept sorted and front-coded: each name is stored as the length of the prefix it
+ * shares with the previous name, followed by the rest of its UTF-8 bytes. Names in the same package share most of
+ * their bytes, so this is several times smaller than the strings themselves.
+ */
+class JarIndex {
+    private static class Entry {
+        final long size, modified;
+        /** Jars named by the Class-Path attribute of the manifest, which are also on the class path */
+        final List<Path> manifestClassPath;
+        final int count;
+        final byte[] names;
+        /** Entries that weren't looked up since the index was loaded aren't saved again */
+        boolean used;
+
+        Entry(long size, long modified, List<Path> manifestClassPath, int count, byte[] names) {
+            this.size = size;
+            this.modified = modified;
+            this.manifestClassPath = manifestClassPath;
+            this.count = count;
+            this.names = names;
+        }
+    }
+
+    private final Map<Path, Entry> jars = new HashMap<>();
+    /** An index file that has been passed to load(...) but not read yet */
+    private Path unread;
+
+    /** Add the top-level classes in `jar` to `classes` */
+    void addTopLevelClasses(Path jar, Collection<String> classes) {
+        var entry = entry(jar);
+        if (entry == null) return;
+        var in = new ByteArrayInputStream(entry.names);
+        var name = new byte[256];
+        var length = 0;
+        for (var i = 0; i < entry.count; i++) {
+            var shared = readVarint(in);
+            var suffix = readVarint(in);
+            length = shared + suffix;
+            if (length > name.length) name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+            in.read(name, shared, suffix);
+            classes.add(new String(name, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    /** The jars that the manifest of `jar` adds to the class path */
+    List<Path> manifestClassPath(Path jar) {
+        var entry = entry(jar);
+        if (entry == null) return List.of();
+        return entry.manifestClassPath;
+    }
+
+    synchronized int size() {
+        readUnread();
+        return jars.size();
+    }
+
+    /** The entry for the current version of `jar`, or null if it isn't a jar. The jar is read outside the lock. */
+    private Entry entry(Path jar) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        var size = attributes.size();
+        var modified = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            readUnread();
+            var entry = jars.get(jar);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                entry.used = true;
+                return entry;
+            }
+        }
+        var entry = scan(jar, size, modified);
+        if (entry == null) return null;
+        entry.used = true;
+        synchronized (this) {
+            jars.put(jar, entry);
+        }
+        return entry;
+    }
+
+    private static Entry scan(Path jar, long size, long modified) {
+        var classes = new ArrayList<String>();
+        var manifestClassPath = new ArrayList<Path>();
+        try (var file = new JarFile(jar.toFile())) {
+            var entries = file.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                var name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class")) continue;
+                var className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                if (className.indexOf('$') == -1) classes.add(className);
+            }
+            var manifest = file.getManifest();
+            if (manifest != null) {
+                var attribute = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+                if (attribute != null) addManifestClassPath(jar, attribute, manifestClassPath);
+            }
+        } catch (IOException e) {
+            // Not a jar file
+            LOG.warning("Can't scan " + jar + ": " + e.getMessage());
+            return null;
+        }
+        Collections.sort(classes);
+        return new Entry(size, modified, manifestClassPath, classes.size(), frontCode(classes));
+    }
+
+    /** Class-Path is a space-separated list of URLs, relative to the jar */
+    private static void addManifestClassPath(Path jar, String attribute, List<Path> manifestClassPath) {
+        for (var path : attribute.split(" ")) {
+            if (path.isEmpty()) continue;
+            try {
+                var uri = jar.toUri().resolve(path);
+                if (uri.getScheme().equals("file")) manifestClassPath.add(Paths.get(uri));
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Invalid Class-Path entry " + path + " in " + jar);
+            }
+        }
+    }
+
+    private static byte[] frontCode(List<String> sorted) {
+        var out = new ByteArrayOutputStream();
+        var previous = new byte[0];
+        for (var name : sorted) {
+            var bytes = name.getBytes(StandardCharsets.UTF_8);
+            var shared = 0;
+            while (shared < previous.length && shared < bytes.length && previous[shared] == bytes[shared]) shared++;
+            writeVarint(out, shared);
+            writeVarint(out, bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteArrayInputStream in) {
+        var value = 0;
+        for (var shift = 0; ; shift += 7) {
+            var b = in.read();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Read an index that was written by save(...) the first time a jar is looked up. Jars are checked against their
+     * size and modification time when they are looked up, so jars that changed while the server wasn't running are
+     * simply scanned again.
+     */
+    synchronized void load(Path file) {
+        unread = file;
+    }
+
+    private void readUnread() {
+        if (unread == null) return;
+        var file = unread;
+        unread = null;
+        if (!Files.exists(file)) return;
+        var loaded = new HashMap<Path, Entry>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                LOG.info("...ignoring " + file + " because it was written by a different version");
+                return;
+            }
+            var jarCount = in.readInt();
+            for (var i = 0; i < jarCount; i++) {
+                var jar = Paths.get(in.readUTF());
+                var size = in.readLong();
+                var modified = in.readLong();
+                var manifestClassPath = new ArrayList<Path>();
+                var manifestCount = in.readInt();
+                for (var j = 0; j < manifestCount; j++) {
+                    manifestClassPath.add(Paths.get(in.readUTF()));
+                }
+                var count = in.readInt();
+                var names = new byte[in.readInt()];
+                in.readFully(names);
+                loaded.put(jar, new Entry(size, modified, manifestClassPath, count, names));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Failed to load " + file + ": " + e.getMessage());
+            return;
+        }
+        // Jars that were scanned before the index was read are newer than what's in the file
+        for (var e : loaded.entrySet()) {
+            jars.putIfAbsent(e.getKey(), e.getValue());
+        }
+        LOG.info(String.format("Loaded classes of %d jars from %s", loaded.size(), file));
+    }
+
+    /** Write the jars that were looked up since the index was loaded to `file` */
+    synchronized void save(Path file) {
+        if (unread != null) return;
+        var used = new TreeMap<Path, Entry>();
+        for (var e : jars.entrySet()) {
+            if (e.getValue().used) used.put(e.getKey(), e.getValue());
+        }
+        if (used.isEmpty()) return;
+        try {
+            Files.createDirectories(file.getParent());
+            var temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(used.size());
+                for (var e : used.entrySet()) {
+                    var entry = e.getValue();
+                    out.writeUTF(e.getKey().toString());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeInt(entry.manifestClassPath.size());
+                    for (var p : entry.manifestClassPath) {
+                        out.writeUTF(p.toString());
+                    }
+                    out.writeInt(entry.count);
+                    out.writeInt(entry.names.length);
+                    out.write(entry.names);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
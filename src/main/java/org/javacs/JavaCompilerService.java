@@ -7,19 +7,18 @@ import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.tools.*;
+import org.javacs.lsp.CancelToken;
 
 class JavaCompilerService implements CompilerProvider {
     // Not modifiable! If you want to edit these, you need to create a new instance
     final Set<Path> classPath, docPath;
     final Set<String> addExports;
-    final ReusableCompiler compiler = new ReusableCompiler();
     final Docs docs;
     final Set<String> jdkClasses = ScanClassPath.jdkTopLevelClasses(), classPathClasses;
-    // Diagnostics from the last compilation task
-    final List<Diagnostic<? extends JavaFileObject>> diags = new ArrayList<>();
-    // Use the same file manager for multiple tasks, so we don't repeatedly re-compile the same files
-    // TODO intercept files that aren't in the batch and erase method bodies so compilation is faster
-    final SourceFileManager fileManager;
+    // Signature-only class files for the workspace, so javac doesn't have to parse dependencies at all once they're ready
+    final SignatureStubs stubs;
+    // Which files refer to which classes and members, as of the last time each file was analyzed
+    final ReferenceIndex references = new ReferenceIndex();
 
     JavaCompilerService(Set<Path> classPath, Set<Path> docPath, Set<String> addExports) {
         System.err.println("Class path:");
@@ -36,73 +35,224 @@ class JavaCompilerService implements CompilerProvider {
         this.addExports = Collections.unmodifiableSet(addExports);
         this.docs = new Docs(docPath);
         this.classPathClasses = ScanClassPath.classPathTopLevelClasses(classPath);
-        this.fileManager = new SourceFileManager();
+        this.stubs = new SignatureStubs(classPath, addExports);
+        this.compilers = new CompilerPool(CompilerPool.defaultSize(), () -> new SourceFileManager(stubs));
+        stubs.refreshInBackground();
     }
 
-    private CompileBatch cachedCompile;
-    private Map<JavaFileObject, Long> cachedModified = new HashMap<>();
+    /** Maximum number of analyzed batches we keep around. Each one holds on to its own javac context. */
+    static final int MAX_CACHED_COMPILES = 3;
+    /** When more than this fraction of the heap is in use, we only keep the most recent batch. */
+    private static final double MAX_HEAP_FRACTION = 0.75;
+
+    private static class CachedCompile {
+        final CompileBatch batch;
+        final Map<JavaFileObject, Long> modified = new HashMap<>();
+        /** In-memory contents of sources that have them, because two edits can land in the same millisecond */
+        final Map<JavaFileObject, String> contents = new HashMap<>();
+
+        CachedCompile(CompileBatch batch, Collection<? extends JavaFileObject> sources) {
+            this.batch = batch;
+            for (var f : sources) {
+                modified.put(f, f.getLastModified());
+                contents.put(f, contentsOf(f));
+            }
+        }
 
-    private boolean needsCompile(Collection<? extends JavaFileObject> sources) {
-        if (cachedModified.size() != sources.size()) {
-            return true;
+        boolean isStale(Collection<? extends JavaFileObject> sources) {
+            for (var f : sources) {
+                if (f.getLastModified() != modified.get(f)) {
+                    return true;
+                }
+                if (!Objects.equals(contentsOf(f), contents.get(f))) {
+                    return true;
+                }
+            }
+            return false;
         }
-        for (var f : sources) {
-            if (!cachedModified.containsKey(f)) {
-                return true;
+
+        private static String contentsOf(JavaFileObject f) {
+            if (f instanceof SourceFileObject) {
+                return ((SourceFileObject) f).contents;
             }
-            if (f.getLastModified() != cachedModified.get(f)) {
-                return true;
+            return null;
+        }
+    }
+
+    // Everything below is guarded by `this`, so batches can be compiled and used on several threads at once.
+    // javac itself is only ever called outside the lock, and each batch has a context of its own.
+
+    /**
+     * Compilers that back the batches below, and the batches being compiled right now. Each compiler has a file manager
+     * of its own, because javac's file managers aren't thread-safe, and keeps it from task to task, so files that aren't
+     * in the batch are served with their method bodies erased.
+     */
+    private final CompilerPool compilers;
+    /** Recently analyzed batches, keyed by their source files, in least-recently-used order */
+    private final LinkedHashMap<Set<JavaFileObject>, CachedCompile> cachedCompiles =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private long compileHits, compileMisses;
+
+    private CompileBatch compileBatch(Collection<? extends JavaFileObject> sources) {
+        CancelToken.checkCancelled();
+        var key = new HashSet<JavaFileObject>(sources);
+        ReusableCompiler compiler;
+        synchronized (this) {
+            var cached = cachedCompiles.get(key);
+            // If another thread is using the same batch, wait for it to finish
+            while (cached != null && !cached.batch.closed && cached.batch.owner != Thread.currentThread()) {
+                awaitClose();
+                cached = cachedCompiles.get(key);
+            }
+            if (cached != null && !cached.isStale(sources)) {
+                compileHits++;
+                LOG.info(String.format("...using cached compile (%d hits, %d misses)", compileHits, compileMisses));
+                cached.batch.closed = false;
+                cached.batch.owner = Thread.currentThread();
+                return cached.batch;
+            }
+            compileMisses++;
+            if (cached != null) {
+                cachedCompiles.remove(key);
+                compiler = release(cached.batch);
+            } else {
+                compiler = checkout();
             }
         }
-        return false;
+        CompileBatch batch;
+        try {
+            batch = doCompile(compiler, sources);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                // Cancellation stops javac between phases on purpose, so the context is fine to reuse.
+                // Anything else may have left it in a broken state.
+                if (CancelToken.isCancellation(e)) {
+                    compilers.checkin(compiler);
+                } else {
+                    compilers.discard(compiler);
+                }
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // If another thread compiled the same files in the meantime, its batch will be released when it closes
+            var replaced = cachedCompiles.put(key, new CachedCompile(batch, sources));
+            if (replaced != null && replaced.batch.closed) {
+                compilers.checkin(release(replaced.batch));
+                notifyAll();
+            }
+        }
+        return batch;
     }
 
-    private void loadCompile(Collection<? extends JavaFileObject> sources) {
-        if (cachedCompile != null) {
-            if (!cachedCompile.closed) {
+    /** Check out a compiler for a new batch, evicting idle batches to make room, or waiting for a batch to close. */
+    private ReusableCompiler checkout() {
+        evictCompiles();
+        while (compilers.isExhausted()) {
+            // If this thread is holding every compiler, waiting would deadlock
+            if (isOnlyUser(Thread.currentThread())) {
                 throw new RuntimeException("Compiler is still in-use!");
             }
-            cachedCompile.borrow.close();
+            awaitClose();
+            evictCompiles();
+        }
+        return compilers.checkout();
+    }
+
+    /** Make room for one more batch, evicting the least-recently-used batches that aren't in use. */
+    private void evictCompiles() {
+        var heapIsFull = heapIsFull();
+        var limit = heapIsFull ? 0 : MAX_CACHED_COMPILES - 1;
+        var it = cachedCompiles.values().iterator();
+        while ((cachedCompiles.size() > limit || compilers.isExhausted()) && it.hasNext()) {
+            var evict = it.next();
+            if (!evict.batch.closed) continue;
+            it.remove();
+            var compiler = release(evict.batch);
+            // If memory is tight, let the garbage collector have the javac context too
+            if (heapIsFull) {
+                compilers.discard(compiler);
+            } else {
+                compilers.checkin(compiler);
+            }
+        }
+    }
+
+    private boolean isOnlyUser(Thread thread) {
+        var cachedInUse = 0;
+        for (var cached : cachedCompiles.values()) {
+            if (cached.batch.closed) continue;
+            if (cached.batch.owner != thread) return false;
+            cachedInUse++;
+        }
+        // Compilers that are checked out but not cached are being compiled by other threads right now
+        return cachedInUse == compilers.checkedOut();
+    }
+
+    private void awaitClose() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Called by CompileBatch when the task that requested it is finished with it. */
+    synchronized void closeBatch(CompileBatch batch) {
+        if (batch.closed) return;
+        batch.closed = true;
+        batch.owner = null;
+        // If the batch was replaced while it was in use, nobody else will release its compiler
+        if (!isCached(batch)) {
+            compilers.checkin(release(batch));
+        }
+        notifyAll();
+    }
+
+    private boolean isCached(CompileBatch batch) {
+        for (var cached : cachedCompiles.values()) {
+            if (cached.batch == batch) return true;
         }
-        cachedCompile = null;
-        cachedCompile = doCompile(sources);
-        cachedModified.clear();
-        for (var f : sources) {
-            cachedModified.put(f, f.getLastModified());
+        return false;
+    }
+
+    private static boolean heapIsFull() {
+        var runtime = Runtime.getRuntime();
+        var used = runtime.totalMemory() - runtime.freeMemory();
+        return used > MAX_HEAP_FRACTION * runtime.maxMemory();
+    }
+
+    private ReusableCompiler release(CompileBatch batch) {
+        if (!batch.closed) {
+            throw new RuntimeException("Compiler is still in-use!");
         }
+        batch.borrow.close();
+        return batch.compiler;
     }
 
-    private CompileBatch doCompile(Collection<? extends JavaFileObject> sources) {
+    private CompileBatch doCompile(ReusableCompiler compiler, Collection<? extends JavaFileObject> sources) {
         if (sources.isEmpty()) throw new RuntimeException("empty sources");
-        var firstAttempt = new CompileBatch(this, sources);
+        var firstAttempt = new CompileBatch(this, compiler, sources);
         Set<Path> addFiles;
         try {
             addFiles = firstAttempt.needsAdditionalSources();
         } catch (RuntimeException e) {
-            firstAttempt.close();
             firstAttempt.borrow.close();
             throw e;
         }
         if (addFiles.isEmpty()) return firstAttempt;
         // If the compiler needs additional source files that contain package-private files
         LOG.info("...need to recompile with " + addFiles);
-        firstAttempt.close();
         firstAttempt.borrow.close();
         var moreSources = new ArrayList<JavaFileObject>();
         moreSources.addAll(sources);
         for (var add : addFiles) {
             moreSources.add(new SourceFileObject(add));
         }
-        return new CompileBatch(this, moreSources);
-    }
-
-    private CompileBatch compileBatch(Collection<? extends JavaFileObject> sources) {
-        if (needsCompile(sources)) {
-            loadCompile(sources);
-        } else {
-            LOG.info("...using cached compile");
-        }
-        return cachedCompile;
+        return new CompileBatch(this, compiler, moreSources);
     }
 
     private static final Pattern PACKAGE_EXTRACTOR = Pattern.compile("^([a-z][_a-zA-Z0-9]*\\.)*[a-z][_a-zA-Z0-9]*");
@@ -125,37 +275,35 @@ class JavaCompilerService implements CompilerProvider {
         return "";
     }
 
-    private static final Cache<String, Boolean> cacheContainsWord = new Cache<>();
+    private static final Cache<String, Boolean> cacheContainsWord = new Cache<>("containsWord");
 
     private boolean containsWord(Path file, String word) {
-        if (cacheContainsWord.needs(file, word)) {
-            cacheContainsWord.load(file, word, StringSearch.containsWord(file, word));
-        }
-        return cacheContainsWord.get(file, word);
+        return cacheContainsWord.get(file, word, () -> StringSearch.containsWord(file, word));
     }
 
-    private static final Cache<Void, List<String>> cacheContainsType = new Cache<>();
+    private static final Cache<Void, List<String>> cacheContainsType = new Cache<>("containsType");
 
     private boolean containsType(Path file, String className) {
-        if (cacheContainsType.needs(file, null)) {
-            var root = parse(file).root;
-            var types = new ArrayList<String>();
-            new FindTypeDeclarations().scan(root, types);
-            cacheContainsType.load(file, null, types);
-        }
-        return cacheContainsType.get(file, null).contains(className);
+        var types =
+                cacheContainsType.get(
+                        file,
+                        null,
+                        () -> {
+                            var found = new ArrayList<String>();
+                            new FindTypeDeclarations().scan(parse(file).root, found);
+                            return found;
+                        });
+        return types.contains(className);
     }
 
-    private Cache<Void, List<String>> cacheFileImports = new Cache<>();
+    // Static like the other caches, so replacing the compiler doesn't leave a cache behind in Cache.invalidateAll
+    private static final Cache<Void, List<String>> cacheFileImports = new Cache<>("fileImports");
 
     private List<String> readImports(Path file) {
-        if (cacheFileImports.needs(file, null)) {
-            loadImports(file);
-        }
-        return cacheFileImports.get(file, null);
+        return cacheFileImports.get(file, null, () -> loadImports(file));
     }
 
-    private void loadImports(Path file) {
+    private List<String> loadImports(Path file) {
         var list = new ArrayList<String>();
         var importClass = Pattern.compile("^import +([\\w\\.]+\\.\\w+);");
         var importStar = Pattern.compile("^import +([\\w\\.]+\\.\\*);");
@@ -178,7 +326,7 @@ class JavaCompilerService implements CompilerProvider {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        cacheFileImports.load(file, null, list);
+        return list;
     }
 
     @Override
@@ -224,12 +372,6 @@ class JavaCompilerService implements CompilerProvider {
         return false;
     }
 
-    @Override
-    public Iterable<Path> search(String query) {
-        Predicate<Path> test = f -> StringSearch.containsWordMatching(f, query);
-        return () -> FileStore.all().stream().filter(test).iterator();
-    }
-
     @Override
     public Optional<JavaFileObject> findAnywhere(String className) {
         var fromDocs = findPublicTypeDeclarationInDocPath(className);
@@ -247,18 +389,27 @@ class JavaCompilerService implements CompilerProvider {
         return Optional.empty();
     }
 
+    // The doc path has one file manager, which isn't thread-safe, so requests take turns looking things up in it
     private Optional<JavaFileObject> findPublicTypeDeclarationInDocPath(String className) {
-        try {
-            var found =
-                    docs.fileManager.getJavaFileForInput(
-                            StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
-            return Optional.ofNullable(found);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        synchronized (docs.fileManager) {
+            try {
+                var found =
+                        docs.fileManager.getJavaFileForInput(
+                                StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
+                return Optional.ofNullable(found);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
     }
 
     private Optional<JavaFileObject> findPublicTypeDeclarationInJdk(String className) {
+        synchronized (docs.fileManager) {
+            return findPublicTypeDeclarationInJdkModules(className);
+        }
+    }
+
+    private Optional<JavaFileObject> findPublicTypeDeclarationInJdkModules(String className) {
         try {
             for (var module : ScanClassPath.JDK_MODULES) {
                 var moduleLocation = docs.fileManager.getLocationForModule(StandardLocation.MODULE_SOURCE_PATH, module);
@@ -284,7 +435,7 @@ class JavaCompilerService implements CompilerProvider {
         // If we're spending a lot of time in findTypeDeclaration, this would be a good optimization.
         var packageName = packageName(className);
         var simpleName = simpleName(className);
-        for (var f : FileStore.list(packageName)) {
+        for (var f : StringSearch.TRIGRAMS.candidates(FileStore.list(packageName), simpleName)) {
             if (containsWord(f, simpleName) && containsType(f, className)) {
                 return f;
             }
@@ -293,42 +444,67 @@ class JavaCompilerService implements CompilerProvider {
     }
 
     private Path findPublicTypeDeclaration(String className) {
-        JavaFileObject source;
-        try {
-            source =
-                    fileManager.getJavaFileForInput(
-                            StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        // FileStore is what the file managers would have looked in, so there's no need to borrow one
+        var fileName = StringSearch.lastName(className) + ".java";
+        for (var file : FileStore.list(StringSearch.mostName(className))) {
+            if (!file.getFileName().toString().equals(fileName)) continue;
+            if (!containsType(file, className)) return NOT_FOUND;
+            return file;
         }
-        if (source == null) return NOT_FOUND;
-        if (!source.toUri().getScheme().equals("file")) return NOT_FOUND;
-        var file = Paths.get(source.toUri());
-        if (!containsType(file, className)) return NOT_FOUND;
-        return file;
+        return NOT_FOUND;
     }
 
     @Override
     public Path[] findTypeReferences(String className) {
         var packageName = packageName(className);
         var simpleName = simpleName(className);
-        var candidates = new ArrayList<Path>();
-        for (var f : FileStore.all()) {
-            if (containsWord(f, packageName) && containsImport(f, className) && containsWord(f, simpleName)) {
-                candidates.add(f);
-            }
-        }
-        return candidates.toArray(Path[]::new);
+        return findReferences(
+                ReferenceIndex.typeSymbol(className),
+                List.of(packageName, simpleName),
+                f -> containsWord(f, packageName) && containsImport(f, className) && containsWord(f, simpleName));
     }
 
     @Override
     public Path[] findMemberReferences(String className, String memberName) {
-        var candidates = new ArrayList<Path>();
+        return findReferences(
+                ReferenceIndex.memberSymbol(className, memberName), List.of(memberName), f -> containsWord(f, memberName));
+    }
+
+    /**
+     * Find the files that may refer to `symbol`. Files that are up to date in the reference index are looked up there.
+     * The rest are narrowed down to the files that contain every one of `words` according to the trigram index, and
+     * then checked with `textSearch`.
+     */
+    private Path[] findReferences(String symbol, List<String> words, Predicate<Path> textSearch) {
+        var indexed = references.referencedBy(symbol);
+        var found = new HashSet<Path>();
+        var stale = new ArrayList<Path>();
         for (var f : FileStore.all()) {
-            if (containsWord(f, memberName)) {
-                candidates.add(f);
+            CancelToken.checkCancelled();
+            if (references.isFresh(f)) {
+                if (indexed.contains(f)) found.add(f);
+            } else {
+                stale.add(f);
             }
         }
+        List<Path> maybe = stale;
+        for (var w : words) {
+            maybe = StringSearch.TRIGRAMS.candidates(maybe, w);
+        }
+        for (var f : maybe) {
+            CancelToken.checkCancelled();
+            if (textSearch.test(f)) found.add(f);
+        }
+        var candidates = new ArrayList<Path>();
+        for (var f : FileStore.all()) {
+            if (found.contains(f)) candidates.add(f);
+        }
+        LOG.info(
+                String.format(
+                        "...found %d files that may refer to %s, %d of %d files had to be searched as text, %d after"
+                                + " checking trigrams",
+                        candidates.size(), symbol, stale.size(), FileStore.all().size(), maybe.size()));
+        LOG.info("...caches: " + Cache.report());
         return candidates.toArray(Path[]::new);
     }
 
@@ -356,7 +532,12 @@ class JavaCompilerService implements CompilerProvider {
     @Override
     public CompileTask compile(Collection<? extends JavaFileObject> sources) {
         var compile = compileBatch(sources);
-        return new CompileTask(compile.task, compile.roots, diags, compile::close);
+        return new CompileTask(compile.task, compile.roots, compile.diags, compile::close);
+    }
+
+    @Override
+    public int parallelism() {
+        return compilers.size;
     }
 
     private static final Logger LOG = Logger.getLogger("main");
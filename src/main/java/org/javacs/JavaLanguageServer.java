@@ -9,6 +9,11 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import javax.lang.model.element.*;
 import org.javacs.action.CodeActionProvider;
@@ -16,6 +21,7 @@ import org.javacs.completion.CompletionProvider;
 import org.javacs.completion.SignatureProvider;
 import org.javacs.fold.FoldProvider;
 import org.javacs.hover.HoverProvider;
+import org.javacs.index.SymbolIndex;
 import org.javacs.index.SymbolProvider;
 import org.javacs.lens.CodeLensProvider;
 import org.javacs.lsp.*;
@@ -28,13 +34,14 @@ import org.javacs.rewrite.*;
 class JavaLanguageServer extends LanguageServer {
     // TODO allow multiple workspace roots
     private Path workspaceRoot;
+    private SymbolIndex symbolIndex;
     private final LanguageClient client;
     private JavaCompilerService cacheCompiler;
     private JsonObject cacheSettings;
     private JsonObject settings = new JsonObject();
     private boolean modifiedBuild = true;
 
-    JavaCompilerService compiler() {
+    synchronized JavaCompilerService compiler() {
         if (needsCompiler()) {
             cacheCompiler = createCompiler();
             cacheSettings = settings;
@@ -100,17 +107,109 @@ class JavaLanguageServer extends LanguageServer {
         }
         // Otherwise, combine inference with user-specified external dependencies
         else {
-            var infer = new InferConfig(workspaceRoot, externalDependencies);
-
-            javaReportProgress(new JavaReportProgressParams("Inferring class path"));
-            classPath = infer.classPath();
-
-            javaReportProgress(new JavaReportProgressParams("Inferring doc path"));
-            var docPath = infer.buildDocPath();
+            var infer = inferConfig(externalDependencies);
+            // External dependencies are looked up directly in the local repositories, which is fast enough to redo
+            var useCache = externalDependencies.isEmpty();
+            String fingerprint = null;
+            if (useCache) {
+                fingerprint = infer.fingerprint();
+                var cached = InferredConfig.load(cacheFile("classpath.json"));
+                if (cached != null && cached.fingerprint.equals(fingerprint)) {
+                    LOG.info("Build files haven't changed, reusing class path from " + cacheFile("classpath.json"));
+                    javaEndProgress();
+                    return new JavaCompilerService(cached.classPath, cached.docPath, addExports);
+                }
+                if (cached != null) {
+                    LOG.info("Build files have changed, keep using the old class path while inferring a new one");
+                    inferInBackground(infer, fingerprint, cached);
+                    javaEndProgress();
+                    return new JavaCompilerService(cached.classPath, cached.docPath, addExports);
+                }
+            }
 
+            javaReportProgress(new JavaReportProgressParams("Inferring class path and doc path"));
+            var inferred = infer.infer(fingerprint);
+            if (useCache) {
+                saveInferred(inferred);
+            }
             javaEndProgress();
-            return new JavaCompilerService(classPath, docPath, addExports);
+            return new JavaCompilerService(inferred.classPath, inferred.docPath, addExports);
+        }
+    }
+
+    /** Every server shares one thread, so a burst of build file changes runs the build tool one time after another */
+    private static final ExecutorService inferThread =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        var thread = new Thread(task, "infer-config");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    private Future<?> inferring;
+    /** The fingerprint of the build files that were last inferred in the background, whether or not it worked */
+    private String attemptedFingerprint;
+
+    /**
+     * Infer the class path of the build files that hash to `fingerprint`, and replace the compiler once it's done, if
+     * the result is different from `cached`. Only one inference runs at a time, and the same build files are only
+     * tried once, so a build tool that fails or finds nothing doesn't run again on every request.
+     */
+    private synchronized void inferInBackground(InferConfig infer, String fingerprint, InferredConfig cached) {
+        if (inferring != null && !inferring.isDone()) return;
+        if (fingerprint.equals(attemptedFingerprint)) return;
+        attemptedFingerprint = fingerprint;
+        inferring =
+                inferThread.submit(
+                        () -> {
+                            var started = Instant.now();
+                            var inferred = infer.infer(fingerprint);
+                            LOG.info(
+                                    String.format(
+                                            "...inferred class path in %d ms",
+                                            Duration.between(started, Instant.now()).toMillis()));
+                            if (inferred.classPath.isEmpty()) {
+                                LOG.warning("...found no class path, keep using the old one");
+                                return;
+                            }
+                            saveInferred(inferred);
+                            if (inferred.sameConfig(cached)) return;
+                            // If the build files changed again in the meantime, the next compiler will start over
+                            synchronized (this) {
+                                modifiedBuild = true;
+                            }
+                        });
+    }
+
+    /** Wait for the background inference that is running, if any */
+    void awaitInference() {
+        Future<?> running;
+        synchronized (this) {
+            running = inferring;
         }
+        if (running == null) return;
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** How the class path is inferred from the build files in the workspace */
+    InferConfig inferConfig(Set<String> externalDependencies) {
+        return new InferConfig(workspaceRoot, externalDependencies);
+    }
+
+    /**
+     * InferConfig reports a failed build tool the same as a project with no dependencies, so an empty class path isn't
+     * remembered; the next start runs the build tool again.
+     */
+    private void saveInferred(InferredConfig inferred) {
+        if (inferred.classPath.isEmpty()) return;
+        inferred.save(cacheFile("classpath.json"));
     }
 
     private Set<String> externalDependencies() {
@@ -156,7 +255,7 @@ class JavaLanguageServer extends LanguageServer {
     @Override
     public InitializeResult initialize(InitializeParams params) {
         this.workspaceRoot = Paths.get(params.rootUri);
-        FileStore.setWorkspaceRoots(Set.of(Paths.get(params.rootUri)));
+        this.symbolIndex = new SymbolIndex(cacheFile("symbols.idx"), this::parse);
 
         var c = new JsonObject();
         c.addProperty("textDocumentSync", 2); // Incremental
@@ -173,7 +272,9 @@ class JavaLanguageServer extends LanguageServer {
         signatureTrigger.add(",");
         signatureHelpOptions.add("triggerCharacters", signatureTrigger);
         c.add("signatureHelpProvider", signatureHelpOptions);
-        c.addProperty("referencesProvider", true);
+        var referencesOptions = new JsonObject();
+        referencesOptions.addProperty("workDoneProgress", true);
+        c.add("referencesProvider", referencesOptions);
         c.addProperty("definitionProvider", true);
         c.addProperty("workspaceSymbolProvider", true);
         c.addProperty("documentSymbolProvider", true);
@@ -196,6 +297,29 @@ class JavaLanguageServer extends LanguageServer {
     @Override
     public void initialized() {
         client.registerCapability("workspace/didChangeWatchedFiles", watchFiles(watchFiles));
+        // The client can't show progress until it has received our response to initialize
+        javaStartProgress(new JavaStartProgressParams("Index workspace"));
+        FileStore.loadSnapshot(cacheFile("sources.idx"));
+        StringSearch.TRIGRAMS.load(cacheFile("trigrams.idx"));
+        ScanClassPath.JARS.load(cacheFile("jars.idx"));
+        FileStore.setWorkspaceRoots(
+                Set.of(workspaceRoot),
+                found -> javaReportProgress(new JavaReportProgressParams("Found " + found + " source files")));
+        saveSourcesSnapshot();
+        symbolIndex.updateInBackground();
+        javaEndProgress();
+    }
+
+    /** Files that let us start faster next time are kept in the .javacs directory of the workspace */
+    private Path cacheFile(String name) {
+        return workspaceRoot.resolve(".javacs").resolve(name);
+    }
+
+    private volatile Instant lastSourcesSnapshot = Instant.EPOCH;
+
+    private void saveSourcesSnapshot() {
+        FileStore.saveSnapshot(cacheFile("sources.idx"));
+        lastSourcesSnapshot = Instant.now();
     }
 
     private JsonObject watchFiles(String... globPatterns) {
@@ -211,7 +335,16 @@ class JavaLanguageServer extends LanguageServer {
     }
 
     @Override
-    public void shutdown() {}
+    public void shutdown() {
+        if (symbolIndex != null) {
+            symbolIndex.save();
+        }
+        if (workspaceRoot != null) {
+            saveSourcesSnapshot();
+            StringSearch.TRIGRAMS.save(cacheFile("trigrams.idx"));
+            ScanClassPath.JARS.save(cacheFile("jars.idx"));
+        }
+    }
 
     public JavaLanguageServer(LanguageClient client) {
         this.client = client;
@@ -219,7 +352,7 @@ class JavaLanguageServer extends LanguageServer {
 
     @Override
     public List<SymbolInformation> workspaceSymbols(WorkspaceSymbolParams params) {
-        return new SymbolProvider(compiler()).findSymbols(params.query, 50);
+        return symbolIndex.search(params.query, 50);
     }
 
     @Override
@@ -227,6 +360,15 @@ class JavaLanguageServer extends LanguageServer {
         var java = change.settings.getAsJsonObject().get("java");
         LOG.info("Received java settings " + java);
         settings = java.getAsJsonObject();
+        if (settings.has("cacheSize")) {
+            Cache.setCapacity(settings.get("cacheSize").getAsInt());
+        }
+        if (settings.has("compilerPoolSize")) {
+            CompilerPool.setDefaultSize(settings.get("compilerPoolSize").getAsInt());
+        }
+        if (settings.has("referencesChunkHeap")) {
+            ReferenceProvider.setChunkHeapBudget(settings.get("referencesChunkHeap").getAsLong() * 1024 * 1024);
+        }
     }
 
     @Override
@@ -237,19 +379,24 @@ class JavaLanguageServer extends LanguageServer {
                 switch (c.type) {
                     case FileChangeType.Created:
                         FileStore.externalCreate(file);
+                        symbolIndex.changed(file);
                         break;
                     case FileChangeType.Changed:
                         FileStore.externalChange(file);
+                        symbolIndex.changed(file);
                         break;
                     case FileChangeType.Deleted:
                         FileStore.externalDelete(file);
+                        symbolIndex.remove(file);
                         break;
                 }
-                return;
+                continue;
             }
             var name = file.getFileName().toString();
             switch (name) {
                 case "BUILD":
+                case "WORKSPACE":
+                case "javaconfig.json":
                 case "pom.xml":
                     LOG.info("Compiler needs to be re-created because " + file + " has changed");
                     modifiedBuild = true;
@@ -318,26 +465,65 @@ class JavaLanguageServer extends LanguageServer {
         var file = Paths.get(position.textDocument.uri);
         var line = position.position.line + 1;
         var column = position.position.character + 1;
-        var found = new ReferenceProvider(compiler(), file, line, column).find();
+        var streamed = new AtomicBoolean();
+        ReferenceProvider.PartialResults partialResults =
+                (locations, filesDone, filesTotal) -> {
+                    if (position.partialResultToken != null) {
+                        streamed.set(true);
+                        if (!locations.isEmpty()) progress(position.partialResultToken, locations);
+                    }
+                    if (position.workDoneToken != null) {
+                        var message = String.format("%d of %d files", filesDone, filesTotal);
+                        var percentage = 100 * filesDone / filesTotal;
+                        progress(position.workDoneToken, new WorkDoneProgress("report", null, message, percentage));
+                    }
+                };
+        if (position.workDoneToken != null) {
+            progress(position.workDoneToken, new WorkDoneProgress("begin", "Find references", null, 0));
+        }
+        List<Location> found;
+        try {
+            found = new ReferenceProvider(compiler(), file, line, column, partialResults).find();
+        } finally {
+            if (position.workDoneToken != null) {
+                progress(position.workDoneToken, new WorkDoneProgress("end", null, null, null));
+            }
+        }
         if (found == ReferenceProvider.NOT_SUPPORTED) {
             return Optional.empty();
         }
+        // Once results have been sent as $/progress, the response itself has to be empty
+        if (streamed.get()) {
+            return Optional.of(List.of());
+        }
         return Optional.of(found);
     }
 
+    private void progress(JsonElement token, Object value) {
+        client.customNotification("$/progress", GSON.toJsonTree(new ProgressParams(token, GSON.toJsonTree(value))));
+    }
+
+    /**
+     * Parsing doesn't depend on the class path, so requests that only need a syntax tree use the parser directly instead
+     * of waiting for compiler() to infer the class path.
+     */
+    private ParseTask parse(Path file) {
+        var parser = Parser.parseFile(file);
+        return new ParseTask(parser.task, parser.root);
+    }
+
     @Override
     public List<SymbolInformation> documentSymbol(DocumentSymbolParams params) {
         if (!FileStore.isJavaFile(params.textDocument.uri)) return List.of();
         var file = Paths.get(params.textDocument.uri);
-        return new SymbolProvider(compiler()).documentSymbols(file);
+        return SymbolProvider.documentSymbols(parse(file));
     }
 
     @Override
     public List<CodeLens> codeLens(CodeLensParams params) {
         if (!FileStore.isJavaFile(params.textDocument.uri)) return List.of();
         var file = Paths.get(params.textDocument.uri);
-        var task = compiler().parse(file);
-        return CodeLensProvider.find(task);
+        return CodeLensProvider.find(parse(file));
     }
 
     @Override
@@ -360,7 +546,7 @@ class JavaLanguageServer extends LanguageServer {
     public List<FoldingRange> foldingRange(FoldingRangeParams params) {
         if (!FileStore.isJavaFile(params.textDocument.uri)) return List.of();
         var file = Paths.get(params.textDocument.uri);
-        return new FoldProvider(compiler()).foldingRanges(file);
+        return FoldProvider.foldingRanges(parse(file));
     }
 
     @Override
@@ -481,14 +667,16 @@ class JavaLanguageServer extends LanguageServer {
         return new RenameVariable(file, (int) position, newName);
     }
 
-    private boolean uncheckedChanges = false;
-    private Path lastEdited = Paths.get("");
+    // Set by document messages and cleared by doAsyncWork, which all run on worker threads
+    private volatile boolean uncheckedChanges = false;
+    private volatile Path lastEdited = Paths.get("");
 
     @Override
     public void didOpenTextDocument(DidOpenTextDocumentParams params) {
         FileStore.open(params);
         if (!FileStore.isJavaFile(params.textDocument.uri)) return;
         lastEdited = Paths.get(params.textDocument.uri);
+        symbolIndex.changed(lastEdited);
         uncheckedChanges = true;
     }
 
@@ -496,6 +684,7 @@ class JavaLanguageServer extends LanguageServer {
     public void didChangeTextDocument(DidChangeTextDocumentParams params) {
         FileStore.change(params);
         lastEdited = Paths.get(params.textDocument.uri);
+        if (FileStore.isJavaFile(lastEdited)) symbolIndex.changed(lastEdited);
         uncheckedChanges = true;
     }
 
@@ -504,6 +693,8 @@ class JavaLanguageServer extends LanguageServer {
         FileStore.close(params);
 
         if (FileStore.isJavaFile(params.textDocument.uri)) {
+            // The file on disk may not have the same symbols as the document
+            symbolIndex.changed(Paths.get(params.textDocument.uri));
             // Clear diagnostics
             client.publishDiagnostics(new PublishDiagnosticsParams(params.textDocument.uri, List.of()));
         }
@@ -530,8 +721,13 @@ class JavaLanguageServer extends LanguageServer {
     @Override
     public void doAsyncWork() {
         if (uncheckedChanges && FileStore.activeDocuments().contains(lastEdited)) {
-            lint(List.of(lastEdited));
+            // Edits can arrive while linting, and they need to be checked again afterwards
             uncheckedChanges = false;
+            lint(List.of(lastEdited));
+        }
+        var sinceSnapshot = Duration.between(lastSourcesSnapshot, Instant.now());
+        if (FileStore.modifiedSinceSnapshot() && sinceSnapshot.compareTo(Duration.ofMinutes(1)) > 0) {
+            saveSourcesSnapshot();
         }
     }
 
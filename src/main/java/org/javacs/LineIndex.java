@@ -0,0 +1,77 @@
+package org.javacs;
+
+import java.util.Arrays;
+import org.javacs.lsp.Position;
+import org.javacs.lsp.Range;
+
+/**
+ * LineIndex converts between offsets and LSP line/character positions in one version of a file, using a table of the
+ * offset where each line starts. Lines end with \n, \r\n or \r, the same as javac's LineMap, so positions agree with the
+ * ones javac reports. Line and character are 0-based, like in LSP.
+ */
+public class LineIndex {
+    /** lineStarts[line] is the offset of the first character of line */
+    private final int[] lineStarts;
+
+    private final int length;
+
+    private LineIndex(int[] lineStarts, int length) {
+        this.lineStarts = lineStarts;
+        this.length = length;
+    }
+
+    public static LineIndex of(CharSequence contents) {
+        var starts = new int[16];
+        var count = 1;
+        var length = contents.length();
+        for (var i = 0; i < length; i++) {
+            var c = contents.charAt(i);
+            if (c == '\r' && i + 1 < length && contents.charAt(i + 1) == '\n') {
+                i++;
+            } else if (c != '\r' && c != '\n') {
+                continue;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count++] = i + 1;
+        }
+        return new LineIndex(Arrays.copyOf(starts, count), length);
+    }
+
+    public int lineCount() {
+        return lineStarts.length;
+    }
+
+    /** The offset of `character` on `line`, clamped to the end of the file */
+    public int offset(int line, int character) {
+        if (line < 0) return 0;
+        if (line >= lineStarts.length) return length;
+        return Math.min(lineStarts[line] + character, length);
+    }
+
+    public int offset(Position position) {
+        return offset(position.line, position.character);
+    }
+
+    /** The line that contains `offset` */
+    public int line(int offset) {
+        var found = Arrays.binarySearch(lineStarts, offset);
+        if (found >= 0) return found;
+        // found is -(insertion point) - 1, and offset is on the line before the insertion point
+        return Math.max(0, -found - 2);
+    }
+
+    public int character(int offset) {
+        return offset - lineStarts[line(offset)];
+    }
+
+    public Position position(int offset) {
+        var line = line(offset);
+        return new Position(line, offset - lineStarts[line]);
+    }
+
+    public Range range(int start, int end) {
+        return new Range(position(start), position(end));
+    }
+}
@@ -0,0 +1,505 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * MavenResolver finds the dependencies of a Maven project by reading pom.xml files from the workspace and the local
+ * repository, without running Maven. It understands parent POMs, properties, dependencyManagement including imported
+ * BOMs, modules, optional dependencies and exclusions, and picks the nearest version of each artifact like Maven does.
+ *
+ * <p>When something can't be worked out from local files alone, for example a POM that has never been downloaded, a
+ * version range or a property that isn't defined anywhere, resolve(...) returns null and the caller runs Maven instead.
+ */
+class MavenResolver {
+    /** Thrown when the dependencies can't be resolved from local files, so Maven has to be run after all */
+    private static class Unresolvable extends RuntimeException {
+        Unresolvable(String message) {
+            super(message);
+        }
+    }
+
+    private static class Dependency {
+        String groupId, artifactId, version, type = "jar", classifier, scope, systemPath;
+        boolean optional;
+        List<String> exclusions = new ArrayList<>();
+
+        /** Dependencies are matched to dependencyManagement, and to each other, on this key */
+        String key() {
+            return groupId + ":" + artifactId + ":" + type + ":" + (classifier == null ? "" : classifier);
+        }
+    }
+
+    private static class Pom {
+        Path file;
+        String groupId, artifactId, version;
+        String parentGroupId, parentArtifactId, parentVersion, parentRelativePath;
+        Map<String, String> properties = new HashMap<>();
+        /** dependencies and managed are keyed by Dependency.key() */
+        LinkedHashMap<String, Dependency> dependencies = new LinkedHashMap<>(), managed = new LinkedHashMap<>();
+        List<String> modules = new ArrayList<>();
+    }
+
+    /** Where the local repository is, usually ~/.m2/repository */
+    private final Path repository;
+    /** InferConfig.findMavenJar */
+    private final BiFunction<Artifact, Boolean, Path> findJar;
+
+    private final Map<Path, Pom> parsed = new HashMap<>(), inherited = new HashMap<>(), effective = new HashMap<>();
+
+    MavenResolver(Path repository, BiFunction<Artifact, Boolean, Path> findJar) {
+        this.repository = repository;
+        this.findJar = findJar;
+    }
+
+    /**
+     * The jars of every dependency of `pomXml` and its modules, in every scope, or their source jars if `sources` is
+     * set. Returns null if the dependencies can't be resolved without running Maven.
+     */
+    Set<Path> resolve(Path pomXml, boolean sources) {
+        try {
+            var reactor = new LinkedHashMap<String, Pom>();
+            addModules(pomXml.toAbsolutePath().normalize(), reactor);
+            var jars = new LinkedHashSet<Path>();
+            for (var project : reactor.values()) {
+                jars.addAll(resolveProject(project, reactor, sources));
+            }
+            LOG.info(String.format("...resolved %d jars of %s from the local repository", jars.size(), pomXml));
+            return jars;
+        } catch (Unresolvable e) {
+            LOG.info("...can't resolve dependencies of " + pomXml + " without running maven: " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            // A POM we don't understand, for example one that is missing required elements. Maven will explain.
+            LOG.log(Level.WARNING, "Failed to resolve dependencies of " + pomXml, e);
+            return null;
+        }
+    }
+
+    /** Add `pomXml` and its modules, recursively, to `reactor` */
+    private void addModules(Path pomXml, Map<String, Pom> reactor) {
+        var project = effective(pomXml);
+        reactor.put(project.groupId + ":" + project.artifactId, project);
+        for (var name : project.modules) {
+            var module = pomXml.getParent().resolve(name);
+            if (Files.isDirectory(module)) module = module.resolve("pom.xml");
+            if (!Files.exists(module)) throw new Unresolvable("module " + module + " doesn't exist");
+            addModules(module.normalize(), reactor);
+        }
+    }
+
+    /** A dependency that has been reached from the project, and the exclusions along the way */
+    private static class Reached {
+        final Dependency dependency;
+        final Set<String> exclusions;
+
+        Reached(Dependency dependency, Set<String> exclusions) {
+            this.dependency = dependency;
+            this.exclusions = exclusions;
+        }
+
+        boolean excludes(Dependency d) {
+            return exclusions.contains(d.groupId + ":" + d.artifactId)
+                    || exclusions.contains(d.groupId + ":*")
+                    || exclusions.contains("*:*");
+        }
+    }
+
+    /** Find the jars of the transitive dependencies of `project`, breadth-first so the nearest version wins */
+    private List<Path> resolveProject(Pom project, Map<String, Pom> reactor, boolean sources) {
+        var jars = new ArrayList<Path>();
+        var seen = new HashSet<String>();
+        var queue = new ArrayDeque<Reached>();
+        for (var d : project.dependencies.values()) {
+            queue.add(new Reached(d, new HashSet<>(d.exclusions)));
+        }
+        while (!queue.isEmpty()) {
+            var next = queue.poll();
+            var d = next.dependency;
+            if (!seen.add(d.key())) continue;
+            Pom pom;
+            var module = reactor.get(d.groupId + ":" + d.artifactId);
+            if (module != null) {
+                // Other modules of this project are compiled from source, but their dependencies still count
+                pom = module;
+            } else if (d.scope.equals("system")) {
+                if (d.systemPath == null) throw new Unresolvable(d.key() + " has system scope but no systemPath");
+                if (!sources) jars.add(Paths.get(d.systemPath));
+                continue;
+            } else {
+                var jar = jar(d, sources);
+                if (jar != null) jars.add(jar);
+                pom = dependencyPom(d);
+                if (pom == null) continue;
+            }
+            for (var t : pom.dependencies.values()) {
+                // Test and provided dependencies of dependencies aren't needed, and neither are optional ones
+                if (t.optional || t.scope.equals("test") || t.scope.equals("provided")) continue;
+                if (next.excludes(t)) continue;
+                var reached = copy(t);
+                // The project's dependencyManagement overrides the versions its dependencies ask for
+                var managed = project.managed.get(t.key());
+                var exclusions = new HashSet<String>(next.exclusions);
+                exclusions.addAll(t.exclusions);
+                if (managed != null) {
+                    if (managed.version != null) reached.version = managed.version;
+                    exclusions.addAll(managed.exclusions);
+                }
+                // Scopes only decide which transitive dependencies are kept, and every scope is on the class path
+                reached.scope = d.scope;
+                queue.add(new Reached(reached, exclusions));
+            }
+        }
+        return jars;
+    }
+
+    private static Dependency copy(Dependency d) {
+        var copy = new Dependency();
+        copy.groupId = d.groupId;
+        copy.artifactId = d.artifactId;
+        copy.version = d.version;
+        copy.type = d.type;
+        copy.classifier = d.classifier;
+        copy.scope = d.scope;
+        copy.systemPath = d.systemPath;
+        copy.optional = d.optional;
+        copy.exclusions = new ArrayList<>(d.exclusions);
+        return copy;
+    }
+
+    /** The jar of `d` in the local repository, or null if `d` isn't packaged as a jar */
+    private Path jar(Dependency d, boolean sources) {
+        var classifier = d.classifier;
+        switch (d.type) {
+            case "jar":
+            case "bundle":
+            case "ejb":
+            case "maven-plugin":
+                break;
+            case "test-jar":
+                if (classifier == null) classifier = "tests";
+                break;
+            default:
+                // pom dependencies only bring in their own dependencies, and wars, zips etc. can't be compiled against
+                return null;
+        }
+        checkVersion(d);
+        if (classifier == null) {
+            var found = findJar.apply(new Artifact(d.groupId, d.artifactId, d.version), sources);
+            if (!Files.isRegularFile(found)) throw new Unresolvable(d.key() + " is not in the local repository");
+            return found;
+        }
+        if (sources) classifier = classifier.equals("tests") ? "test-sources" : "sources";
+        var jar = artifactDir(d.groupId, d.artifactId, d.version)
+                .resolve(d.artifactId + "-" + d.version + "-" + classifier + ".jar");
+        if (!Files.isRegularFile(jar)) throw new Unresolvable(jar + " is not in the local repository");
+        return jar;
+    }
+
+    /** The POM of `d` from the local repository, or null if `d` was installed without one */
+    private Pom dependencyPom(Dependency d) {
+        checkVersion(d);
+        var file = artifactDir(d.groupId, d.artifactId, d.version).resolve(d.artifactId + "-" + d.version + ".pom");
+        if (!Files.exists(file)) {
+            if (d.type.equals("pom")) throw new Unresolvable(file + " is not in the local repository");
+            // Maven also carries on without the dependencies of an artifact whose POM is missing
+            LOG.warning("The POM of " + d.key() + " is missing, no dependency information available");
+            return null;
+        }
+        return effective(file);
+    }
+
+    private static void checkVersion(Dependency d) {
+        if (d.version == null) throw new Unresolvable(d.key() + " has no version");
+        if (d.version.startsWith("[") || d.version.startsWith("(")) {
+            throw new Unresolvable(d.key() + " has version range " + d.version);
+        }
+    }
+
+    private Path artifactDir(String groupId, String artifactId, String version) {
+        return repository.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve(version);
+    }
+
+    private Path repositoryPom(String groupId, String artifactId, String version) {
+        var file = artifactDir(groupId, artifactId, version).resolve(artifactId + "-" + version + ".pom");
+        if (!Files.exists(file)) throw new Unresolvable(file + " is not in the local repository");
+        return file;
+    }
+
+    /**
+     * The model of `file` after inheriting from its parents, interpolating properties, importing BOMs and filling in
+     * the versions and scopes of its dependencies from dependencyManagement.
+     */
+    private Pom effective(Path file) {
+        var cached = effective.get(file);
+        if (cached != null) return cached;
+        var raw = inherited(file);
+        var pom = new Pom();
+        pom.file = file;
+        pom.artifactId = raw.artifactId;
+        pom.groupId = interpolate(raw.groupId, raw.properties);
+        pom.version = interpolate(raw.version, raw.properties);
+        pom.properties = new HashMap<>(raw.properties);
+        for (var prefix : List.of("project.", "pom.")) {
+            pom.properties.put(prefix + "groupId", pom.groupId);
+            pom.properties.put(prefix + "artifactId", pom.artifactId);
+            pom.properties.put(prefix + "version", pom.version);
+            pom.properties.put(prefix + "basedir", file.getParent().toString());
+        }
+        pom.properties.put("basedir", file.getParent().toString());
+        if (raw.parentVersion != null) {
+            pom.properties.put("project.parent.groupId", interpolate(raw.parentGroupId, raw.properties));
+            pom.properties.put("project.parent.version", interpolate(raw.parentVersion, raw.properties));
+            pom.properties.put("parent.version", interpolate(raw.parentVersion, raw.properties));
+        }
+        var imports = new ArrayList<Pom>();
+        for (var d : raw.managed.values()) {
+            var m = interpolate(d, pom.properties);
+            if ("import".equals(m.scope) && m.type.equals("pom")) {
+                imports.add(effective(repositoryPom(m.groupId, m.artifactId, m.version)));
+                continue;
+            }
+            pom.managed.put(m.key(), m);
+        }
+        // Managed versions declared in the project win over imported ones, and earlier imports win over later ones
+        for (var bom : imports) {
+            for (var m : bom.managed.values()) {
+                pom.managed.putIfAbsent(m.key(), m);
+            }
+        }
+        for (var d : raw.dependencies.values()) {
+            var i = interpolate(d, pom.properties);
+            var m = pom.managed.get(i.key());
+            if (m != null) {
+                if (i.version == null) i.version = m.version;
+                if (i.scope == null) i.scope = m.scope;
+                if (i.exclusions.isEmpty()) i.exclusions.addAll(m.exclusions);
+                if (i.systemPath == null) i.systemPath = m.systemPath;
+            }
+            if (i.scope == null) i.scope = "compile";
+            pom.dependencies.put(i.key(), i);
+        }
+        pom.modules = raw.modules;
+        effective.put(file, pom);
+        return pom;
+    }
+
+    /** The model of `file` merged with the models of its parents, before interpolation */
+    private Pom inherited(Path file) {
+        var cached = inherited.get(file);
+        if (cached != null) return cached;
+        var child = parse(file);
+        if (child.parentArtifactId == null) {
+            inherited.put(file, child);
+            return child;
+        }
+        var parent = inherited(parentFile(child));
+        var pom = new Pom();
+        pom.file = file;
+        pom.groupId = child.groupId != null ? child.groupId : parent.groupId;
+        pom.artifactId = child.artifactId;
+        pom.version = child.version != null ? child.version : parent.version;
+        pom.parentGroupId = child.parentGroupId;
+        pom.parentArtifactId = child.parentArtifactId;
+        pom.parentVersion = child.parentVersion;
+        pom.properties.putAll(parent.properties);
+        pom.properties.putAll(child.properties);
+        pom.managed.putAll(parent.managed);
+        pom.managed.putAll(child.managed);
+        pom.dependencies.putAll(parent.dependencies);
+        pom.dependencies.putAll(child.dependencies);
+        // Modules aren't inherited
+        pom.modules = child.modules;
+        inherited.put(file, pom);
+        return pom;
+    }
+
+    /** Find the parent of `child`, next to it in the workspace if it's there, otherwise in the local repository */
+    private Path parentFile(Pom child) {
+        var groupId = interpolate(child.parentGroupId, child.properties);
+        var version = interpolate(child.parentVersion, child.properties);
+        var relativePath = child.parentRelativePath == null ? "../pom.xml" : child.parentRelativePath;
+        if (!relativePath.isEmpty()) {
+            var candidate = child.file.getParent().resolve(relativePath).normalize();
+            if (Files.isDirectory(candidate)) candidate = candidate.resolve("pom.xml");
+            if (Files.exists(candidate)) {
+                var parent = parse(candidate);
+                var parentGroupId = parent.groupId != null ? parent.groupId : parent.parentGroupId;
+                var parentVersion = parent.version != null ? parent.version : parent.parentVersion;
+                if (groupId.equals(parentGroupId)
+                        && child.parentArtifactId.equals(parent.artifactId)
+                        && version.equals(parentVersion)) {
+                    return candidate;
+                }
+            }
+        }
+        return repositoryPom(groupId, child.parentArtifactId, version);
+    }
+
+    private static Dependency interpolate(Dependency d, Map<String, String> properties) {
+        var i = copy(d);
+        i.groupId = interpolate(d.groupId, properties);
+        i.artifactId = interpolate(d.artifactId, properties);
+        i.version = interpolate(d.version, properties);
+        i.type = interpolate(d.type, properties);
+        i.classifier = interpolate(d.classifier, properties);
+        i.scope = interpolate(d.scope, properties);
+        i.systemPath = interpolate(d.systemPath, properties);
+        return i;
+    }
+
+    /** Replace ${name} in `value` with properties, system properties and environment variables */
+    private static String interpolate(String value, Map<String, String> properties) {
+        if (value == null) return null;
+        // Properties can refer to other properties, but not forever
+        for (var depth = 0; depth < 10 && value.contains("${"); depth++) {
+            var result = new StringBuilder();
+            var i = 0;
+            while (i < value.length()) {
+                var start = value.indexOf("${", i);
+                var end = start == -1 ? -1 : value.indexOf('}', start);
+                if (end == -1) {
+                    result.append(value, i, value.length());
+                    break;
+                }
+                var name = value.substring(start + 2, end);
+                var replacement = properties.get(name);
+                if (replacement == null) replacement = System.getProperty(name);
+                if (replacement == null && name.startsWith("env.")) replacement = System.getenv(name.substring(4));
+                if (replacement == null) throw new Unresolvable("property ${" + name + "} is not defined");
+                result.append(value, i, start).append(replacement);
+                i = end + 1;
+            }
+            value = result.toString();
+        }
+        if (value.contains("${")) throw new Unresolvable("properties in " + value + " refer to each other");
+        return value;
+    }
+
+    /** Read the parts of `file` that affect dependencies, without interpolating anything */
+    private Pom parse(Path file) {
+        var cached = parsed.get(file);
+        if (cached != null) return cached;
+        Element project;
+        try {
+            var factory = DocumentBuilderFactory.newInstance();
+            factory.setExpandEntityReferences(false);
+            factory.setXIncludeAware(false);
+            project = factory.newDocumentBuilder().parse(file.toFile()).getDocumentElement();
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new Unresolvable("can't read " + file + ": " + e.getMessage());
+        }
+        var pom = new Pom();
+        pom.file = file;
+        pom.groupId = text(project, "groupId");
+        pom.artifactId = text(project, "artifactId");
+        pom.version = text(project, "version");
+        var parent = child(project, "parent");
+        if (parent != null) {
+            pom.parentGroupId = text(parent, "groupId");
+            pom.parentArtifactId = text(parent, "artifactId");
+            pom.parentVersion = text(parent, "version");
+            var relativePath = child(parent, "relativePath");
+            if (relativePath != null) pom.parentRelativePath = relativePath.getTextContent().trim();
+        }
+        readSection(project, pom);
+        // Profiles that are active by default are merged in. Other activations depend on the machine Maven runs on,
+        // and when one of them is active it also turns off the profiles that are active by default.
+        var profiles = child(project, "profiles");
+        if (profiles != null) {
+            for (var profile : children(profiles, "profile")) {
+                var activation = child(profile, "activation");
+                if (activation == null) continue;
+                for (var condition : children(activation, null)) {
+                    if (!condition.getTagName().equals("activeByDefault")) {
+                        var id = text(profile, "id");
+                        var activatedBy = condition.getTagName();
+                        throw new Unresolvable("profile " + id + " in " + file + " is activated by " + activatedBy);
+                    }
+                }
+                if ("true".equals(text(activation, "activeByDefault"))) {
+                    readSection(profile, pom);
+                }
+            }
+        }
+        parsed.put(file, pom);
+        return pom;
+    }
+
+    /** Read the properties, modules, dependencyManagement and dependencies of a project or profile */
+    private static void readSection(Element section, Pom pom) {
+        var properties = child(section, "properties");
+        if (properties != null) {
+            for (var p : children(properties, null)) {
+                pom.properties.put(p.getTagName(), p.getTextContent().trim());
+            }
+        }
+        var modules = child(section, "modules");
+        if (modules != null) {
+            for (var m : children(modules, "module")) {
+                pom.modules.add(m.getTextContent().trim());
+            }
+        }
+        var management = child(section, "dependencyManagement");
+        if (management != null) {
+            readDependencies(child(management, "dependencies"), pom.managed);
+        }
+        readDependencies(child(section, "dependencies"), pom.dependencies);
+    }
+
+    private static void readDependencies(Element dependencies, Map<String, Dependency> into) {
+        if (dependencies == null) return;
+        for (var e : children(dependencies, "dependency")) {
+            var d = new Dependency();
+            d.groupId = text(e, "groupId");
+            d.artifactId = text(e, "artifactId");
+            d.version = text(e, "version");
+            var type = text(e, "type");
+            if (type != null) d.type = type;
+            d.classifier = text(e, "classifier");
+            d.scope = text(e, "scope");
+            d.systemPath = text(e, "systemPath");
+            d.optional = "true".equals(text(e, "optional"));
+            var exclusions = child(e, "exclusions");
+            if (exclusions != null) {
+                for (var x : children(exclusions, "exclusion")) {
+                    d.exclusions.add(text(x, "groupId") + ":" + text(x, "artifactId"));
+                }
+            }
+            into.put(d.key(), d);
+        }
+    }
+
+    /** The child elements of `parent` named `name`, or all of them if `name` is null */
+    private static List<Element> children(Element parent, String name) {
+        var found = new ArrayList<Element>();
+        for (var n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() != Node.ELEMENT_NODE) continue;
+            var e = (Element) n;
+            if (name == null || e.getTagName().equals(name)) found.add(e);
+        }
+        return found;
+    }
+
+    private static Element child(Element parent, String name) {
+        var found = children(parent, name);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private static String text(Element parent, String name) {
+        var e = child(parent, name);
+        if (e == null) return null;
+        return e.getTextContent().trim();
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
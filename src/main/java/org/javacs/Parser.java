@@ -4,9 +4,12 @@ import com.sun.source.doctree.DocCommentTree;
 import com.sun.source.tree.*;
 import com.sun.source.util.*;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.lang.model.element.*;
@@ -50,28 +53,146 @@ class Parser {
         return parseJavaFileObject(new SourceFileObject(file));
     }
 
-    private static Parser cachedParse;
-    private static long cachedModified = -1;
+    /**
+     * Parse-only features like code lenses, folding and document symbols run over and over on every open editor, so we
+     * keep the most recently used parses. Each one holds a javac context besides its tree, so the cache is bounded both
+     * by the number of parses and by the total size of their sources.
+     */
+    private static final int MAX_CACHED_PARSES = 8;
+
+    private static final int MAX_CACHED_SOURCE = 2 * 1024 * 1024;
+
+    /**
+     * A parse of one version of a file. The first thread that asks for it parses the file outside the lock, and threads
+     * that ask for the same version in the meantime wait for that parse rather than starting their own.
+     */
+    private static class CachedParse {
+        final JavaFileObject file;
+        /** The version of the file that was parsed, see version(file) */
+        final long version;
+        final CompletableFuture<Parser> parser = new CompletableFuture<>();
+        /** The length of the parsed source, or 0 until the parse is finished */
+        long size;
+
+        CachedParse(JavaFileObject file, long version) {
+            this.file = file;
+            this.version = version;
+        }
+    }
+
+    // Everything below is guarded by cachedParses
+    /** cachedParses[uri] is the last parse of uri, in access order, so the first entry is the least-recently used */
+    private static final LinkedHashMap<URI, CachedParse> cachedParses = new LinkedHashMap<>(16, 0.75f, true);
+    /** The total length of the sources in cachedParses */
+    private static long cachedSource;
+
+    private static long hits, misses;
+
+    /**
+     * A number that changes whenever the contents of `file` change. Edits to open documents can arrive within the same
+     * millisecond, so files in FileStore use the full precision of their modified time.
+     */
+    private static long version(JavaFileObject file) {
+        if (file instanceof SourceFileObject) {
+            var source = (SourceFileObject) file;
+            var modified = source.contents != null ? source.modified : FileStore.modified(source.path);
+            if (modified == null) return 0;
+            return modified.getEpochSecond() * 1_000_000_000L + modified.getNano();
+        }
+        return file.getLastModified();
+    }
 
-    private static boolean needsParse(JavaFileObject file) {
-        if (cachedParse == null) return true;
-        if (!cachedParse.file.equals(file)) return true;
-        if (file.getLastModified() > cachedModified) return true;
-        return false;
+    /** Files with contents supplied by the caller, like the pruned copies that completion makes, aren't worth keeping */
+    private static boolean isCacheable(JavaFileObject file) {
+        return !(file instanceof SourceFileObject) || ((SourceFileObject) file).contents == null;
     }
 
-    private static void loadParse(JavaFileObject file) {
-        cachedParse = new Parser(file);
-        cachedModified = file.getLastModified();
+    /** Parse `file` without caching it, for one-off uses that would only push useful parses out of the cache */
+    static Parser parseOnce(Path file) {
+        CancelToken.checkCancelled();
+        return new Parser(new SourceFileObject(file));
     }
 
+    /**
+     * Only the cache lookup and update hold the lock, so parses of different files run in parallel, and never hold up the
+     * erasures that every pooled compiler does with parseOnce.
+     */
     static Parser parseJavaFileObject(JavaFileObject file) {
-        if (needsParse(file)) {
-            loadParse(file);
-        } else {
-            LOG.info("...using cached parse");
+        CancelToken.checkCancelled();
+        if (!isCacheable(file)) {
+            return new Parser(file);
+        }
+        var uri = file.toUri();
+        var version = version(file);
+        CachedParse entry;
+        boolean first;
+        synchronized (cachedParses) {
+            var cached = cachedParses.get(uri);
+            first = cached == null || !cached.file.equals(file) || cached.version != version;
+            if (first) {
+                misses++;
+                if (cached != null) {
+                    removeParse(uri);
+                }
+                entry = new CachedParse(file, version);
+                cachedParses.put(uri, entry);
+            } else {
+                hits++;
+                LOG.info(String.format("...using cached parse (%d hits, %d misses)", hits, misses));
+                entry = cached;
+            }
+        }
+        if (!first) {
+            return await(entry);
+        }
+        Parser parser;
+        try {
+            parser = new Parser(file);
+        } catch (RuntimeException e) {
+            synchronized (cachedParses) {
+                if (cachedParses.get(uri) == entry) removeParse(uri);
+            }
+            entry.parser.completeExceptionally(e);
+            throw e;
         }
-        return cachedParse;
+        entry.parser.complete(parser);
+        synchronized (cachedParses) {
+            // Another thread may have replaced this parse with a newer version while we were working on it
+            if (cachedParses.get(uri) == entry) {
+                entry.size = parser.contents.length();
+                cachedSource += entry.size;
+                evictParses(entry);
+            }
+        }
+        return parser;
+    }
+
+    /** Wait for a parse that another thread started, and fail the same way it did */
+    private static Parser await(CachedParse cached) {
+        try {
+            return cached.parser.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /** Evict least-recently-used parses until the cache is within its bounds, but always keep `keep` */
+    private static void evictParses(CachedParse keep) {
+        var it = cachedParses.values().iterator();
+        while (cachedParses.size() > 1
+                && (cachedParses.size() > MAX_CACHED_PARSES || cachedSource > MAX_CACHED_SOURCE)
+                && it.hasNext()) {
+            var eldest = it.next();
+            if (eldest == keep) continue;
+            it.remove();
+            cachedSource -= eldest.size;
+        }
+    }
+
+    private static void removeParse(URI uri) {
+        var removed = cachedParses.remove(uri);
+        cachedSource -= removed.size;
     }
 
     Set<Name> packagePrivateClasses() {
@@ -0,0 +1,254 @@
+package org.javacs;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * ReferenceIndex remembers which classes and members each file declares or refers to, as of the last time the file was
+ * analyzed without errors. Find-references and rename use it to narrow down the files they have to compile. Files that
+ * have changed since they were indexed, or haven't been analyzed yet, have to be searched as text instead.
+ *
+ * <p>A reference is resolved against the files that declare what it uses, so a file also goes stale when one of those
+ * changes. For example, if B calls a.foo() and foo is inherited from Base, B refers to Base#foo until A overrides foo,
+ * and then it refers to A#foo. So each entry remembers the version of the files that declare the classes it uses,
+ * including the supertypes of the receivers of its member references, and of the classes it declares.
+ *
+ * <p>Symbols are named the same way as in CompilerProvider.findTypeReferences and findMemberReferences: a class by its
+ * qualified name, and a member by className#memberName, where constructors are named after their class.
+ */
+class ReferenceIndex {
+    private static class Entry {
+        final Instant modified;
+        final Set<String> symbols;
+        /** The version of each other workspace file that the symbols were resolved against */
+        final Map<Path, Instant> dependencies;
+
+        Entry(Instant modified, Set<String> symbols, Map<Path, Instant> dependencies) {
+            this.modified = modified;
+            this.symbols = symbols;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /** files[file] is the version of file that was indexed, and the symbols it declares or refers to */
+    private final Map<Path, Entry> files = new HashMap<>();
+    /** referencedBy[symbol] is every indexed file whose entry contains symbol, whether or not the entry is fresh */
+    private final Map<String, Set<Path>> referencedBy = new HashMap<>();
+
+    static String typeSymbol(String className) {
+        return className;
+    }
+
+    static String memberSymbol(String className, String memberName) {
+        return className + "#" + memberName;
+    }
+
+    /** True if `file` was indexed at the version that is in FileStore right now, against its current dependencies */
+    synchronized boolean isFresh(Path file) {
+        var entry = files.get(file);
+        if (entry == null || !entry.modified.equals(FileStore.modified(file))) return false;
+        for (var d : entry.dependencies.entrySet()) {
+            if (!d.getValue().equals(FileStore.modified(d.getKey()))) return false;
+        }
+        return true;
+    }
+
+    /** The indexed files that declare or refer to `symbol`. Some of them may be stale, so check isFresh. */
+    synchronized Set<Path> referencedBy(String symbol) {
+        var found = referencedBy.get(symbol);
+        if (found == null) return Set.of();
+        return new HashSet<>(found);
+    }
+
+    synchronized int size() {
+        return files.size();
+    }
+
+    synchronized void clear() {
+        files.clear();
+        referencedBy.clear();
+    }
+
+    /**
+     * Index `root`, which was analyzed by `task` from the `modified` version of `file`. `versions` has the version of the
+     * other files in the same batch that javac read from FileStore, and `stubs` are the signature stubs it may have read
+     * instead of sources.
+     */
+    void update(
+            Path file,
+            Instant modified,
+            CompilationUnitTree root,
+            JavacTask task,
+            Map<Path, Instant> versions,
+            SignatureStubs stubs) {
+        var find = new FindSymbols(task, versions, stubs);
+        find.scan(root, null);
+        find.dependencies.remove(file);
+        update(file, modified, find.symbols, find.dependencies);
+    }
+
+    synchronized void update(Path file, Instant modified, Set<String> symbols, Map<Path, Instant> dependencies) {
+        var old = files.put(file, new Entry(modified, symbols, dependencies));
+        if (old != null) {
+            for (var symbol : old.symbols) {
+                var found = referencedBy.get(symbol);
+                if (found == null) continue;
+                found.remove(file);
+                if (found.isEmpty()) referencedBy.remove(symbol);
+            }
+        }
+        for (var symbol : symbols) {
+            referencedBy.computeIfAbsent(symbol, __ -> new HashSet<>()).add(file);
+        }
+    }
+
+    /**
+     * Collects the symbol of every class and member that is referenced or declared in a file, and the workspace files
+     * they were resolved against
+     */
+    private static class FindSymbols extends TreePathScanner<Void, Void> {
+        private final Trees trees;
+        private final Elements elements;
+        private final Types types;
+        private final Map<Path, Instant> versions;
+        private final SignatureStubs stubs;
+        final Set<String> symbols = new HashSet<>();
+        final Map<Path, Instant> dependencies = new HashMap<>();
+        private final Set<TypeElement> visitedTypes = new HashSet<>();
+
+        FindSymbols(JavacTask task, Map<Path, Instant> versions, SignatureStubs stubs) {
+            this.trees = Trees.instance(task);
+            this.elements = task.getElements();
+            this.types = task.getTypes();
+            this.versions = versions;
+            this.stubs = stubs;
+        }
+
+        private void add() {
+            var element = trees.getElement(getCurrentPath());
+            var symbol = symbol(element);
+            if (symbol == null) return;
+            symbols.add(symbol);
+            // symbol(...) only names classes and members of classes
+            var declaringClass = element instanceof TypeElement ? element : element.getEnclosingElement();
+            addDependency((TypeElement) declaringClass);
+        }
+
+        /** The file that declares `type`, and the version of it that javac read, if it's in the workspace */
+        private void addDependency(TypeElement type) {
+            // Classes that failed to resolve don't have a file
+            if (type.asType().getKind() != TypeKind.DECLARED) return;
+            var file = elements.getFileObjectOf(type);
+            if (file == null) return;
+            var uri = file.toUri();
+            Path source;
+            if (uri.getScheme().equals("stub")) {
+                source = stubs.source(uri);
+            } else if (uri.getScheme().equals("file") && FileStore.isJavaFile(uri)) {
+                source = Paths.get(uri);
+            } else {
+                return;
+            }
+            if (source == null || !FileStore.contains(source)) return;
+            // Stubs are only used while they match FileStore, and so are erased sources
+            var modified = versions.get(source);
+            if (modified == null) modified = FileStore.modified(source);
+            if (modified != null) dependencies.put(source, modified);
+        }
+
+        /** `type` and its supertypes, which decide which member a reference through `type` resolves to */
+        private void addHierarchy(TypeMirror type) {
+            if (!(type instanceof DeclaredType)) return;
+            var element = (TypeElement) ((DeclaredType) type).asElement();
+            if (!visitedTypes.add(element)) return;
+            addDependency(element);
+            for (var parent : types.directSupertypes(type)) {
+                addHierarchy(parent);
+            }
+        }
+
+        private void addReceiver(ExpressionTree receiver) {
+            addHierarchy(trees.getTypeMirror(new TreePath(getCurrentPath(), receiver)));
+        }
+
+        @Override
+        public Void visitIdentifier(IdentifierTree t, Void __) {
+            add();
+            return super.visitIdentifier(t, null);
+        }
+
+        @Override
+        public Void visitMemberSelect(MemberSelectTree t, Void __) {
+            add();
+            addReceiver(t.getExpression());
+            return super.visitMemberSelect(t, null);
+        }
+
+        @Override
+        public Void visitNewClass(NewClassTree t, Void __) {
+            add();
+            return super.visitNewClass(t, null);
+        }
+
+        @Override
+        public Void visitMemberReference(MemberReferenceTree t, Void __) {
+            add();
+            addReceiver(t.getQualifierExpression());
+            return super.visitMemberReference(t, null);
+        }
+
+        @Override
+        public Void visitClass(ClassTree t, Void __) {
+            add();
+            // Unqualified calls to inherited methods resolve through the supertypes of the class
+            var element = trees.getElement(getCurrentPath());
+            if (element != null) addHierarchy(element.asType());
+            return super.visitClass(t, null);
+        }
+
+        @Override
+        public Void visitMethod(MethodTree t, Void __) {
+            add();
+            return super.visitMethod(t, null);
+        }
+
+        @Override
+        public Void visitVariable(VariableTree t, Void __) {
+            add();
+            return super.visitVariable(t, null);
+        }
+    }
+
+    private static String symbol(Element element) {
+        if (element == null) return null;
+        if (element instanceof TypeElement) {
+            var name = ((TypeElement) element).getQualifiedName();
+            // Anonymous and local classes can't be found from other files
+            if (name.length() == 0) return null;
+            return typeSymbol(name.toString());
+        }
+        var parent = element.getEnclosingElement();
+        if (!(parent instanceof TypeElement)) return null;
+        var className = ((TypeElement) parent).getQualifiedName().toString();
+        if (className.isEmpty()) return null;
+        if (element.getKind() == ElementKind.CONSTRUCTOR) {
+            return memberSymbol(className, parent.getSimpleName().toString());
+        }
+        return memberSymbol(className, element.getSimpleName().toString());
+    }
+}
@@ -80,10 +80,24 @@ class ReusableCompiler {
     private static final Logger LOG = Logger.getLogger("main");
     private static final JavacTool systemProvider = JavacTool.create();
 
+    /**
+     * The file manager that tasks from this compiler should use, or null for the standard one. File managers aren't
+     * thread-safe, so compilers that run at the same time each need their own.
+     */
+    final JavaFileManager fileManager;
+
     private List<String> currentOptions = new ArrayList<>();
     private ReusableContext currentContext;
     private boolean checkedOut;
 
+    ReusableCompiler() {
+        this(null);
+    }
+
+    ReusableCompiler(JavaFileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
     /**
      * Creates a new task as if by {@link javax.tools.JavaCompiler#getTask} and runs the provided worker with it. The
      * task is only valid while the worker is running. The internal structures may be reused from some previous
@@ -0,0 +1,212 @@
+package org.javacs;
+
+/**
+ * Rope is an immutable string, stored as a balanced tree of chunks. Replacing a range creates a new rope that shares
+ * every chunk outside the range with the old one, so editing a large document costs O(log n) instead of copying it.
+ * Each node also counts the line breaks beneath it, so line numbers and offsets can be converted without scanning the
+ * text. Lines end with \n, \r\n or \r, the same as in LineIndex.
+ *
+ * <p>A \r\n pair can be split between two chunks, so each chunk counts every \r, and every \n that doesn't follow a
+ * \r in the same chunk. A node whose left side ends with \r and whose right side starts with \n counts one less.
+ */
+final class Rope {
+    /** Chunks are at most this long, except when a single string is inserted whole */
+    private static final int MAX_LEAF = 1024;
+
+    static final Rope EMPTY = new Rope("");
+
+    /** The text of a leaf, or null if this is an internal node */
+    private final String leaf;
+
+    private final Rope left, right;
+    private final int length, newlines, height;
+    /** The text starts with \n or ends with \r, so it might be half of a \r\n pair */
+    private final boolean startsWithLf, endsWithCr;
+
+    private Rope(String leaf) {
+        this.leaf = leaf;
+        this.left = null;
+        this.right = null;
+        this.length = leaf.length();
+        this.newlines = countNewlines(leaf, leaf.length());
+        this.height = 0;
+        this.startsWithLf = !leaf.isEmpty() && leaf.charAt(0) == '\n';
+        this.endsWithCr = !leaf.isEmpty() && leaf.charAt(leaf.length() - 1) == '\r';
+    }
+
+    private Rope(Rope left, Rope right) {
+        this.leaf = null;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
+        this.newlines = left.newlines + right.newlines - (splitsCrLf(left, right) ? 1 : 0);
+        this.height = 1 + Math.max(left.height, right.height);
+        this.startsWithLf = left.startsWithLf;
+        this.endsWithCr = right.endsWithCr;
+    }
+
+    static Rope of(String text) {
+        if (text.isEmpty()) return EMPTY;
+        return build(text, 0, text.length());
+    }
+
+    private static Rope build(String text, int start, int end) {
+        if (end - start <= MAX_LEAF) {
+            return new Rope(text.substring(start, end));
+        }
+        var mid = (start + end) >>> 1;
+        // Don't split a surrogate pair across chunks
+        if (Character.isLowSurrogate(text.charAt(mid))) mid++;
+        return new Rope(build(text, start, mid), build(text, mid, end));
+    }
+
+    int length() {
+        return length;
+    }
+
+    /** The number of line breaks in the text, which is one less than the number of lines */
+    int newlines() {
+        return newlines;
+    }
+
+    /** Replace the characters in [start, end) with `text` */
+    Rope replace(int start, int end, String text) {
+        if (start < 0 || start > end || end > length) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) is not in [0, %d)", start, end, length));
+        }
+        return concat(concat(prefix(start), of(text)), suffix(end));
+    }
+
+    /** The first `n` characters */
+    private Rope prefix(int n) {
+        if (n <= 0) return EMPTY;
+        if (n >= length) return this;
+        if (leaf != null) return new Rope(leaf.substring(0, n));
+        if (n <= left.length) return left.prefix(n);
+        return concat(left, right.prefix(n - left.length));
+    }
+
+    /** Everything after the first `n` characters */
+    private Rope suffix(int n) {
+        if (n <= 0) return this;
+        if (n >= length) return EMPTY;
+        if (leaf != null) return new Rope(leaf.substring(n));
+        if (n >= left.length) return right.suffix(n - left.length);
+        return concat(left.suffix(n), right);
+    }
+
+    private static Rope concat(Rope a, Rope b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        // Merge small neighboring chunks, so a long series of small edits doesn't fragment the tree
+        if (a.leaf != null && b.leaf != null && a.length + b.length <= MAX_LEAF) {
+            return new Rope(a.leaf + b.leaf);
+        }
+        if (a.height > b.height + 1 || (a.leaf == null && b.leaf != null && b.length < MAX_LEAF / 2)) {
+            return balance(a.left, concat(a.right, b));
+        }
+        if (b.height > a.height + 1 || (b.leaf == null && a.leaf != null && a.length < MAX_LEAF / 2)) {
+            return balance(concat(a, b.left), b.right);
+        }
+        return new Rope(a, b);
+    }
+
+    /** Join `a` and `b`, whose heights differ by at most 2, into an AVL-balanced node */
+    private static Rope balance(Rope a, Rope b) {
+        if (a.height > b.height + 1) {
+            if (a.left.height >= a.right.height) {
+                return new Rope(a.left, new Rope(a.right, b));
+            }
+            return new Rope(new Rope(a.left, a.right.left), new Rope(a.right.right, b));
+        }
+        if (b.height > a.height + 1) {
+            if (b.right.height >= b.left.height) {
+                return new Rope(new Rope(a, b.left), b.right);
+            }
+            return new Rope(new Rope(a, b.left.left), new Rope(b.left.right, b.right));
+        }
+        return new Rope(a, b);
+    }
+
+    /** The offset of the first character of `line` (0-based), or length() if there is no such line */
+    int lineStart(int line) {
+        if (line <= 0) return 0;
+        if (line > newlines) return length;
+        var end = lineBreak(line);
+        if (charAt(end) == '\r' && end + 1 < length && charAt(end + 1) == '\n') end++;
+        return end + 1;
+    }
+
+    /** The offset of the character that counts as the n-th line break (1-based), where n <= newlines */
+    private int lineBreak(int n) {
+        if (leaf != null) {
+            for (var i = 0; ; i++) {
+                if (isLineBreak(leaf, i) && --n == 0) return i;
+            }
+        }
+        if (n <= left.newlines) return left.lineBreak(n);
+        // The \n that starts the right side doesn't count if it finishes a \r\n
+        if (splitsCrLf(left, right)) n++;
+        return left.length + right.lineBreak(n - left.newlines);
+    }
+
+    /** The line (0-based) that contains `offset` */
+    int lineOf(int offset) {
+        if (offset <= 0) return 0;
+        if (offset >= length) return newlines;
+        var line = lineBreaksBefore(offset);
+        // Between the \r and \n of a line break is still on the line it ends
+        if (charAt(offset - 1) == '\r' && charAt(offset) == '\n') line--;
+        return line;
+    }
+
+    /** The number of line breaks in the first `offset` characters, counting a \r\n pair at its \r */
+    private int lineBreaksBefore(int offset) {
+        if (leaf != null) return countNewlines(leaf, offset);
+        if (offset <= left.length) return left.lineBreaksBefore(offset);
+        var count = left.newlines + right.lineBreaksBefore(offset - left.length);
+        if (splitsCrLf(left, right)) count--;
+        return count;
+    }
+
+    private char charAt(int offset) {
+        if (leaf != null) return leaf.charAt(offset);
+        if (offset < left.length) return left.charAt(offset);
+        return right.charAt(offset - left.length);
+    }
+
+    @Override
+    public String toString() {
+        if (leaf != null) return leaf;
+        var out = new StringBuilder(length);
+        appendTo(out);
+        return out.toString();
+    }
+
+    private void appendTo(StringBuilder out) {
+        if (leaf != null) {
+            out.append(leaf);
+        } else {
+            left.appendTo(out);
+            right.appendTo(out);
+        }
+    }
+
+    private static boolean splitsCrLf(Rope left, Rope right) {
+        return left.endsWithCr && right.startsWithLf;
+    }
+
+    /** Every \r counts as a line break, and so does every \n that doesn't finish a \r\n in the same chunk */
+    private static boolean isLineBreak(String text, int i) {
+        var c = text.charAt(i);
+        return c == '\r' || (c == '\n' && (i == 0 || text.charAt(i - 1) != '\r'));
+    }
+
+    private static int countNewlines(String text, int end) {
+        var count = 0;
+        for (var i = 0; i < end; i++) {
+            if (isLineBreak(text, i)) count++;
+        }
+        return count;
+    }
+}
@@ -2,17 +2,18 @@ package org.javacs;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
-import org.javacs.guava.ClassPath;
 
 class ScanClassPath {
 
@@ -139,20 +140,16 @@ class ScanClassPath {
         return classes;
     }
 
+    /** The classes in every jar that has been on the class path, shared by every compiler */
+    static final JarIndex JARS = new JarIndex();
+
     static Set<String> classPathTopLevelClasses(Set<Path> classPath) {
         LOG.info(String.format("Searching for top-level classes in %d classpath locations", classPath.size()));
 
-        var urls = classPath.stream().map(ScanClassPath::toUrl).toArray(URL[]::new);
-        var classLoader = new URLClassLoader(urls, null);
-        ClassPath scanner;
-        try {
-            scanner = ClassPath.from(classLoader);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
         var classes = new HashSet<String>();
-        for (var c : scanner.getTopLevelClasses()) {
-            classes.add(c.getName());
+        var scanned = new HashSet<Path>();
+        for (var p : classPath) {
+            addTopLevelClasses(p, classes, scanned);
         }
 
         LOG.info(String.format("Found %d classes in classpath", classes.size()));
@@ -160,10 +157,48 @@ class ScanClassPath {
         return classes;
     }
 
-    private static URL toUrl(Path p) {
+    private static void addTopLevelClasses(Path location, Set<String> classes, Set<Path> scanned) {
+        Path real;
+        try {
+            real = location.toRealPath();
+        } catch (IOException e) {
+            // Doesn't exist
+            return;
+        }
+        if (!scanned.add(real)) return;
+        if (Files.isDirectory(real)) {
+            addTopLevelClassesInDirectory(real, classes);
+            return;
+        }
+        for (var p : JARS.manifestClassPath(real)) {
+            addTopLevelClasses(p, classes, scanned);
+        }
+        JARS.addTopLevelClasses(real, classes);
+    }
+
+    /** Directories are cheap to scan and can change at any time, so they aren't indexed */
+    private static void addTopLevelClassesInDirectory(Path root, Set<String> classes) {
+        var visitor =
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        var relative = root.relativize(file).toString();
+                        if (relative.endsWith(".class") && !relative.contains("$")) {
+                            var trim = relative.substring(0, relative.length() - ".class".length());
+                            classes.add(trim.replace(File.separatorChar, '.'));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        // Unreadable files and symlink cycles
+                        return FileVisitResult.CONTINUE;
+                    }
+                };
         try {
-            return p.toUri().toURL();
-        } catch (MalformedURLException e) {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -0,0 +1,325 @@
+package org.javacs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import javax.tools.*;
+
+/**
+ * SignatureStubs compiles every source file in the workspace to class files without method bodies, on a background
+ * thread, and keeps them in memory. SourceFileManager puts the stubs on the class path, so when the file being compiled
+ * refers to another file in the workspace, javac reads its stub instead of parsing and entering the source.
+ *
+ * <p>A stub is only served while its source is exactly the version it was compiled from. When a file changes, its
+ * stubs drop out, javac goes back to the source path for it, and the file is recompiled in the background.
+ */
+class SignatureStubs {
+    private static volatile boolean enabled = true;
+
+    static void setEnabled(boolean enabled) {
+        SignatureStubs.enabled = enabled;
+    }
+
+    /** Stale files are compiled in chunks of this many, so a big workspace isn't held in one javac task */
+    private static final int CHUNK_SIZE = 500;
+
+    /** Every instance shares one thread, so replacing the compiler doesn't pile up background compiles */
+    private static final ExecutorService background =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        var thread = new Thread(task, "signature-stubs");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+
+    /** A class file compiled from the erased version of `source` */
+    static class Stub extends SimpleJavaFileObject {
+        final String binaryName;
+        final Path source;
+        /** The version of source that this stub was compiled from */
+        final Instant modified;
+
+        private final byte[] bytes;
+
+        Stub(String binaryName, Path source, Instant modified, byte[] bytes) {
+            super(URI.create("stub:///" + binaryName.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.source = source;
+            this.modified = modified;
+            this.bytes = bytes;
+        }
+
+        boolean isFresh() {
+            return modified.equals(FileStore.modified(source));
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long getLastModified() {
+            // When javac finds a class file and a source file for the same class, it uses the source only if it's newer
+            return modified.toEpochMilli();
+        }
+    }
+
+    private final List<String> options;
+    /** stubs[packageName][binaryName] */
+    private final Map<String, Map<String, Stub>> stubs = new ConcurrentHashMap<>();
+    /** The version of each file that was last compiled, whether or not it produced any stubs */
+    private final Map<Path, Instant> compiled = new ConcurrentHashMap<>();
+    /**
+     * Files that have no errors of their own, but couldn't be compiled because a file they depend on has errors. They
+     * are compiled again the next time some other file changes, which may be the fix.
+     */
+    private final Map<Path, Instant> deferred = new ConcurrentHashMap<>();
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    SignatureStubs(Set<Path> classPath, Set<String> addExports) {
+        this.options = options(classPath, addExports);
+    }
+
+    private static List<String> options(Set<Path> classPath, Set<String> addExports) {
+        var list = new ArrayList<String>();
+        var joined = classPath.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator));
+        Collections.addAll(list, "-classpath", joined);
+        Collections.addAll(list, "--add-modules", "ALL-MODULE-PATH");
+        Collections.addAll(list, "-proc:none");
+        // Only generate classes for the files in each chunk; everything else comes from the source path
+        Collections.addAll(list, "-implicit:none");
+        // Keep parameter names, so signature help doesn't show arg0, arg1, ...
+        Collections.addAll(list, "-parameters", "-g");
+        Collections.addAll(list, "-nowarn", "-XDsuppressNotes");
+        // Report every error in one pass, so the files that have them can all be left out of the next attempt
+        Collections.addAll(list, "-XDshould-stop.ifError=FLOW", "-Xmaxerrs", String.valueOf(Integer.MAX_VALUE));
+        for (var export : addExports) {
+            list.add("--add-exports");
+            list.add(export + "=ALL-UNNAMED");
+        }
+        return list;
+    }
+
+    /** The fresh stubs in `packageName` */
+    List<Stub> list(String packageName) {
+        var inPackage = stubs.getOrDefault(packageName, Map.of());
+        var fresh = new ArrayList<Stub>(inPackage.size());
+        var stale = false;
+        for (var stub : inPackage.values()) {
+            if (stub.isFresh()) {
+                fresh.add(stub);
+            } else {
+                stale = true;
+            }
+        }
+        if (stale || hasNewFiles(packageName)) refreshInBackground();
+        return fresh;
+    }
+
+    /** True if FileStore knows about a file in `packageName` that has never been compiled, because it is new */
+    boolean hasNewFiles(String packageName) {
+        for (var file : FileStore.list(packageName)) {
+            if (!compiled.containsKey(file) && !deferred.containsKey(file)) return true;
+        }
+        return false;
+    }
+
+    /** The source file of the stub at `uri`, or null if there is no such stub */
+    Path source(URI uri) {
+        var path = uri.getPath();
+        if (!path.endsWith(JavaFileObject.Kind.CLASS.extension)) return null;
+        var binaryName = path.substring(1, path.length() - JavaFileObject.Kind.CLASS.extension.length()).replace('/', '.');
+        var inPackage = stubs.get(StringSearch.mostName(binaryName));
+        if (inPackage == null) return null;
+        var stub = inPackage.get(binaryName);
+        if (stub == null) return null;
+        return stub.source;
+    }
+
+    /** Bring the stubs up to date with the workspace on the background thread, unless that's already queued */
+    void refreshInBackground() {
+        if (!enabled || !refreshQueued.compareAndSet(false, true)) return;
+        background.execute(
+                () -> {
+                    refreshQueued.set(false);
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Failed to compile signature stubs", e);
+                    }
+                });
+    }
+
+    /** Compile every file that has changed since it was last compiled, and forget files that have been deleted */
+    void refresh() {
+        compiled.keySet().removeIf(file -> !FileStore.contains(file));
+        deferred.keySet().removeIf(file -> !FileStore.contains(file));
+        for (var inPackage : stubs.values()) {
+            inPackage.values().removeIf(stub -> !FileStore.contains(stub.source));
+        }
+        var stale = new ArrayList<Path>();
+        var changed = false;
+        for (var file : FileStore.all()) {
+            var modified = FileStore.modified(file);
+            if (modified != null && !modified.equals(compiled.get(file))) {
+                stale.add(file);
+                if (!modified.equals(deferred.get(file))) changed = true;
+            }
+        }
+        // Deferred files would fail the same way again if nothing else has changed
+        if (!changed) return;
+        LOG.info(String.format("Compiling signature stubs for %d files...", stale.size()));
+        var started = Instant.now();
+        for (var i = 0; i < stale.size(); i += CHUNK_SIZE) {
+            compile(stale.subList(i, Math.min(i + CHUNK_SIZE, stale.size())));
+        }
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("...compiled signature stubs for %d files in %d ms", stale.size(), elapsed));
+    }
+
+    /**
+     * javac won't write any class files if there are errors anywhere in the task, so try to compile each chunk a few
+     * times, leaving out the files that had errors. Those files get no stubs, and javac keeps finding them on the
+     * source path.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private void compile(List<Path> files) {
+        var sources = new ArrayList<SourceFileObject>();
+        for (var file : files) {
+            var modified = FileStore.modified(file);
+            if (modified == null) continue;
+            sources.add(new SourceFileObject(file, SourceFileManager.erasedContents(file), modified));
+        }
+        compileSources(sources);
+    }
+
+    private void compileSources(List<SourceFileObject> sources) {
+        var output = new ArrayList<Stub>();
+        var remaining = sources;
+        var blocked = false;
+        for (var attempt = 0; attempt < MAX_ATTEMPTS && !remaining.isEmpty(); attempt++) {
+            var errors = new HashSet<URI>();
+            output.clear();
+            compile(remaining, output, errors);
+            if (errors.isEmpty()) {
+                replace(remaining, output);
+                return;
+            }
+            LOG.info(String.format("...%d files have errors, leaving them out of signature stubs", errors.size()));
+            var withErrors = new ArrayList<SourceFileObject>();
+            var withoutErrors = new ArrayList<SourceFileObject>();
+            for (var source : remaining) {
+                if (errors.contains(source.toUri())) withErrors.add(source);
+                else withoutErrors.add(source);
+            }
+            // Files with errors of their own won't compile until they change
+            replace(withErrors, List.of());
+            // If the errors are all in files outside the chunk, there's nothing we can leave out
+            if (withErrors.isEmpty()) {
+                blocked = true;
+                break;
+            }
+            remaining = withoutErrors;
+        }
+        if (remaining.isEmpty()) return;
+        // Every attempt left out some files with errors, and the rest haven't been tried yet
+        if (!blocked) {
+            compileSources(remaining);
+            return;
+        }
+        if (remaining.size() == 1) {
+            // Keep the old stubs, which are stale but may become fresh again if the file is reverted
+            var source = remaining.get(0);
+            deferred.put(source.path, source.modified);
+            return;
+        }
+        // Some of the files depend on a file with errors. Compile each half separately, so the files that don't still
+        // get stubs.
+        var half = remaining.size() / 2;
+        compileSources(remaining.subList(0, half));
+        compileSources(remaining.subList(half, remaining.size()));
+    }
+
+    /** Replace every stub of `sources` with `output`, in case they no longer declare some classes */
+    private void replace(List<SourceFileObject> sources, List<Stub> output) {
+        var paths = new HashSet<Path>();
+        for (var source : sources) {
+            compiled.put(source.path, source.modified);
+            deferred.remove(source.path);
+            paths.add(source.path);
+        }
+        for (var inPackage : stubs.values()) {
+            inPackage.values().removeIf(stub -> paths.contains(stub.source));
+        }
+        for (var stub : output) {
+            var packageName = StringSearch.mostName(stub.binaryName);
+            stubs.computeIfAbsent(packageName, __ -> new ConcurrentHashMap<>()).put(stub.binaryName, stub);
+        }
+    }
+
+    private void compile(List<SourceFileObject> sources, List<Stub> output, Set<URI> errors) {
+        DiagnosticListener<JavaFileObject> listener =
+                d -> {
+                    if (d.getKind() == Diagnostic.Kind.ERROR && d.getSource() != null) {
+                        errors.add(d.getSource().toUri());
+                    }
+                };
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        try (var fileManager = new StubOutput(new SourceFileManager(), output)) {
+            compiler.getTask(null, fileManager, listener, options, null, sources).call();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Captures the class files that javac writes, instead of writing them to disk */
+    private static class StubOutput extends ForwardingJavaFileManager<SourceFileManager> {
+        private final List<Stub> output;
+
+        StubOutput(SourceFileManager fileManager, List<Stub> output) {
+            super(fileManager);
+            this.output = output;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(
+                Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            if (kind != JavaFileObject.Kind.CLASS || !(sibling instanceof SourceFileObject)) {
+                throw new UnsupportedOperationException("Can't write " + className + " " + kind);
+            }
+            var source = (SourceFileObject) sibling;
+            var uri = URI.create("stub:///" + className.replace('.', '/') + kind.extension);
+            return new SimpleJavaFileObject(uri, kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            output.add(new Stub(className, source.path, source.modified, toByteArray()));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -4,13 +4,32 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
 import java.util.logging.Logger;
 import javax.tools.*;
 
 class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    /**
+     * If true, sources that javac finds on the source path, because a file it is compiling depends on them, are served
+     * with their method bodies erased. Files that are passed to javac directly are never erased.
+     */
+    private static volatile boolean eraseDependencies = true;
+
+    static void setEraseDependencies(boolean erase) {
+        eraseDependencies = erase;
+    }
+
+    /** Class files compiled from the workspace, which javac reads instead of their sources when they are up to date */
+    private final SignatureStubs stubs;
+
     SourceFileManager() {
+        this(null);
+    }
+
+    SourceFileManager(SignatureStubs stubs) {
         super(createDelegateFileManager());
+        this.stubs = stubs;
     }
 
     private static StandardJavaFileManager createDelegateFileManager() {
@@ -28,19 +47,41 @@ class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManage
         if (location == StandardLocation.SOURCE_PATH) {
             var stream = FileStore.list(packageName).stream().map(this::asJavaFileObject);
             return stream::iterator;
+        } else if (location == StandardLocation.CLASS_PATH && stubs != null && kinds.contains(JavaFileObject.Kind.CLASS)) {
+            var fromDelegate = super.list(location, packageName, kinds, recurse);
+            var fromStubs = stubs.list(packageName);
+            if (fromStubs.isEmpty()) return fromDelegate;
+            var all = new ArrayList<JavaFileObject>(fromStubs);
+            fromDelegate.forEach(all::add);
+            return all;
         } else {
             return super.list(location, packageName, kinds, recurse);
         }
     }
 
     private JavaFileObject asJavaFileObject(Path file) {
-        // TODO erase method bodies of files that are not open
-        return new SourceFileObject(file);
+        if (!eraseDependencies) {
+            return new SourceFileObject(file);
+        }
+        var modified = FileStore.modified(file);
+        if (modified == null) modified = Instant.EPOCH;
+        return new SourceFileObject(file, erasedContents(file), modified);
+    }
+
+    /** Erased sources are about as big as the files they came from, so they are bounded by their total length */
+    private static final int ERASED_CHARS = 32 * 1024 * 1024;
+
+    private static final Cache<Void, String> cacheErased = new Cache<>("erased", String::length, ERASED_CHARS);
+
+    static String erasedContents(Path file) {
+        return cacheErased.get(file, null, () -> EraseMethodBodies.erase(Parser.parseOnce(file)));
     }
 
     @Override
     public String inferBinaryName(Location location, JavaFileObject file) {
-        if (location == StandardLocation.SOURCE_PATH) {
+        if (file instanceof SignatureStubs.Stub) {
+            return ((SignatureStubs.Stub) file).binaryName;
+        } else if (location == StandardLocation.SOURCE_PATH) {
             var source = (SourceFileObject) file;
             var packageName = FileStore.packageName(source.path);
             var className = removeExtension(source.path.getFileName().toString());
@@ -70,7 +111,7 @@ class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManage
             var simpleClassName = StringSearch.lastName(className);
             for (var f : FileStore.list(packageName)) {
                 if (f.getFileName().toString().equals(simpleClassName + kind.extension)) {
-                    return new SourceFileObject(f);
+                    return asJavaFileObject(f);
                 }
             }
             // Fall through to disk in case we have .jar or .zip files on the source path
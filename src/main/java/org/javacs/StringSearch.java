@@ -8,9 +8,15 @@ import java.nio.charset.StandardCharsets;
 import java.nio.charset.CharacterCodingException;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
+import org.javacs.lsp.CancelToken;
 
 // Translated from https://golang.org/src/strings/search.go
 
@@ -197,7 +203,31 @@ public class StringSearch {
         }
     }
 
-    private static final ByteBuffer SEARCH_BUFFER = ByteBuffer.allocateDirect(1024 * 1024);
+    /** Trigrams of the files that have been searched, so files that can't contain a query are skipped without reading */
+    static final TrigramIndex TRIGRAMS = new TrigramIndex();
+
+    /** Files up to this size are read into a buffer that belongs to the searching thread; bigger files are mapped */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> SEARCH_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    /**
+     * The contents of `channel`. Small files are read into this thread's search buffer, which the next search on this
+     * thread overwrites, and bigger files are mapped so they are searched all the way to the end.
+     */
+    private static ByteBuffer read(FileChannel channel) throws IOException {
+        var size = channel.size();
+        if (size > BUFFER_SIZE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+        }
+        var buffer = SEARCH_BUFFER.get();
+        buffer.clear();
+        buffer.limit((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {}
+        buffer.flip();
+        return buffer;
+    }
 
     // TODO cache the progress made by searching shorter queries
     static boolean containsWordMatching(Path java, String query) {
@@ -206,13 +236,7 @@ public class StringSearch {
             return matchesTitleCase(text, query);
         }
         try (var channel = FileChannel.open(java)) {
-            // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            var chars = StandardCharsets.UTF_8.decode(SEARCH_BUFFER);
+            var chars = StandardCharsets.UTF_8.decode(read(channel));
             return matchesTitleCase(chars, query);
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
@@ -223,19 +247,14 @@ public class StringSearch {
     }
 
     static boolean containsWord(Path java, String query) {
+        if (!TRIGRAMS.mayContain(java, query)) return false;
         var search = new StringSearch(query);
         if (FileStore.activeDocuments().contains(java)) {
             var text = FileStore.contents(java).getBytes();
             return search.nextWord(text) != -1;
         }
         try (var channel = FileChannel.open(java)) {
-            // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            return search.nextWord(SEARCH_BUFFER) != -1;
+            return search.nextWord(read(channel)) != -1;
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
             return false;
@@ -245,19 +264,14 @@ public class StringSearch {
     }
 
     private static boolean containsString(Path java, String query) {
+        if (!TRIGRAMS.mayContain(java, query)) return false;
         var search = new StringSearch(query);
         if (FileStore.activeDocuments().contains(java)) {
             var text = FileStore.contents(java).getBytes();
             return search.next(text) != -1;
         }
         try (var channel = FileChannel.open(java)) {
-            // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            return search.next(SEARCH_BUFFER) != -1;
+            return search.next(read(channel)) != -1;
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
             return false;
@@ -266,6 +280,85 @@ public class StringSearch {
         }
     }
 
+    private static final ForkJoinPool SEARCH_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /** Each fork-join task tests at most this many files, so a few slow files don't hold up the rest */
+    private static final int FILES_PER_TASK = 16;
+
+    /**
+     * Test `files` in parallel, and return up to `limit` of the files that pass, in the same order as `files`. Once
+     * `limit` files have passed, the files that haven't been tested yet are skipped, so the result is not necessarily
+     * the first `limit` matches. `test` runs on behalf of the request on this thread, so it can check for cancellation.
+     */
+    static List<Path> searchParallel(List<Path> files, Predicate<Path> test, int limit) {
+        var matches = new boolean[files.size()];
+        var found = new AtomicInteger();
+        SEARCH_POOL.invoke(new SearchFiles(files, 0, files.size(), test, CancelToken.current(), matches, found, limit));
+        var result = new ArrayList<Path>();
+        for (var i = 0; i < matches.length && result.size() < limit; i++) {
+            if (matches[i]) result.add(files.get(i));
+        }
+        return result;
+    }
+
+    private static class SearchFiles extends RecursiveAction {
+        private final List<Path> files;
+        private final int start, end;
+        private final Predicate<Path> test;
+        private final CancelToken cancel;
+        private final boolean[] matches;
+        private final AtomicInteger found;
+        private final int limit;
+
+        SearchFiles(
+                List<Path> files,
+                int start,
+                int end,
+                Predicate<Path> test,
+                CancelToken cancel,
+                boolean[] matches,
+                AtomicInteger found,
+                int limit) {
+            this.files = files;
+            this.start = start;
+            this.end = end;
+            this.test = test;
+            this.cancel = cancel;
+            this.matches = matches;
+            this.found = found;
+            this.limit = limit;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > FILES_PER_TASK) {
+                var middle = (start + end) / 2;
+                invokeAll(
+                        new SearchFiles(files, start, middle, test, cancel, matches, found, limit),
+                        new SearchFiles(files, middle, end, test, cancel, matches, found, limit));
+                return;
+            }
+            try {
+                CancelToken.runAs(cancel, this::searchSerially);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private Void searchSerially() {
+            for (var i = start; i < end; i++) {
+                if (found.get() >= limit) return null;
+                if (test.test(files.get(i))) {
+                    matches[i] = true;
+                    found.incrementAndGet();
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Check if `candidate` contains all the characters of `find`, in-order, case-insensitive. Matches can be
      * discontinuous if the letters of `find` match the first letters of words in `candidate` For example, fb matches
@@ -321,34 +414,33 @@ public class StringSearch {
     }
 
     static boolean containsType(Path file, TypeElement el) {
-        switch (el.getKind()) {
+        return containsType(file, el.getKind(), el.getSimpleName().toString());
+    }
+
+    /** Like containsType(file, el), for threads that shouldn't touch javac's symbols */
+    static boolean containsType(Path file, ElementKind kind, String simpleName) {
+        switch (kind) {
             case INTERFACE:
-                return containsInterface(file, el.getSimpleName().toString());
+                return containsInterface(file, simpleName);
             case CLASS:
-                return containsClass(file, el.getSimpleName().toString());
+                return containsClass(file, simpleName);
             default:
-                throw new RuntimeException("Don't know what to do with " + el.getKind());
+                throw new RuntimeException("Don't know what to do with " + kind);
         }
     }
 
-    private static Cache<String, Boolean> cacheContainsClass = new Cache<>();
+    private static Cache<String, Boolean> cacheContainsClass = new Cache<>("containsClass");
 
     private static boolean containsClass(Path file, String simpleName) {
-        if (cacheContainsClass.needs(file, simpleName)) {
-            cacheContainsClass.load(file, simpleName, containsString(file, "class " + simpleName));
-            // TODO verify this by actually parsing the file
-        }
-        return cacheContainsClass.get(file, simpleName);
+        // TODO verify this by actually parsing the file
+        return cacheContainsClass.get(file, simpleName, () -> containsString(file, "class " + simpleName));
     }
 
-    private static Cache<String, Boolean> cacheContainsInterface = new Cache<>();
+    private static Cache<String, Boolean> cacheContainsInterface = new Cache<>("containsInterface");
 
     private static boolean containsInterface(Path file, String simpleName) {
-        if (cacheContainsInterface.needs(file, simpleName)) {
-            cacheContainsInterface.load(file, simpleName, containsString(file, "interface " + simpleName));
-            // TODO verify this by actually parsing the file
-        }
-        return cacheContainsInterface.get(file, simpleName);
+        // TODO verify this by actually parsing the file
+        return cacheContainsInterface.get(file, simpleName, () -> containsString(file, "interface " + simpleName));
     }
 
     // TODO this doesn't work for inner classes, eliminate
@@ -0,0 +1,319 @@
+package org.javacs;
+
+import java.io.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * TrigramIndex remembers which three-character sequences appear in each source file, so text searches can rule out
+ * files without reading them. A file can only contain a string if it contains every trigram of that string, so
+ * intersecting the posting lists of the string's trigrams gives a superset of the files that contain it. Callers still
+ * check the remaining candidates with StringSearch, but that is usually a handful of files instead of the workspace.
+ *
+ * <p>Files are indexed lazily: when a query finds that a file has been modified since it was indexed, according to
+ * FileStore.modified, the file is read and indexed again before the query is answered.
+ */
+class TrigramIndex {
+    /** A file that couldn't be read as text; it could contain anything */
+    private static final int UNINDEXED = -1;
+
+    private static class Entry {
+        final int id;
+        final Instant modified;
+
+        Entry(int id, Instant modified) {
+            this.id = id;
+            this.modified = modified;
+        }
+    }
+
+    /** An ascending list of file ids */
+    private static class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+
+    /** files[file] is the id of the version of file that was indexed */
+    private final Map<Path, Entry> files = new HashMap<>();
+    /** paths[id] is the file that was indexed with id, or null if it has since been re-indexed or removed */
+    private final List<Path> paths = new ArrayList<>();
+    /** postings[trigram] is the id of every indexed file that contains trigram, including ids that are now dead */
+    private final Map<Long, Postings> postings = new HashMap<>();
+    /** The number of ids in postings that are dead; when there are more dead ids than live ones, postings is compacted */
+    private int dead;
+
+    /**
+     * The files in `files` that might contain `query`, in the same order. Queries shorter than a trigram can't be
+     * narrowed down, so every file is a candidate. Files that FileStore says don't exist are never candidates.
+     */
+    List<Path> candidates(Collection<Path> files, String query) {
+        var trigrams = trigrams(query);
+        if (trigrams.length == 0) return new ArrayList<>(files);
+        refresh(files);
+        synchronized (this) {
+            var ids = intersect(trigrams);
+            var found = new ArrayList<Path>();
+            for (var f : files) {
+                // refresh(...) only leaves a file without an entry if it has been deleted
+                var entry = this.files.get(f);
+                if (entry == null) continue;
+                if (entry.id == UNINDEXED || Arrays.binarySearch(ids, entry.id) >= 0) {
+                    found.add(f);
+                }
+            }
+            return found;
+        }
+    }
+
+    /** True if `file` might contain `query` */
+    boolean mayContain(Path file, String query) {
+        var trigrams = trigrams(query);
+        if (trigrams.length == 0) return true;
+        refresh(List.of(file));
+        synchronized (this) {
+            var entry = files.get(file);
+            if (entry == null) return false;
+            if (entry.id == UNINDEXED) return true;
+            for (var t : trigrams) {
+                var list = postings.get(t);
+                if (list == null || !list.contains(entry.id)) return false;
+            }
+            return true;
+        }
+    }
+
+    synchronized int size() {
+        return files.size();
+    }
+
+    /** The number of ids that have been handed out since the index was last compacted, including dead ones */
+    synchronized int ids() {
+        return paths.size();
+    }
+
+    synchronized void clear() {
+        files.clear();
+        paths.clear();
+        postings.clear();
+        dead = 0;
+    }
+
+    /** Re-index any of `files` that have changed since they were indexed. Files are read outside the lock. */
+    private void refresh(Collection<Path> files) {
+        for (var f : files) {
+            var modified = FileStore.modified(f);
+            synchronized (this) {
+                var entry = this.files.get(f);
+                if (entry != null && entry.modified.equals(modified)) continue;
+                if (modified == null) {
+                    remove(f);
+                    continue;
+                }
+            }
+            var text = read(f);
+            var trigrams = text == null ? null : trigrams(text);
+            synchronized (this) {
+                update(f, modified, trigrams);
+            }
+        }
+    }
+
+    private static String read(Path file) {
+        if (FileStore.activeDocuments().contains(file)) {
+            return FileStore.contents(file);
+        }
+        try {
+            return Files.readString(file);
+        } catch (NoSuchFileException | CharacterCodingException e) {
+            LOG.warning("Can't index " + file + ": " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Index the `modified` version of `file`, which contains `trigrams`, or couldn't be read if `trigrams` is null */
+    private void update(Path file, Instant modified, long[] trigrams) {
+        remove(file);
+        if (trigrams == null) {
+            files.put(file, new Entry(UNINDEXED, modified));
+            return;
+        }
+        var id = paths.size();
+        paths.add(file);
+        files.put(file, new Entry(id, modified));
+        for (var t : trigrams) {
+            postings.computeIfAbsent(t, __ -> new Postings()).add(id);
+        }
+    }
+
+    private void remove(Path file) {
+        var old = files.remove(file);
+        if (old == null || old.id == UNINDEXED) return;
+        paths.set(old.id, null);
+        dead++;
+        if (dead > files.size()) compact();
+    }
+
+    /**
+     * Drop dead ids from every posting list, and renumber the live files so the ids are dense again. The new ids are in
+     * the same order as the old ones, so posting lists stay sorted.
+     */
+    private void compact() {
+        var newIds = new int[paths.size()];
+        var live = new ArrayList<Path>();
+        for (var id = 0; id < paths.size(); id++) {
+            var path = paths.get(id);
+            if (path == null) continue;
+            newIds[id] = live.size();
+            files.put(path, new Entry(live.size(), files.get(path).modified));
+            live.add(path);
+        }
+        var empty = new ArrayList<Long>();
+        for (var e : postings.entrySet()) {
+            var list = e.getValue();
+            var size = 0;
+            for (var i = 0; i < list.size; i++) {
+                if (paths.get(list.ids[i]) != null) list.ids[size++] = newIds[list.ids[i]];
+            }
+            list.size = size;
+            if (size == 0) empty.add(e.getKey());
+        }
+        for (var t : empty) {
+            postings.remove(t);
+        }
+        paths.clear();
+        paths.addAll(live);
+        dead = 0;
+    }
+
+    /** The ids of the files that contain every trigram in `trigrams`, in ascending order */
+    private int[] intersect(long[] trigrams) {
+        var lists = new ArrayList<Postings>();
+        for (var t : trigrams) {
+            var list = postings.get(t);
+            if (list == null) return new int[0];
+            lists.add(list);
+        }
+        // Start from the shortest list, so the intermediate result is as small as possible
+        lists.sort(Comparator.comparingInt(l -> l.size));
+        var first = lists.get(0);
+        var result = Arrays.copyOf(first.ids, first.size);
+        var size = result.length;
+        for (var i = 1; i < lists.size() && size > 0; i++) {
+            var list = lists.get(i);
+            var kept = 0;
+            var j = 0;
+            for (var k = 0; k < size; k++) {
+                var id = result[k];
+                while (j < list.size && list.ids[j] < id) j++;
+                if (j < list.size && list.ids[j] == id) result[kept++] = id;
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /** The distinct trigrams of `text`, sorted */
+    static long[] trigrams(CharSequence text) {
+        if (text.length() < 3) return new long[0];
+        var all = new long[text.length() - 2];
+        for (var i = 0; i < all.length; i++) {
+            all[i] = trigram(text.charAt(i), text.charAt(i + 1), text.charAt(i + 2));
+        }
+        Arrays.sort(all);
+        var distinct = 0;
+        for (var i = 0; i < all.length; i++) {
+            if (distinct == 0 || all[distinct - 1] != all[i]) all[distinct++] = all[i];
+        }
+        return Arrays.copyOf(all, distinct);
+    }
+
+    private static long trigram(char a, char b, char c) {
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Read an index that was written by save(...). Files are checked against FileStore the first time they are queried,
+     * so entries for files that changed while the server wasn't running are simply re-indexed.
+     */
+    synchronized void load(Path file) {
+        clear();
+        if (!Files.exists(file)) return;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                LOG.info("...ignoring " + file + " because it was written by a different version");
+                return;
+            }
+            var fileCount = in.readInt();
+            for (var id = 0; id < fileCount; id++) {
+                var path = Paths.get(in.readUTF());
+                var modified = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                paths.add(path);
+                files.put(path, new Entry(id, modified));
+            }
+            var trigramCount = in.readInt();
+            for (var i = 0; i < trigramCount; i++) {
+                var trigram = in.readLong();
+                var list = new Postings();
+                list.size = in.readInt();
+                list.ids = new int[Math.max(1, list.size)];
+                for (var j = 0; j < list.size; j++) {
+                    list.ids[j] = in.readInt();
+                }
+                postings.put(trigram, list);
+            }
+            LOG.info(String.format("Loaded trigrams of %d files from %s", files.size(), file));
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Failed to load " + file + ": " + e.getMessage());
+            clear();
+        }
+    }
+
+    /** Write the live part of the index to `file`, after compacting it so the ids are dense */
+    synchronized void save(Path file) {
+        compact();
+        try {
+            Files.createDirectories(file.getParent());
+            var temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(paths.size());
+                for (var path : paths) {
+                    var modified = files.get(path).modified;
+                    out.writeUTF(path.toString());
+                    out.writeLong(modified.getEpochSecond());
+                    out.writeInt(modified.getNano());
+                }
+                out.writeInt(postings.size());
+                for (var e : postings.entrySet()) {
+                    var list = e.getValue();
+                    out.writeLong(e.getKey());
+                    out.writeInt(list.size);
+                    for (var i = 0; i < list.size; i++) {
+                        out.writeInt(list.ids[i]);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -40,6 +40,7 @@ import org.javacs.JsonHelper;
 import org.javacs.ParseTask;
 import org.javacs.SourceFileObject;
 import org.javacs.StringSearch;
+import org.javacs.lsp.CancelToken;
 import org.javacs.lsp.Command;
 import org.javacs.lsp.CompletionItem;
 import org.javacs.lsp.CompletionItemKind;
@@ -128,6 +129,7 @@ public class CompletionProvider {
         var contents = new PruneMethodBodies(task.task).scan(task.root, cursor);
         var endOfLine = endOfLine(contents, (int) cursor);
         contents.insert(endOfLine, ';');
+        CancelToken.checkCancelled();
         var list = compileAndComplete(file, contents.toString(), cursor);
         addTopLevelSnippets(task, list);
         logCompletionTiming(started, list.items, list.isIncomplete);
@@ -341,6 +343,7 @@ public class CompletionProvider {
             list.items.add(classItem(className));
             uniques.add(className);
         }
+        CancelToken.checkCancelled();
         for (var className : compiler.publicTopLevelTypes()) {
             if (!StringSearch.matchesPartialName(simpleName(className), partial)) continue;
             if (uniques.contains(className)) continue;
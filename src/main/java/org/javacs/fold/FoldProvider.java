@@ -19,7 +19,11 @@ public class FoldProvider {
     }
 
     public List<FoldingRange> foldingRanges(Path file) {
-        var task = compiler.parse(file);
+        return foldingRanges(compiler.parse(file));
+    }
+
+    /** Folding ranges only need the syntax tree, so they can be found before the compiler has been configured */
+    public static List<FoldingRange> foldingRanges(ParseTask task) {
         var imports = new ArrayList<TreePath>();
         var blocks = new ArrayList<TreePath>();
         // TODO find comment trees
@@ -79,7 +83,7 @@ public class FoldProvider {
         return all;
     }
 
-    private FoldingRange asFoldingRange(ParseTask task, TreePath t, String kind) {
+    private static FoldingRange asFoldingRange(ParseTask task, TreePath t, String kind) {
         var trees = Trees.instance(task.task);
         var pos = trees.getSourcePositions();
         var lines = t.getCompilationUnit().getLineMap();
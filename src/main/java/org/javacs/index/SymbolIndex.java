@@ -0,0 +1,311 @@
+package org.javacs.index;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import org.javacs.FileStore;
+import org.javacs.ParseTask;
+import org.javacs.StringSearch;
+import org.javacs.lsp.CancelToken;
+import org.javacs.lsp.Location;
+import org.javacs.lsp.Position;
+import org.javacs.lsp.Range;
+import org.javacs.lsp.SymbolInformation;
+
+/**
+ * SymbolIndex remembers the classes, methods and fields declared in every workspace source file, so workspace/symbol
+ * queries don't have to re-read and re-parse the workspace. The index is saved to disk so it survives restarts. Each
+ * entry remembers the modified time of the file it was built from.
+ *
+ * <p>The saved index is loaded and brought up to date with the workspace on a background thread when the server starts.
+ * After that, files are only re-indexed when they are reported as changed, by an edit or a watched-file event, and only
+ * the next time the index is searched.
+ *
+ * <p>Symbols are also filed under each character that starts a word of their name. StringSearch.matchesTitleCase only
+ * matches a name if the first character of the query starts one of its words, so a search only has to check one bucket.
+ */
+public class SymbolIndex {
+    private static final int VERSION = 1;
+
+    private final Path indexFile;
+    private final Function<Path, ParseTask> parser;
+    // Everything below is guarded by `this`
+    private final Map<Path, Entry> entries = new HashMap<>();
+    /** byWordStart[c] is every indexed symbol with a word that starts with c, in lower case */
+    private final Map<Character, Set<SymbolInformation>> byWordStart = new HashMap<>();
+    /** Files that may have changed since they were indexed */
+    private final Set<Path> changed = new HashSet<>();
+    /** True if some files on disk were indexed or forgotten since the index was saved */
+    private boolean unsaved;
+
+    private Future<?> background = CompletableFuture.completedFuture(null);
+
+    private static class Entry {
+        final long modified;
+        final List<SymbolInformation> symbols;
+
+        Entry(long modified, List<SymbolInformation> symbols) {
+            this.modified = modified;
+            this.symbols = symbols;
+        }
+    }
+
+    /** An empty index, which is saved to `indexFile` and reads files with `parser` */
+    public SymbolIndex(Path indexFile, Function<Path, ParseTask> parser) {
+        this.indexFile = indexFile;
+        this.parser = parser;
+    }
+
+    /** Load the saved index, and then re-index every file that was created or modified since it was saved */
+    public synchronized void updateInBackground() {
+        background = BACKGROUND.submit(this::loadAndUpdate);
+    }
+
+    /** Block until the work started by updateInBackground() is finished */
+    private void awaitUpdate() {
+        Future<?> background;
+        synchronized (this) {
+            background = this.background;
+        }
+        try {
+            background.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void loadAndUpdate() {
+        load();
+        var started = Instant.now();
+        var files = new ArrayList<Path>(FileStore.all());
+        synchronized (this) {
+            var forget = new ArrayList<Path>(entries.keySet());
+            forget.removeAll(new HashSet<>(files));
+            for (var file : forget) {
+                removeEntry(file);
+            }
+            if (!forget.isEmpty()) unsaved = true;
+        }
+        var indexed = 0;
+        for (var file : files) {
+            if (reindex(file)) indexed++;
+        }
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("...indexed symbols of %d files in %d ms", indexed, elapsed));
+        save();
+    }
+
+    /**
+     * Re-index `file` if it has been modified since it was indexed, or forget it if it has been deleted. Files are
+     * parsed outside the lock, so searches don't wait for them.
+     */
+    private boolean reindex(Path file) {
+        var modified = FileStore.modified(file);
+        synchronized (this) {
+            var existing = entries.get(file);
+            if (modified == null) {
+                if (existing == null) return false;
+                removeEntry(file);
+                unsaved = true;
+                return false;
+            }
+            if (existing != null && existing.modified == modified.toEpochMilli()) return false;
+        }
+        var symbols = scan(file);
+        synchronized (this) {
+            removeEntry(file);
+            putEntry(file, new Entry(modified.toEpochMilli(), symbols));
+            // Changes to open documents will be re-indexed after a restart anyway, so they aren't worth a save
+            if (!FileStore.activeDocuments().contains(file)) unsaved = true;
+        }
+        return true;
+    }
+
+    /** `file` was created, edited or modified on disk, so re-index it before the next search */
+    public synchronized void changed(Path file) {
+        changed.add(file);
+    }
+
+    /** Forget everything we know about `file`, for example because it was deleted. */
+    public synchronized void remove(Path file) {
+        changed.remove(file);
+        if (entries.containsKey(file)) unsaved = true;
+        removeEntry(file);
+    }
+
+    private void putEntry(Path file, Entry entry) {
+        entries.put(file, entry);
+        for (var symbol : entry.symbols) {
+            for (var c : wordStarts(symbol.name)) {
+                byWordStart.computeIfAbsent(c, __ -> new LinkedHashSet<>()).add(symbol);
+            }
+        }
+    }
+
+    private void removeEntry(Path file) {
+        var entry = entries.remove(file);
+        if (entry == null) return;
+        for (var symbol : entry.symbols) {
+            for (var c : wordStarts(symbol.name)) {
+                var bucket = byWordStart.get(c);
+                if (bucket == null) continue;
+                bucket.remove(symbol);
+                if (bucket.isEmpty()) byWordStart.remove(c);
+            }
+        }
+    }
+
+    /** The lower-case characters where a word of `name` starts, the way StringSearch.matchesTitleCase splits words */
+    private static Set<Character> wordStarts(String name) {
+        var starts = new HashSet<Character>();
+        for (var i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            var startsToken = isWordChar(c) && (i == 0 || !isWordChar(name.charAt(i - 1)));
+            if (startsToken || Character.isUpperCase(c)) starts.add(Character.toLowerCase(c));
+        }
+        return starts;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isAlphabetic(c) || Character.isDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Find up to `limit` symbols whose names match `query`, using the same title-case rule as completions. Searches
+     * that arrive before the background update is finished wait for it, rather than returning partial results.
+     */
+    public List<SymbolInformation> search(String query, int limit) {
+        awaitUpdate();
+        List<Path> update;
+        synchronized (this) {
+            update = new ArrayList<>(changed);
+            changed.clear();
+        }
+        for (var file : update) {
+            CancelToken.checkCancelled();
+            reindex(file);
+        }
+        var result = new ArrayList<SymbolInformation>();
+        synchronized (this) {
+            Collection<SymbolInformation> candidates;
+            if (query.isEmpty()) {
+                candidates = new ArrayList<>();
+                for (var entry : entries.values()) {
+                    candidates.addAll(entry.symbols);
+                }
+            } else {
+                candidates = byWordStart.getOrDefault(Character.toLowerCase(query.charAt(0)), Set.of());
+            }
+            for (var symbol : candidates) {
+                if (!StringSearch.matchesTitleCase(symbol.name, query)) continue;
+                result.add(symbol);
+                if (result.size() >= limit) break;
+            }
+        }
+        return result;
+    }
+
+    private List<SymbolInformation> scan(Path file) {
+        var task = parser.apply(file);
+        var symbols = new ArrayList<SymbolInformation>();
+        new FindSymbolsMatching(task, "").scan(task.root, symbols);
+        return symbols;
+    }
+
+    private void load() {
+        if (!Files.exists(indexFile)) return;
+        var loaded = new HashMap<Path, Entry>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != VERSION) {
+                LOG.info("...ignoring " + indexFile + " because it was written by a different version");
+                return;
+            }
+            var fileCount = in.readInt();
+            for (var i = 0; i < fileCount; i++) {
+                var uri = URI.create(in.readUTF());
+                var modified = in.readLong();
+                var symbolCount = in.readInt();
+                var symbols = new ArrayList<SymbolInformation>(symbolCount);
+                for (var j = 0; j < symbolCount; j++) {
+                    var symbol = new SymbolInformation();
+                    symbol.name = in.readUTF();
+                    symbol.kind = in.readInt();
+                    symbol.containerName = in.readUTF();
+                    var start = new Position(in.readInt(), in.readInt());
+                    var end = new Position(in.readInt(), in.readInt());
+                    symbol.location = new Location(uri, new Range(start, end));
+                    symbols.add(symbol);
+                }
+                loaded.put(Paths.get(uri), new Entry(modified, symbols));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Failed to load " + indexFile + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            // Files that were indexed by a search before the index was read are newer than what's in the file
+            for (var e : loaded.entrySet()) {
+                if (!entries.containsKey(e.getKey())) putEntry(e.getKey(), e.getValue());
+            }
+        }
+        LOG.info(String.format("Loaded symbols of %d files from %s", loaded.size(), indexFile));
+    }
+
+    /**
+     * Write the index to disk, if files on disk were indexed since it was last saved. Writes go to a temporary file
+     * first, so a crash never leaves a half-written index.
+     */
+    public synchronized void save() {
+        if (!unsaved) return;
+        unsaved = false;
+        try {
+            Files.createDirectories(indexFile.getParent());
+            var temp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (var file : entries.keySet()) {
+                    var entry = entries.get(file);
+                    out.writeUTF(file.toUri().toString());
+                    out.writeLong(entry.modified);
+                    out.writeInt(entry.symbols.size());
+                    for (var symbol : entry.symbols) {
+                        var range = symbol.location.range;
+                        out.writeUTF(symbol.name);
+                        out.writeInt(symbol.kind);
+                        out.writeUTF(Objects.toString(symbol.containerName, ""));
+                        out.writeInt(range.start.line);
+                        out.writeInt(range.start.character);
+                        out.writeInt(range.end.line);
+                        out.writeInt(range.end.character);
+                    }
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    /** Every instance shares one thread, so restarting the server doesn't pile up background indexing */
+    private static final ExecutorService BACKGROUND =
+            Executors.newSingleThreadExecutor(
+                    task -> {
+                        var thread = new Thread(task, "symbol-index");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,66 @@
+package org.javacs.lsp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+/**
+ * CancelToken tells a running request that the client has sent $/cancelRequest for it. Each request runs on a single
+ * thread, so the token is bound to that thread while the request runs; long-running code calls checkCancelled() between
+ * units of work, and javac calls it from a TaskListener between phases.
+ */
+public class CancelToken {
+    private static final CancelToken NEVER = new CancelToken();
+    private static final ThreadLocal<CancelToken> CURRENT = ThreadLocal.withInitial(() -> NEVER);
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** The token of the request that is running on this thread, or a token that is never cancelled. */
+    public static CancelToken current() {
+        return CURRENT.get();
+    }
+
+    /** Throw CancellationException if the request that is running on this thread has been cancelled. */
+    public static void checkCancelled() {
+        if (current().cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /** True if `e` was caused by checkCancelled(), possibly wrapped by javac */
+    public static boolean isCancellation(Throwable e) {
+        for (var cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run `task` on this thread on behalf of the request that `token` belongs to, for requests that split their work
+     * across several threads.
+     */
+    public static <T> T runAs(CancelToken token, Callable<T> task) throws Exception {
+        var previous = CURRENT.get();
+        CURRENT.set(token);
+        try {
+            return task.call();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    static void bind(CancelToken token) {
+        CURRENT.set(token);
+    }
+
+    static void unbind() {
+        CURRENT.remove();
+    }
+}
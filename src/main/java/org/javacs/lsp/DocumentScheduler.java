@@ -0,0 +1,140 @@
+package org.javacs.lsp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * DocumentScheduler runs messages that concern a single document on a pool of worker threads. Messages for the same
+ * document run in the order they were submitted, except that consecutive read-only messages may run in parallel with
+ * each other. Messages for different documents never wait for each other. Unordered work, which isn't about any one
+ * document, runs on the same workers as soon as one is free.
+ */
+class DocumentScheduler {
+    private static class Lane {
+        /** The last message that modifies the document, or a completed future */
+        CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+        /** Read-only messages that were submitted after lastWrite, and may still be running */
+        List<CompletableFuture<Void>> readsSinceWrite = new ArrayList<>();
+
+        List<CompletableFuture<Void>> all() {
+            var all = new ArrayList<CompletableFuture<Void>>(readsSinceWrite);
+            all.add(lastWrite);
+            return all;
+        }
+    }
+
+    private final ExecutorService workers;
+    /** lanes[uri] is the queue of messages for the document at uri. Guarded by `this`. */
+    private final Map<String, Lane> lanes = new HashMap<>();
+    /** Unordered work that may still be running. Guarded by `this`. */
+    private final List<CompletableFuture<Void>> unordered = new ArrayList<>();
+
+    DocumentScheduler(int threads) {
+        var count = new AtomicInteger();
+        this.workers =
+                Executors.newFixedThreadPool(
+                        threads,
+                        task -> {
+                            var thread = new Thread(task, "worker-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    /**
+     * Run `task` on a worker thread, after every message that was previously submitted for `uri` has finished. If
+     * `readOnly` is true, only wait for messages that modify the document.
+     */
+    synchronized void submit(String uri, boolean readOnly, Runnable task) {
+        var lane = lanes.computeIfAbsent(uri, __ -> new Lane());
+        lane.readsSinceWrite.removeIf(CompletableFuture::isDone);
+        if (readOnly) {
+            var read = lane.lastWrite.thenRunAsync(() -> runSafely(task), workers);
+            lane.readsSinceWrite.add(read);
+        } else {
+            var previous = lane.all().toArray(CompletableFuture[]::new);
+            lane.lastWrite = CompletableFuture.allOf(previous).thenRunAsync(() -> runSafely(task), workers);
+            lane.readsSinceWrite.clear();
+        }
+    }
+
+    /** Run `task` on a worker thread without waiting for any other message */
+    synchronized void submitUnordered(Runnable task) {
+        unordered.removeIf(CompletableFuture::isDone);
+        unordered.add(CompletableFuture.runAsync(() -> runSafely(task), workers));
+    }
+
+    /**
+     * Forget the lane of `uri` once every message submitted for it so far has finished, so documents that have been
+     * closed don't keep a lane for the rest of the session. If the document is used again before then, the lane stays.
+     */
+    synchronized void release(String uri) {
+        var lane = lanes.get(uri);
+        if (lane == null) return;
+        var all = CompletableFuture.allOf(lane.all().toArray(CompletableFuture[]::new));
+        all.whenComplete((__, ___) -> removeIfIdle(uri, lane));
+    }
+
+    private synchronized void removeIfIdle(String uri, Lane lane) {
+        if (lanes.get(uri) != lane) return;
+        for (var f : lane.all()) {
+            if (!f.isDone()) return;
+        }
+        lanes.remove(uri);
+    }
+
+    /** Number of documents that have a lane */
+    synchronized int size() {
+        return lanes.size();
+    }
+
+    /** Block until every message that has been submitted so far has finished. */
+    void awaitAll() {
+        CompletableFuture<Void> all;
+        synchronized (this) {
+            var futures = new ArrayList<CompletableFuture<Void>>(unordered);
+            for (var lane : lanes.values()) {
+                futures.addAll(lane.all());
+            }
+            all = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+        }
+        all.join();
+    }
+
+    /** True if no submitted message is waiting or running. */
+    synchronized boolean isIdle() {
+        for (var f : unordered) {
+            if (!f.isDone()) return false;
+        }
+        for (var lane : lanes.values()) {
+            for (var f : lane.all()) {
+                if (!f.isDone()) return false;
+            }
+        }
+        return true;
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    // Messages are responsible for reporting their own errors, but if one slips through,
+    // it must not complete the lane exceptionally, or every later message for the same document would be skipped
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            LOG.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -0,0 +1,258 @@
+package org.javacs.lsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FrameReader splits the stream from the client into messages, using the Content-Length header in front of each one.
+ * Headers are parsed straight out of a read buffer, and each body is read into a buffer that is reused for the next
+ * message, so reading a message allocates nothing unless it is bigger than every message before it.
+ */
+class FrameReader {
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    /** Bodies bigger than this aren't kept around after they have been read */
+    private static final int MAX_RETAINED_BODY = 1024 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8 * 1024];
+    /** buffer[position, limit) has been read from `in` but not consumed yet */
+    private int position, limit;
+    /** The header line that is being parsed, which may span several reads */
+    private byte[] line = new byte[128];
+    private byte[] body = new byte[8 * 1024];
+    private int bodyLength;
+
+    FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next message. Its body is in body()[0, bodyLength()) until the next call to next(). Throws EndOfStream if
+     * the client closes the stream.
+     */
+    void next() {
+        var contentLength = -1;
+        while (true) {
+            var lineLength = readLine();
+            // If header is empty, next line is the start of the message
+            if (lineLength == 0) break;
+            // If header contains length, save it
+            var maybeLength = parseContentLength(lineLength);
+            if (maybeLength != -1) contentLength = maybeLength;
+        }
+        if (contentLength == -1) {
+            throw new RuntimeException("Message from client has no Content-Length header");
+        }
+        readBody(contentLength);
+    }
+
+    byte[] body() {
+        return body;
+    }
+
+    int bodyLength() {
+        return bodyLength;
+    }
+
+    /** A reader that decodes the UTF-8 body of the current message, without copying it into a String first */
+    Reader bodyReader() {
+        return new Utf8Reader(body, bodyLength);
+    }
+
+    /** Read the next message as a string, without leading whitespace */
+    String nextToken() {
+        next();
+        return new String(body, 0, bodyLength, StandardCharsets.UTF_8).stripLeading();
+    }
+
+    /** Read one header line into `line`, without the trailing \r\n, and return its length */
+    private int readLine() {
+        var length = 0;
+        while (true) {
+            if (position == limit) fill();
+            // Scan the buffer for the end of the line, copying as we go
+            var start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            var found = position < limit;
+            var count = position - start;
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            System.arraycopy(buffer, start, line, length, count);
+            length += count;
+            if (found) {
+                position++;
+                // Drop the \r before the \n
+                if (length > 0 && line[length - 1] == '\r') length--;
+                return length;
+            }
+        }
+    }
+
+    private int parseContentLength(int lineLength) {
+        if (lineLength < CONTENT_LENGTH.length) return -1;
+        for (var i = 0; i < CONTENT_LENGTH.length; i++) {
+            var c = line[i];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != CONTENT_LENGTH[i]) return -1;
+        }
+        var value = 0;
+        var digits = 0;
+        for (var i = CONTENT_LENGTH.length; i < lineLength; i++) {
+            var c = line[i];
+            if (c == ' ') continue;
+            if (c < '0' || c > '9') throw new RuntimeException("Bad Content-Length header");
+            value = Math.addExact(Math.multiplyExact(value, 10), c - '0');
+            digits++;
+        }
+        if (digits == 0) throw new RuntimeException("Bad Content-Length header");
+        return value;
+    }
+
+    private void readBody(int length) {
+        if (length > body.length || body.length > MAX_RETAINED_BODY) {
+            body = new byte[Math.max(length, 8 * 1024)];
+        }
+        // Take whatever is already buffered, then read the rest straight into body
+        var buffered = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, body, 0, buffered);
+        position += buffered;
+        var read = buffered;
+        while (read < length) {
+            int n;
+            try {
+                n = in.read(body, read, length - read);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, e.getMessage(), e);
+                throw new LSP.EndOfStream();
+            }
+            if (n == -1) {
+                LOG.warning("Stream from client has been closed, throwing kill exception...");
+                throw new LSP.EndOfStream();
+            }
+            read += n;
+        }
+        bodyLength = length;
+    }
+
+    private void fill() {
+        int n;
+        try {
+            n = in.read(buffer, 0, buffer.length);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, e.getMessage(), e);
+            throw new LSP.EndOfStream();
+        }
+        if (n == -1) {
+            LOG.warning("Stream from client has been closed, throwing kill exception...");
+            throw new LSP.EndOfStream();
+        }
+        position = 0;
+        limit = n;
+    }
+
+    /**
+     * Reader that decodes UTF-8 straight out of a byte array. Malformed bytes become U+FFFD, like new String(bytes, UTF_8)
+     * would do, so that the JSON parser sees the same text either way.
+     */
+    private static class Utf8Reader extends Reader {
+        final byte[] bytes;
+        final int limit;
+        int position;
+        /** The low surrogate of a code point whose high surrogate didn't fit in the last read, or 0 */
+        char lowSurrogate;
+
+        Utf8Reader(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) {
+            if (length == 0) return 0;
+            var end = offset + length;
+            var i = offset;
+            if (lowSurrogate != 0) {
+                chars[i++] = lowSurrogate;
+                lowSurrogate = 0;
+            }
+            while (i < end && position < limit) {
+                var b = bytes[position];
+                // Messages are almost entirely ASCII
+                if (b >= 0) {
+                    chars[i++] = (char) b;
+                    position++;
+                    continue;
+                }
+                var codePoint = decode();
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    chars[i++] = (char) codePoint;
+                } else {
+                    chars[i++] = Character.highSurrogate(codePoint);
+                    if (i < end) {
+                        chars[i++] = Character.lowSurrogate(codePoint);
+                    } else {
+                        lowSurrogate = Character.lowSurrogate(codePoint);
+                    }
+                }
+            }
+            if (i == offset) return -1;
+            return i - offset;
+        }
+
+        /**
+         * Decode the multi-byte sequence at position, and move past it. A malformed sequence is replaced by a single
+         * U+FFFD, which covers its lead byte and the continuation bytes that were valid so far.
+         */
+        private int decode() {
+            var lead = bytes[position] & 0xFF;
+            int expected, codePoint;
+            if (lead >= 0xC2 && lead <= 0xDF) {
+                expected = 1;
+                codePoint = lead & 0x1F;
+            } else if (lead >= 0xE0 && lead <= 0xEF) {
+                expected = 2;
+                codePoint = lead & 0x0F;
+            } else if (lead >= 0xF0 && lead <= 0xF4) {
+                expected = 3;
+                codePoint = lead & 0x07;
+            } else {
+                position++;
+                return '\uFFFD';
+            }
+            var valid = 0;
+            while (valid < expected && position + valid + 1 < limit) {
+                var b = bytes[position + valid + 1] & 0xFF;
+                if (!isContinuation(lead, valid, b)) break;
+                codePoint = (codePoint << 6) | (b & 0x3F);
+                valid++;
+            }
+            position += valid + 1;
+            // Encoded surrogates are replaced as a whole, like the JDK decoder does
+            if (valid < expected || (expected == 2 && Character.isSurrogate((char) codePoint))) return '\uFFFD';
+            return codePoint;
+        }
+
+        /** True if `b` can be continuation byte number `index` after `lead`, ruling out overlong forms and code points past U+10FFFF */
+        private static boolean isContinuation(int lead, int index, int b) {
+            if (index == 0) {
+                if (lead == 0xE0) return b >= 0xA0 && b <= 0xBF;
+                if (lead == 0xF0) return b >= 0x90 && b <= 0xBF;
+                if (lead == 0xF4) return b >= 0x80 && b <= 0x8F;
+            }
+            return (b & 0xC0) == 0x80;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
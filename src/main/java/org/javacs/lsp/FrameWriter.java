@@ -0,0 +1,169 @@
+package org.javacs.lsp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * FrameWriter sends messages to the client. Each message is serialized straight into a reusable buffer, behind space
+ * reserved for its Content-Length header, so header and body go out in a single write without building the message as
+ * a String first. Several threads send messages, so writes are synchronized.
+ */
+class FrameWriter {
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    /** Room for "Content-Length: " + 10 digits + "\r\n\r\n" */
+    private static final int HEADER_SPACE = 32;
+    /** Buffers bigger than this aren't kept around after a message has been sent */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    /** Growable byte array that lets us write the header into the space in front of the body */
+    private static class Buffer {
+        byte[] buf = new byte[8 * 1024];
+        /** buf[0, count) holds the header space and the body written so far */
+        int count;
+
+        void startMessage() {
+            if (buf.length > MAX_RETAINED_BUFFER) {
+                buf = new byte[8 * 1024];
+            }
+            count = HEADER_SPACE;
+        }
+
+        /** Fill in the header in front of the body, and return where the message starts */
+        int finishMessage() {
+            var length = count - HEADER_SPACE;
+            var start = HEADER_SPACE - 4;
+            buf[start] = '\r';
+            buf[start + 1] = '\n';
+            buf[start + 2] = '\r';
+            buf[start + 3] = '\n';
+            do {
+                buf[--start] = (byte) ('0' + length % 10);
+                length /= 10;
+            } while (length > 0);
+            start -= CONTENT_LENGTH.length;
+            System.arraycopy(CONTENT_LENGTH, 0, buf, start, CONTENT_LENGTH.length);
+            return start;
+        }
+
+        void writeTo(OutputStream out, int start) throws IOException {
+            out.write(buf, start, count - start);
+        }
+
+        void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+    }
+
+    /**
+     * Writer that encodes UTF-8 straight into the buffer. Messages are almost entirely ASCII, and this is much faster than
+     * going through a CharsetEncoder.
+     */
+    private static class Utf8Writer extends Writer {
+        final Buffer out;
+        /** A high surrogate whose low surrogate hasn't been written yet, or 0 */
+        char highSurrogate;
+
+        Utf8Writer(Buffer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) {
+            writeChar((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            out.ensureCapacity(length * 3);
+            for (var i = offset; i < offset + length; i++) {
+                writeChar(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            out.ensureCapacity(length * 3);
+            for (var i = offset; i < offset + length; i++) {
+                writeChar(string.charAt(i));
+            }
+        }
+
+        private void writeChar(char c) {
+            out.ensureCapacity(4);
+            var buf = out.buf;
+            if (highSurrogate != 0) {
+                var high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    var codePoint = Character.toCodePoint(high, c);
+                    buf[out.count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[out.count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[out.count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[out.count++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                // Unpaired surrogate, same replacement as String.getBytes
+                buf[out.count++] = '?';
+                out.ensureCapacity(4);
+                buf = out.buf;
+            }
+            if (c < 0x80) {
+                buf[out.count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[out.count++] = (byte) (0xC0 | (c >> 6));
+                buf[out.count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buf[out.count++] = '?';
+            } else {
+                buf[out.count++] = (byte) (0xE0 | (c >> 12));
+                buf[out.count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[out.count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                out.ensureCapacity(1);
+                out.buf[out.count++] = '?';
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    private final OutputStream out;
+    private final Buffer buffer = new Buffer();
+    private final Utf8Writer writer = new Utf8Writer(buffer);
+
+    FrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Send the message `prefix` + json(payload) + `suffix` */
+    synchronized void write(String prefix, Object payload, String suffix) {
+        try {
+            buffer.startMessage();
+            writer.write(prefix);
+            LSP.gson.toJson(payload, writer);
+            writer.write(suffix);
+            writer.flush();
+            var start = buffer.finishMessage();
+            buffer.writeTo(out, start);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
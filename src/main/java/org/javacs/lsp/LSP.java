@@ -2,98 +2,121 @@ package org.javacs.lsp;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class LSP {
-    private static final Gson gson = new Gson();
-
-    private static String readHeader(InputStream client) {
-        var line = new StringBuilder();
-        for (var next = read(client); true; next = read(client)) {
-            if (next == '\r') {
-                var last = read(client);
-                assert last == '\n';
-                break;
-            }
-            line.append(next);
-        }
-        return line.toString();
-    }
-
-    private static int parseHeader(String header) {
-        var contentLength = "Content-Length: ";
-        if (header.startsWith(contentLength)) {
-            var tail = header.substring(contentLength.length());
-            var length = Integer.parseInt(tail);
-            return length;
-        }
-        return -1;
-    }
+    static final Gson gson = new Gson();
 
     static class EndOfStream extends RuntimeException {}
 
-    // TODO this seems like it's probably really inefficient. Read in bulk?
-    private static char read(InputStream client) {
-        try {
-            var c = client.read();
-            if (c == -1) {
-                LOG.warning("Stream from client has been closed, throwing kill exception...");
-                throw new EndOfStream();
-            }
-            return (char) c;
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-            throw new EndOfStream();
-        }
+    static Message parseMessage(String token) {
+        return gson.fromJson(token, Message.class);
     }
 
-    private static String readLength(InputStream client, int byteLength) {
-        // Eat whitespace
-        try {
-            return new String(client.readNBytes(byteLength), StandardCharsets.UTF_8).stripLeading();
+    /**
+     * Read the next message from `frames`, streaming the JSON straight out of the body buffer. If `method` comes before
+     * `params`, which is the order clients send them in, params are bound directly to the class the method expects, so
+     * no String or JsonElement tree is built for them.
+     */
+    static Message readMessage(FrameReader frames) {
+        frames.next();
+        var message = new Message();
+        try (var json = new JsonReader(frames.bodyReader())) {
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "jsonrpc":
+                        message.jsonrpc = json.nextString();
+                        break;
+                    case "id":
+                        if (json.peek() == JsonToken.NULL) {
+                            json.nextNull();
+                        } else {
+                            message.id = json.nextInt();
+                        }
+                        break;
+                    case "method":
+                        message.method = json.nextString();
+                        break;
+                    case "params":
+                        var type = message.method == null ? null : PARAMS.get(message.method);
+                        if (type != null) {
+                            message.bound = gson.fromJson(json, type);
+                        } else {
+                            message.params = gson.fromJson(json, JsonElement.class);
+                        }
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
         } catch (IOException e) {
-            throw new RuntimeException("An error occurred during the reading of client data", e);
+            throw new RuntimeException(e);
         }
-    }
-
-    static String nextToken(InputStream client) {
-        var contentLength = -1;
-        while (true) {
-            var line = readHeader(client);
-            // If header is empty, next line is the start of the message
-            if (line.isEmpty()) return readLength(client, contentLength);
-            // If header contains length, save it
-            var maybeLength = parseHeader(line);
-            if (maybeLength != -1) contentLength = maybeLength;
+        // If params came before method, bind them now
+        var type = message.method == null ? null : PARAMS.get(message.method);
+        if (type != null && message.params != null) {
+            message.bound = gson.fromJson(message.params, type);
+            message.params = null;
         }
+        return message;
     }
 
-    static Message parseMessage(String token) {
-        return gson.fromJson(token, Message.class);
+    /** The params of `message`, as the class that `message.method` expects */
+    private static <T> T params(Message message, Class<T> type) {
+        if (type.isInstance(message.bound)) {
+            return type.cast(message.bound);
+        }
+        return gson.fromJson(message.params, type);
     }
 
-    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+    /** PARAMS[method] is the class of the params of method */
+    private static final Map<String, Class<?>> PARAMS = new HashMap<>();
 
-    private static void writeClient(OutputStream client, String messageText) {
-        var messageBytes = messageText.getBytes(UTF_8);
-        var headerText = String.format("Content-Length: %d\r\n\r\n", messageBytes.length);
-        var headerBytes = headerText.getBytes(UTF_8);
-        try {
-            client.write(headerBytes);
-            client.write(messageBytes);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    static {
+        PARAMS.put("initialize", InitializeParams.class);
+        PARAMS.put("workspace/didChangeWorkspaceFolders", DidChangeWorkspaceFoldersParams.class);
+        PARAMS.put("workspace/didChangeConfiguration", DidChangeConfigurationParams.class);
+        PARAMS.put("workspace/didChangeWatchedFiles", DidChangeWatchedFilesParams.class);
+        PARAMS.put("workspace/symbol", WorkspaceSymbolParams.class);
+        PARAMS.put("textDocument/documentLink", DocumentLinkParams.class);
+        PARAMS.put("textDocument/didOpen", DidOpenTextDocumentParams.class);
+        PARAMS.put("textDocument/didChange", DidChangeTextDocumentParams.class);
+        PARAMS.put("textDocument/willSave", WillSaveTextDocumentParams.class);
+        PARAMS.put("textDocument/willSaveWaitUntil", WillSaveTextDocumentParams.class);
+        PARAMS.put("textDocument/didSave", DidSaveTextDocumentParams.class);
+        PARAMS.put("textDocument/didClose", DidCloseTextDocumentParams.class);
+        PARAMS.put("textDocument/completion", TextDocumentPositionParams.class);
+        PARAMS.put("completionItem/resolve", CompletionItem.class);
+        PARAMS.put("textDocument/hover", TextDocumentPositionParams.class);
+        PARAMS.put("textDocument/signatureHelp", TextDocumentPositionParams.class);
+        PARAMS.put("textDocument/definition", TextDocumentPositionParams.class);
+        PARAMS.put("textDocument/references", ReferenceParams.class);
+        PARAMS.put("textDocument/documentSymbol", DocumentSymbolParams.class);
+        PARAMS.put("textDocument/codeAction", CodeActionParams.class);
+        PARAMS.put("textDocument/codeLens", CodeLensParams.class);
+        PARAMS.put("codeLens/resolve", CodeLens.class);
+        PARAMS.put("textDocument/prepareRename", TextDocumentPositionParams.class);
+        PARAMS.put("textDocument/rename", RenameParams.class);
+        PARAMS.put("textDocument/formatting", DocumentFormattingParams.class);
+        PARAMS.put("textDocument/foldingRange", FoldingRangeParams.class);
+        PARAMS.put("$/cancelRequest", CancelParams.class);
     }
 
     static String toJson(Object message) {
@@ -101,7 +124,7 @@ public class LSP {
     }
 
     @SuppressWarnings("unchecked")
-    static void respond(OutputStream client, int requestId, Object params) {
+    static void respond(FrameWriter client, int requestId, Object params) {
         if (params instanceof ResponseError) {
             throw new RuntimeException("Errors should be sent using LSP.error(...)");
         }
@@ -109,32 +132,26 @@ public class LSP {
             var option = (Optional) params;
             params = option.orElse(null);
         }
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"result\":%s}", requestId, jsonText);
-        writeClient(client, messageText);
+        client.write("{\"jsonrpc\":\"2.0\",\"id\":" + requestId + ",\"result\":", params, "}");
     }
 
-    static void error(OutputStream client, int requestId, ResponseError error) {
-        var jsonText = toJson(error);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"error\":%s}", requestId, jsonText);
-        writeClient(client, messageText);
+    static void error(FrameWriter client, int requestId, ResponseError error) {
+        client.write("{\"jsonrpc\":\"2.0\",\"id\":" + requestId + ",\"error\":", error, "}");
     }
 
     @SuppressWarnings("unchecked")
-    private static void notifyClient(OutputStream client, String method, Object params) {
+    private static void notifyClient(FrameWriter client, String method, Object params) {
         if (params instanceof Optional) {
             var option = (Optional) params;
             params = option.orElse(null);
         }
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s}", method, jsonText);
-        writeClient(client, messageText);
+        client.write("{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":", params, "}");
     }
 
     private static class RealClient implements LanguageClient {
-        final OutputStream send;
+        final FrameWriter send;
 
-        RealClient(OutputStream send) {
+        RealClient(FrameWriter send) {
             this.send = send;
         }
 
@@ -156,15 +173,11 @@ public class LSP {
             registration.method = method;
             registration.registerOptions = options;
             params.registrations.add(registration);
-            var jsonText = toJson(params);
             var requestMethod = "client/registerCapability";
             // The request should contain the id param. Otherwise, it will be considered a notification.
             var id = new Random().nextInt();
-            var messageText =
-                    String.format(
-                            "{\"jsonrpc\":\"2.0\",\"id\":\"%d\",\"method\":\"%s\",\"params\":%s}",
-                            id, requestMethod, jsonText);
-            writeClient(send, messageText);
+            var prefix = String.format("{\"jsonrpc\":\"2.0\",\"id\":\"%d\",\"method\":\"%s\",\"params\":", id, requestMethod);
+            send.write(prefix, params, "}");
         }
 
         @Override
@@ -174,19 +187,33 @@ public class LSP {
     }
 
     public static void connect(
-            Function<LanguageClient, LanguageServer> serverFactory, InputStream receive, OutputStream send) {
+            Function<LanguageClient, LanguageServer> serverFactory, InputStream receive, OutputStream output) {
+        var send = new FrameWriter(output);
         var server = serverFactory.apply(new RealClient(send));
         var pending = new ArrayBlockingQueue<Message>(10);
         var endOfStream = new Message();
+        // tokens[id] lets $/cancelRequest stop request id, from when it is read until it has been answered
+        var tokens = new ConcurrentHashMap<Integer, CancelToken>();
 
         // Read messages and process cancellations on a separate thread
         class MessageReader implements Runnable {
             void peek(Message message) {
                 if ("$/cancelRequest".equals(message.method)) {
-                    var params = gson.fromJson(message.params, CancelParams.class);
+                    var params = params(message, CancelParams.class);
                     var removed = pending.removeIf(r -> r.id != null && r.id.equals(params.id));
-                    if (removed) LOG.info(String.format("Cancelled request %d, which had not yet started", params.id));
-                    else LOG.info(String.format("Cannot cancel request %d because it has already started", params.id));
+                    if (removed) {
+                        LOG.info(String.format("Cancelled request %d, which had not yet started", params.id));
+                        tokens.remove(params.id);
+                        error(send, params.id, cancelled());
+                        return;
+                    }
+                    var token = tokens.get(params.id);
+                    if (token != null) {
+                        LOG.info(String.format("Cancelling request %d, which has already started", params.id));
+                        token.cancel();
+                    } else {
+                        LOG.info(String.format("Cannot cancel request %d because it has already finished", params.id));
+                    }
                 }
             }
 
@@ -204,11 +231,15 @@ public class LSP {
             @Override
             public void run() {
                 LOG.info("Placing incoming messages on queue...");
+                var frames = new FrameReader(receive);
 
                 while (true) {
                     try {
-                        var token = nextToken(receive);
-                        var message = parseMessage(token);
+                        var message = readMessage(frames);
+                        // Register the request before it becomes visible to the main thread, so no cancellation is missed
+                        if (message.id != null && message.method != null) {
+                            tokens.put(message.id, new CancelToken());
+                        }
                         peek(message);
                         pending.put(message);
                     } catch (EndOfStream __) {
@@ -223,10 +254,10 @@ public class LSP {
         reader.setDaemon(true);
         reader.start();
 
-        // Process messages on main thread
+        // Process messages on main thread, or hand them to workers
         LOG.info("Reading messages from queue...");
+        var scheduler = new DocumentScheduler(WORKER_THREADS);
         var hasAsyncWork = false;
-        processMessages:
         while (true) {
             Message r;
             try {
@@ -239,222 +270,360 @@ public class LSP {
             // If receive has been closed, exit
             if (r == endOfStream) {
                 LOG.warning("Stream from client has been closed, exiting...");
-                break processMessages;
+                break;
             }
             // If poll(_) failed, loop again
             if (r == null) {
-                if (hasAsyncWork) {
-                    server.doAsyncWork();
+                // Async work like linting reads open documents, so wait until nothing is editing them.
+                // It can take a long time, for example while the class path is inferred, so it runs on a worker.
+                if (hasAsyncWork && scheduler.isIdle()) {
+                    scheduler.submitUnordered(server::doAsyncWork);
                     hasAsyncWork = false;
                 }
                 continue;
             }
+            // Responses to requests we sent, like client/registerCapability, have no method, and nothing waits for them
+            if (r.method == null) {
+                LOG.info(String.format("Ignoring response to request %d", r.id));
+                continue;
+            }
+            if ("exit".equals(r.method)) {
+                LOG.warning("Got exit message, exiting...");
+                break;
+            }
             // Otherwise, process the new message
             hasAsyncWork = true;
             try {
-                switch (r.method) {
-                    case "initialize":
-                        {
-                            var params = gson.fromJson(r.params, InitializeParams.class);
-                            var response = server.initialize(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "initialized":
-                        {
-                            server.initialized();
-                            break;
-                        }
-                    case "shutdown":
-                        {
-                            LOG.warning("Got shutdown message");
-                            respond(send, r.id, null);
-                            break;
-                        }
-                    case "exit":
-                        {
-                            LOG.warning("Got exit message, exiting...");
-                            break processMessages;
-                        }
-                    case "workspace/didChangeWorkspaceFolders":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeWorkspaceFoldersParams.class);
-                            server.didChangeWorkspaceFolders(params);
-                            break;
-                        }
-                    case "workspace/didChangeConfiguration":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeConfigurationParams.class);
-                            server.didChangeConfiguration(params);
-                            break;
-                        }
-                    case "workspace/didChangeWatchedFiles":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeWatchedFilesParams.class);
-                            server.didChangeWatchedFiles(params);
-                            break;
-                        }
-                    case "workspace/symbol":
-                        {
-                            var params = gson.fromJson(r.params, WorkspaceSymbolParams.class);
-                            var response = server.workspaceSymbols(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/documentLink":
-                        {
-                            var params = gson.fromJson(r.params, DocumentLinkParams.class);
-                            var response = server.documentLink(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/didOpen":
-                        {
-                            var params = gson.fromJson(r.params, DidOpenTextDocumentParams.class);
-                            server.didOpenTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/didChange":
-                        {
-                            var params = gson.fromJson(r.params, DidChangeTextDocumentParams.class);
-                            server.didChangeTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/willSave":
-                        {
-                            var params = gson.fromJson(r.params, WillSaveTextDocumentParams.class);
-                            server.willSaveTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/willSaveWaitUntil":
-                        {
-                            var params = gson.fromJson(r.params, WillSaveTextDocumentParams.class);
-                            var response = server.willSaveWaitUntilTextDocument(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/didSave":
-                        {
-                            var params = gson.fromJson(r.params, DidSaveTextDocumentParams.class);
-                            server.didSaveTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/didClose":
-                        {
-                            var params = gson.fromJson(r.params, DidCloseTextDocumentParams.class);
-                            server.didCloseTextDocument(params);
-                            break;
-                        }
-                    case "textDocument/completion":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.completion(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "completionItem/resolve":
-                        {
-                            var params = gson.fromJson(r.params, CompletionItem.class);
-                            var response = server.resolveCompletionItem(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/hover":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.hover(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/signatureHelp":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.signatureHelp(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/definition":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.gotoDefinition(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/references":
-                        {
-                            var params = gson.fromJson(r.params, ReferenceParams.class);
-                            var response = server.findReferences(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/documentSymbol":
-                        {
-                            var params = gson.fromJson(r.params, DocumentSymbolParams.class);
-                            var response = server.documentSymbol(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/codeAction":
-                        {
-                            var params = gson.fromJson(r.params, CodeActionParams.class);
-                            var response = server.codeAction(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/codeLens":
-                        {
-                            var params = gson.fromJson(r.params, CodeLensParams.class);
-                            var response = server.codeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "codeLens/resolve":
-                        {
-                            var params = gson.fromJson(r.params, CodeLens.class);
-                            var response = server.resolveCodeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/prepareRename":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.prepareRename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/rename":
-                        {
-                            var params = gson.fromJson(r.params, RenameParams.class);
-                            var response = server.rename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/formatting":
-                        {
-                            var params = gson.fromJson(r.params, DocumentFormattingParams.class);
-                            var response = server.formatting(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/foldingRange":
-                        {
-                            var params = gson.fromJson(r.params, FoldingRangeParams.class);
-                            var response = server.foldingRange(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "$/cancelRequest":
-                        // Already handled in peek(message)
-                        break;
-                    default:
-                        LOG.warning(String.format("Don't know what to do with method `%s`", r.method));
+                var message = r;
+                var uri = documentUri(message);
+                if (uri != null) {
+                    var readOnly = READ_ONLY.contains(message.method);
+                    scheduler.submit(uri, readOnly, () -> handle(server, send, message, tokens));
+                    if ("textDocument/didClose".equals(message.method)) {
+                        scheduler.release(uri);
+                    }
+                } else if ("$/cancelRequest".equals(r.method)) {
+                    // Cancelling is quick, and must not wait behind the request it cancels
+                    handle(server, send, r, tokens);
+                } else if (UNORDERED.contains(r.method)) {
+                    scheduler.submitUnordered(() -> handle(server, send, message, tokens));
+                } else {
+                    // Messages like initialize and didChangeConfiguration affect every document
+                    scheduler.awaitAll();
+                    handle(server, send, r, tokens);
                 }
             } catch (Exception e) {
                 LOG.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        scheduler.shutdown();
+    }
+
+    /** Number of threads that run messages about documents */
+    private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Requests that only read a document, so they can run in parallel with other requests for the same document.
+     * Requests that answer with edits, like rename and formatting, only read too: the client applies the edits and
+     * sends them back as didChange.
+     */
+    private static final Set<String> READ_ONLY =
+            Set.of(
+                    "textDocument/completion",
+                    "textDocument/signatureHelp",
+                    "textDocument/codeAction",
+                    "textDocument/prepareRename",
+                    "textDocument/rename",
+                    "textDocument/formatting",
+                    "textDocument/hover",
+                    "textDocument/definition",
+                    "textDocument/references",
+                    "textDocument/documentSymbol",
+                    "textDocument/documentLink",
+                    "textDocument/foldingRange",
+                    "textDocument/codeLens");
+
+    /**
+     * Messages that aren't about a particular document, and don't need to wait for other messages to finish. They may
+     * need a compiler, which can take a long time to create, so they run on workers.
+     */
+    private static final Set<String> UNORDERED = Set.of("workspace/symbol", "completionItem/resolve", "codeLens/resolve");
+
+    /** The document that `message` is about, or null if it applies to the whole workspace */
+    private static String documentUri(Message message) {
+        if (message.method == null || !message.method.startsWith("textDocument/")) return null;
+        if (message.bound != null) return documentUri(message.bound);
+        if (message.params == null || !message.params.isJsonObject()) return null;
+        var textDocument = message.params.getAsJsonObject().get("textDocument");
+        if (textDocument == null || !textDocument.isJsonObject()) return null;
+        var uri = textDocument.getAsJsonObject().get("uri");
+        if (uri == null) return null;
+        return uri.getAsString();
+    }
+
+    private static String documentUri(Object params) {
+        URI uri = null;
+        if (params instanceof TextDocumentPositionParams) {
+            uri = uri(((TextDocumentPositionParams) params).textDocument);
+        } else if (params instanceof DidOpenTextDocumentParams) {
+            var item = ((DidOpenTextDocumentParams) params).textDocument;
+            uri = item == null ? null : item.uri;
+        } else if (params instanceof DidChangeTextDocumentParams) {
+            var id = ((DidChangeTextDocumentParams) params).textDocument;
+            uri = id == null ? null : id.uri;
+        } else if (params instanceof WillSaveTextDocumentParams) {
+            uri = uri(((WillSaveTextDocumentParams) params).textDocument);
+        } else if (params instanceof DidSaveTextDocumentParams) {
+            uri = uri(((DidSaveTextDocumentParams) params).textDocument);
+        } else if (params instanceof DidCloseTextDocumentParams) {
+            uri = uri(((DidCloseTextDocumentParams) params).textDocument);
+        } else if (params instanceof DocumentSymbolParams) {
+            uri = uri(((DocumentSymbolParams) params).textDocument);
+        } else if (params instanceof DocumentLinkParams) {
+            uri = uri(((DocumentLinkParams) params).textDocument);
+        } else if (params instanceof CodeActionParams) {
+            uri = uri(((CodeActionParams) params).textDocument);
+        } else if (params instanceof CodeLensParams) {
+            uri = uri(((CodeLensParams) params).textDocument);
+        } else if (params instanceof RenameParams) {
+            uri = uri(((RenameParams) params).textDocument);
+        } else if (params instanceof DocumentFormattingParams) {
+            uri = uri(((DocumentFormattingParams) params).textDocument);
+        } else if (params instanceof FoldingRangeParams) {
+            uri = uri(((FoldingRangeParams) params).textDocument);
+        }
+        if (uri == null) return null;
+        return uri.toString();
+    }
+
+    private static URI uri(TextDocumentIdentifier textDocument) {
+        if (textDocument == null) return null;
+        return textDocument.uri;
+    }
+
+    private static ResponseError cancelled() {
+        return new ResponseError(ErrorCodes.RequestCancelled, "Request was cancelled", null);
+    }
+
+    private static void handle(
+            LanguageServer server, FrameWriter send, Message r, Map<Integer, CancelToken> tokens) {
+        var token = r.id == null ? null : tokens.get(r.id);
+        if (token != null) {
+            CancelToken.bind(token);
+        }
+        try {
+            // The request may have been cancelled while it was waiting for earlier messages
+            CancelToken.checkCancelled();
+            switch (r.method) {
+                case "initialize":
+                    {
+                        var params = params(r, InitializeParams.class);
+                        var response = server.initialize(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "initialized":
+                    {
+                        server.initialized();
+                        break;
+                    }
+                case "shutdown":
+                    {
+                        LOG.warning("Got shutdown message");
+                        server.shutdown();
+                        respond(send, r.id, null);
+                        break;
+                    }
+                case "workspace/didChangeWorkspaceFolders":
+                    {
+                        var params = params(r, DidChangeWorkspaceFoldersParams.class);
+                        server.didChangeWorkspaceFolders(params);
+                        break;
+                    }
+                case "workspace/didChangeConfiguration":
+                    {
+                        var params = params(r, DidChangeConfigurationParams.class);
+                        server.didChangeConfiguration(params);
+                        break;
+                    }
+                case "workspace/didChangeWatchedFiles":
+                    {
+                        var params = params(r, DidChangeWatchedFilesParams.class);
+                        server.didChangeWatchedFiles(params);
+                        break;
+                    }
+                case "workspace/symbol":
+                    {
+                        var params = params(r, WorkspaceSymbolParams.class);
+                        var response = server.workspaceSymbols(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/documentLink":
+                    {
+                        var params = params(r, DocumentLinkParams.class);
+                        var response = server.documentLink(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/didOpen":
+                    {
+                        var params = params(r, DidOpenTextDocumentParams.class);
+                        server.didOpenTextDocument(params);
+                        break;
+                    }
+                case "textDocument/didChange":
+                    {
+                        var params = params(r, DidChangeTextDocumentParams.class);
+                        server.didChangeTextDocument(params);
+                        break;
+                    }
+                case "textDocument/willSave":
+                    {
+                        var params = params(r, WillSaveTextDocumentParams.class);
+                        server.willSaveTextDocument(params);
+                        break;
+                    }
+                case "textDocument/willSaveWaitUntil":
+                    {
+                        var params = params(r, WillSaveTextDocumentParams.class);
+                        var response = server.willSaveWaitUntilTextDocument(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/didSave":
+                    {
+                        var params = params(r, DidSaveTextDocumentParams.class);
+                        server.didSaveTextDocument(params);
+                        break;
+                    }
+                case "textDocument/didClose":
+                    {
+                        var params = params(r, DidCloseTextDocumentParams.class);
+                        server.didCloseTextDocument(params);
+                        break;
+                    }
+                case "textDocument/completion":
+                    {
+                        var params = params(r, TextDocumentPositionParams.class);
+                        var response = server.completion(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "completionItem/resolve":
+                    {
+                        var params = params(r, CompletionItem.class);
+                        var response = server.resolveCompletionItem(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/hover":
+                    {
+                        var params = params(r, TextDocumentPositionParams.class);
+                        var response = server.hover(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/signatureHelp":
+                    {
+                        var params = params(r, TextDocumentPositionParams.class);
+                        var response = server.signatureHelp(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/definition":
+                    {
+                        var params = params(r, TextDocumentPositionParams.class);
+                        var response = server.gotoDefinition(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/references":
+                    {
+                        var params = params(r, ReferenceParams.class);
+                        var response = server.findReferences(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/documentSymbol":
+                    {
+                        var params = params(r, DocumentSymbolParams.class);
+                        var response = server.documentSymbol(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/codeAction":
+                    {
+                        var params = params(r, CodeActionParams.class);
+                        var response = server.codeAction(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/codeLens":
+                    {
+                        var params = params(r, CodeLensParams.class);
+                        var response = server.codeLens(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "codeLens/resolve":
+                    {
+                        var params = params(r, CodeLens.class);
+                        var response = server.resolveCodeLens(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/prepareRename":
+                    {
+                        var params = params(r, TextDocumentPositionParams.class);
+                        var response = server.prepareRename(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/rename":
+                    {
+                        var params = params(r, RenameParams.class);
+                        var response = server.rename(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/formatting":
+                    {
+                        var params = params(r, DocumentFormattingParams.class);
+                        var response = server.formatting(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "textDocument/foldingRange":
+                    {
+                        var params = params(r, FoldingRangeParams.class);
+                        var response = server.foldingRange(params);
+                        respond(send, r.id, response);
+                        break;
+                    }
+                case "$/cancelRequest":
+                    // Already handled in peek(message)
+                    break;
+                default:
+                    LOG.warning(String.format("Don't know what to do with method `%s`", r.method));
+            }
+        } catch (Exception e) {
+            if (CancelToken.isCancellation(e)) {
+                LOG.info(String.format("...cancelled request %d", r.id));
+                if (r.id != null) {
+                    error(send, r.id, cancelled());
+                }
+            } else {
+                LOG.log(Level.SEVERE, e.getMessage(), e);
                 if (r.id != null) {
                     error(send, r.id, new ResponseError(ErrorCodes.InternalError, e.getMessage(), null));
                 }
             }
+        } finally {
+            if (r.id != null) {
+                tokens.remove(r.id);
+            }
+            CancelToken.unbind();
         }
     }
 
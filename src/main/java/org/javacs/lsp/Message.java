@@ -7,4 +7,6 @@ public class Message {
     public Integer id;
     public String method;
     public JsonElement params;
+    /** params, already bound to the class that method expects, if they were decoded while the message was read */
+    transient Object bound;
 }
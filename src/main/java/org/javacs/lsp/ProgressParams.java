@@ -0,0 +1,16 @@
+package org.javacs.lsp;
+
+import com.google.gson.JsonElement;
+
+/** The params of $/progress, which reports work-done progress or partial results for the request that owns `token` */
+public class ProgressParams {
+    public JsonElement token;
+    public JsonElement value;
+
+    public ProgressParams() {}
+
+    public ProgressParams(JsonElement token, JsonElement value) {
+        this.token = token;
+        this.value = value;
+    }
+}
@@ -1,5 +1,9 @@
 package org.javacs.lsp;
 
+import com.google.gson.JsonElement;
+
 public class ReferenceParams extends TextDocumentPositionParams {
     public ReferenceContext context;
+    /** If set, the client wants progress reports and partial results as $/progress notifications with these tokens */
+    public JsonElement workDoneToken, partialResultToken;
 }
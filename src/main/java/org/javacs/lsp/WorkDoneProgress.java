@@ -0,0 +1,17 @@
+package org.javacs.lsp;
+
+/** The value of a work-done $/progress notification: kind is "begin", "report" or "end" */
+public class WorkDoneProgress {
+    public String kind;
+    public String title, message;
+    public Integer percentage;
+
+    public WorkDoneProgress() {}
+
+    public WorkDoneProgress(String kind, String title, String message, Integer percentage) {
+        this.kind = kind;
+        this.title = title;
+        this.message = message;
+        this.percentage = percentage;
+    }
+}
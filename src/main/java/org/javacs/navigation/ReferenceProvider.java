@@ -1,27 +1,67 @@
 package org.javacs.navigation;
 
 import com.sun.source.util.TreePath;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 import javax.lang.model.element.TypeElement;
 import org.javacs.CompileTask;
 import org.javacs.CompilerProvider;
 import org.javacs.FindHelper;
+import org.javacs.lsp.CancelToken;
 import org.javacs.lsp.Location;
 
 public class ReferenceProvider {
+    /**
+     * Candidate files are compiled in chunks that are expected to need about this much heap each, so a search that
+     * matches most of a big workspace doesn't try to hold all of it in one javac task.
+     */
+    private static volatile long chunkHeapBudget = 128L * 1024 * 1024;
+
+    public static void setChunkHeapBudget(long bytes) {
+        if (bytes < 1) throw new IllegalArgumentException("Chunk heap budget must be positive, was " + bytes);
+        chunkHeapBudget = bytes;
+    }
+
+    /** Rough heap that javac keeps per byte of source while a batch is open, measured on this project's sources */
+    private static final long HEAP_PER_SOURCE_BYTE = 20;
+
+    /** Receives the references found in each chunk of files, as soon as the chunk has been searched */
+    public interface PartialResults {
+        void found(List<Location> locations, int filesDone, int filesTotal);
+
+        PartialResults NONE = (locations, filesDone, filesTotal) -> {};
+    }
+
     private final CompilerProvider compiler;
     private final Path file;
     private final int line, column;
+    private final PartialResults partialResults;
 
     public static final List<Location> NOT_SUPPORTED = List.of();
 
     public ReferenceProvider(CompilerProvider compiler, Path file, int line, int column) {
+        this(compiler, file, line, column, PartialResults.NONE);
+    }
+
+    public ReferenceProvider(
+            CompilerProvider compiler, Path file, int line, int column, PartialResults partialResults) {
         this.compiler = compiler;
         this.file = file;
         this.line = line;
         this.column = column;
+        this.partialResults = partialResults;
     }
 
     public List<Location> find() {
@@ -54,23 +94,113 @@ public class ReferenceProvider {
     private List<Location> findTypeReferences(String className) {
         var files = compiler.findTypeReferences(className);
         if (files.length == 0) return List.of();
-        try (var task = compiler.compile(files)) {
-            return findReferences(task);
-        }
+        return findReferences(files);
     }
 
     private List<Location> findMemberReferences(String className, String memberName) {
         var files = compiler.findMemberReferences(className, memberName);
         if (files.length == 0) return List.of();
-        try (var task = compiler.compile(files)) {
-            return findReferences(task);
+        return findReferences(files);
+    }
+
+    /** Search `files` in chunks, several at a time if the compiler has room for them */
+    private List<Location> findReferences(Path[] files) {
+        var chunks = chunks(files);
+        var threads = Math.min(compiler.parallelism(), chunks.size());
+        LOG.info(String.format("...search %d files in %d chunks on %d threads", files.length, chunks.size(), threads));
+        var results = new ArrayList<List<Location>>();
+        var done = new AtomicInteger();
+        if (threads == 1) {
+            for (var chunk : chunks) {
+                results.add(findReferences(chunk, done, files.length));
+            }
+            return flatten(results);
+        }
+        var cancel = CancelToken.current();
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            var futures = new ArrayList<Future<List<Location>>>();
+            for (var chunk : chunks) {
+                var search = (Callable<List<Location>>) () -> findReferences(chunk, done, files.length);
+                futures.add(executor.submit(() -> CancelToken.runAs(cancel, search)));
+            }
+            // Put the results in the same order as the files, no matter which chunk finished first
+            for (var f : futures) {
+                results.add(f.get());
+            }
+            return flatten(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Split `files` into chunks of roughly chunkHeapBudget each, keeping their order */
+    private List<List<Path>> chunks(Path[] files) {
+        var maxSourceBytes = Math.max(1, chunkHeapBudget / HEAP_PER_SOURCE_BYTE);
+        var chunks = new ArrayList<List<Path>>();
+        var chunk = new ArrayList<Path>();
+        var chunkBytes = 0L;
+        for (var f : files) {
+            var bytes = sourceBytes(f);
+            if (!chunk.isEmpty() && chunkBytes + bytes > maxSourceBytes) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+            chunk.add(f);
+            chunkBytes += bytes;
         }
+        if (!chunk.isEmpty()) chunks.add(chunk);
+        return chunks;
+    }
+
+    private static long sourceBytes(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            // The file may only exist in the editor, and its size is just an estimate anyway
+            return 0;
+        }
+    }
+
+    /**
+     * Compile `chunk` together with the file under the cursor, so the element can be resolved, and find the references
+     * in the files that belong to `chunk`.
+     */
+    private List<Location> findReferences(List<Path> chunk, AtomicInteger done, int total) {
+        CancelToken.checkCancelled();
+        var owned = new HashSet<URI>();
+        for (var f : chunk) {
+            owned.add(f.toUri());
+        }
+        var sources = new ArrayList<Path>(chunk);
+        if (!owned.contains(file.toUri())) sources.add(file);
+        List<Location> locations;
+        try (var task = compiler.compile(sources.toArray(Path[]::new))) {
+            locations = findReferences(task, owned);
+        }
+        partialResults.found(locations, done.addAndGet(chunk.size()), total);
+        return locations;
     }
 
     private List<Location> findReferences(CompileTask task) {
+        return findReferences(task, null);
+    }
+
+    /** Find references in the roots of `task` whose file is in `only`, or in every root if `only` is null */
+    private List<Location> findReferences(CompileTask task, Set<URI> only) {
         var element = NavigationHelper.findElement(task, file, line, column);
         var paths = new ArrayList<TreePath>();
         for (var root : task.roots) {
+            CancelToken.checkCancelled();
+            if (only != null && !only.contains(root.getSourceFile().toUri())) continue;
             new FindReferences(task.task, element).scan(root, paths);
         }
         var locations = new ArrayList<Location>();
@@ -79,4 +209,14 @@ public class ReferenceProvider {
         }
         return locations;
     }
+
+    private static List<Location> flatten(List<List<Location>> results) {
+        var all = new ArrayList<Location>();
+        for (var r : results) {
+            all.addAll(r);
+        }
+        return all;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
 }
@@ -0,0 +1,127 @@
+package org.javacs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.google.devtools.build.lib.analysis.AnalysisProtos;
+import com.google.devtools.build.lib.analysis.AnalysisProtosV2;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class ActionGraphReaderTest {
+    // bazel-out/bin/{lib.jar, dep.jar, app.jar, tool.jar}
+    private static final String[] FRAGMENTS = {"bazel-out", "bin", "lib.jar", "dep.jar", "app.jar", "tool.jar"};
+
+    /** Javac compiles app.jar against lib.jar and dep.jar, and dep.jar is itself the output of another Javac */
+    private static final List<String> APP_ARGUMENTS =
+            List.of(
+                    "--output",
+                    "bazel-out/bin/app.jar",
+                    "--classpath",
+                    "bazel-out/bin/lib.jar",
+                    "bazel-out/bin/dep.jar",
+                    "--sources",
+                    "App.java");
+
+    private static final List<String> DEP_ARGUMENTS = List.of("--output", "bazel-out/bin/dep.jar");
+
+    /** Turbine isn't the mnemonic we're asking for, so tool.jar should be ignored */
+    private static final List<String> TOOL_ARGUMENTS = List.of("--classpath", "bazel-out/bin/tool.jar");
+
+    private static byte[] v2() {
+        var container = AnalysisProtosV2.ActionGraphContainer.newBuilder();
+        for (var i = 0; i < FRAGMENTS.length; i++) {
+            var parent = i == 0 ? 0 : i == 1 ? 1 : 2;
+            container.addPathFragments(
+                    AnalysisProtosV2.PathFragment.newBuilder().setId(i + 1).setLabel(FRAGMENTS[i]).setParentId(parent));
+        }
+        // Artifact i + 10 is FRAGMENTS[i + 2]
+        for (var i = 0; i < 4; i++) {
+            container.addArtifacts(AnalysisProtosV2.Artifact.newBuilder().setId(i + 10).setPathFragmentId(i + 3));
+        }
+        container.addActions(
+                AnalysisProtosV2.Action.newBuilder()
+                        .setMnemonic("Javac")
+                        .addAllArguments(APP_ARGUMENTS)
+                        .addOutputIds(12));
+        container.addActions(
+                AnalysisProtosV2.Action.newBuilder()
+                        .setMnemonic("Javac")
+                        .addAllArguments(DEP_ARGUMENTS)
+                        .addOutputIds(11));
+        container.addActions(
+                AnalysisProtosV2.Action.newBuilder().setMnemonic("Turbine").addAllArguments(TOOL_ARGUMENTS));
+        return container.build().toByteArray();
+    }
+
+    private static byte[] v1() {
+        var container = AnalysisProtos.ActionGraphContainer.newBuilder();
+        for (var i = 2; i < FRAGMENTS.length; i++) {
+            container.addArtifacts(
+                    AnalysisProtos.Artifact.newBuilder().setId("a" + i).setExecPath("bazel-out/bin/" + FRAGMENTS[i]));
+        }
+        container.addActions(
+                AnalysisProtos.Action.newBuilder()
+                        .setMnemonic("Javac")
+                        .addAllArguments(APP_ARGUMENTS)
+                        .addOutputIds("a4"));
+        container.addActions(
+                AnalysisProtos.Action.newBuilder()
+                        .setMnemonic("Javac")
+                        .addAllArguments(DEP_ARGUMENTS)
+                        .addOutputIds("a3"));
+        container.addActions(
+                AnalysisProtos.Action.newBuilder().setMnemonic("Turbine").addAllArguments(TOOL_ARGUMENTS));
+        return container.build().toByteArray();
+    }
+
+    private static Set<String> read(byte[] proto, String filterArgument) throws IOException {
+        return ActionGraphReader.read(new ByteArrayInputStream(proto), "Javac", filterArgument);
+    }
+
+    @Test
+    public void readClassPathV2() throws IOException {
+        assertThat(read(v2(), "--classpath"), contains("bazel-out/bin/lib.jar"));
+    }
+
+    @Test
+    public void readClassPathV1() throws IOException {
+        assertThat(read(v1(), "--classpath"), contains("bazel-out/bin/lib.jar"));
+    }
+
+    @Test
+    public void readOutputsV2() throws IOException {
+        assertThat(read(v2(), "--output"), containsInAnyOrder("bazel-out/bin/app.jar", "bazel-out/bin/dep.jar"));
+    }
+
+    @Test
+    public void readOutputsV1() throws IOException {
+        assertThat(read(v1(), "--output"), containsInAnyOrder("bazel-out/bin/app.jar", "bazel-out/bin/dep.jar"));
+    }
+
+    @Test
+    public void skipFirstRecordWithOtherMnemonic() throws IOException {
+        // Serialized messages can be concatenated, so this container starts with the Turbine action
+        var turbine =
+                AnalysisProtosV2.ActionGraphContainer.newBuilder()
+                        .addActions(
+                                AnalysisProtosV2.Action.newBuilder()
+                                        .setMnemonic("Turbine")
+                                        .addAllArguments(TOOL_ARGUMENTS))
+                        .build()
+                        .toByteArray();
+        var rest = v2();
+        var proto = Arrays.copyOf(turbine, turbine.length + rest.length);
+        System.arraycopy(rest, 0, proto, turbine.length, rest.length);
+        assertThat(read(proto, "--classpath"), contains("bazel-out/bin/lib.jar"));
+    }
+
+    @Test
+    public void readEmptyGraph() throws IOException {
+        assertThat(read(new byte[0], "--classpath"), empty());
+    }
+}
@@ -0,0 +1,79 @@
+package org.javacs;
+
+import com.google.devtools.build.lib.analysis.AnalysisProtosV2;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkActionGraph {
+
+    @State(Scope.Benchmark)
+    public static class SyntheticGraph {
+        /** Jars in the repository, each compiled by one Javac action against `classPath` of the others */
+        public int jars = 5000;
+
+        public int classPath = 100;
+
+        public Path file;
+
+        @Setup(Level.Trial)
+        public void writeGraph() throws IOException {
+            var container = AnalysisProtosV2.ActionGraphContainer.newBuilder();
+            container.addPathFragments(AnalysisProtosV2.PathFragment.newBuilder().setId(1).setLabel("bazel-out"));
+            container.addPathFragments(
+                    AnalysisProtosV2.PathFragment.newBuilder().setId(2).setLabel("bin").setParentId(1));
+            for (var i = 0; i < jars; i++) {
+                var fragment = i + 3;
+                container.addPathFragments(
+                        AnalysisProtosV2.PathFragment.newBuilder()
+                                .setId(fragment)
+                                .setLabel("lib" + i + ".jar")
+                                .setParentId(2));
+                container.addArtifacts(AnalysisProtosV2.Artifact.newBuilder().setId(i + 1).setPathFragmentId(fragment));
+            }
+            for (var i = 0; i < jars; i++) {
+                var action = AnalysisProtosV2.Action.newBuilder().setMnemonic("Javac").addOutputIds(i + 1);
+                action.addArguments("--output").addArguments("bazel-out/bin/lib" + i + ".jar");
+                action.addArguments("--classpath");
+                for (var j = 1; j <= classPath; j++) {
+                    action.addArguments("bazel-out/bin/lib" + (i + j) % jars + ".jar");
+                }
+                action.addArguments("--sources");
+                for (var j = 0; j < 50; j++) {
+                    action.addArguments("src/main/java/org/example/lib" + i + "/Source" + j + ".java");
+                }
+                container.addActions(action);
+            }
+            file = Files.createTempFile("benchmark-action-graph", ".proto");
+            Files.write(file, container.build().toByteArray());
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteGraph() throws IOException {
+            Files.delete(file);
+        }
+    }
+
+    /** Materialize the whole container, which is where reading the action graph used to start */
+    @Benchmark
+    public AnalysisProtosV2.ActionGraphContainer parseContainer(SyntheticGraph graph) throws IOException {
+        try (var in = Files.newInputStream(graph.file)) {
+            return AnalysisProtosV2.ActionGraphContainer.parseFrom(in);
+        }
+    }
+
+    @Benchmark
+    public Set<String> streamOutputs(SyntheticGraph graph) throws IOException {
+        try (var in = Files.newInputStream(graph.file)) {
+            return ActionGraphReader.read(in, "Javac", "--output");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.javacs;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.javacs.lsp.*;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkDidChange {
+
+    @State(Scope.Thread)
+    public static class OpenDocument {
+        @Param({"200", "20000"})
+        public int lines;
+
+        public URI uri = Paths.get("/workspace/src/org/example/Generated.java").toUri();
+        public int version = 1;
+
+        @Setup(Level.Trial)
+        public void open() {
+            var text = new StringBuilder("class Generated {\n");
+            for (var i = 0; i < lines; i++) {
+                text.append("    static final int FIELD_").append(i).append(" = ").append(i).append(";\n");
+            }
+            text.append("}\n");
+            var open = new DidOpenTextDocumentParams();
+            open.textDocument.uri = uri;
+            open.textDocument.version = version;
+            open.textDocument.text = text.toString();
+            FileStore.open(open);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = uri;
+            FileStore.close(close);
+        }
+    }
+
+    /** Type one character in the middle of the document, then delete it again */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void keystroke(OpenDocument document) {
+        var line = document.lines / 2;
+        FileStore.change(change(document, line, 4, 4, "x"));
+        FileStore.change(change(document, line, 4, 5, ""));
+    }
+
+    private static DidChangeTextDocumentParams change(OpenDocument document, int line, int start, int end, String text) {
+        var change = new DidChangeTextDocumentParams();
+        change.textDocument.uri = document.uri;
+        change.textDocument.version = ++document.version;
+        var event = new TextDocumentContentChangeEvent();
+        event.range = new Range(new Position(line, start), new Position(line, end));
+        event.text = text;
+        change.contentChanges.add(event);
+        return change;
+    }
+}
@@ -0,0 +1,84 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The compiler keeps classes it has entered from the source path, so only the first compile parses the dependencies
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class BenchmarkEraseDependencies {
+
+    @State(Scope.Benchmark)
+    public static class SyntheticWorkspace {
+        @Param({"true", "false"})
+        public boolean erase;
+
+        public int dependencies = 50;
+        public int methodsPerDependency = 20;
+        public JavaCompilerService compiler;
+        public Path target;
+        public String targetContents;
+
+        @Setup(Level.Trial)
+        public void createWorkspace() throws IOException {
+            var root = Files.createTempDirectory("benchmark-erase-dependencies");
+            var dir = Files.createDirectories(root.resolve("org/example"));
+            var useAll = new StringBuilder();
+            for (var d = 0; d < dependencies; d++) {
+                var className = "Dependency" + d;
+                var text = new StringBuilder("package org.example;\n\npublic class " + className + " {\n");
+                for (var m = 0; m < methodsPerDependency; m++) {
+                    text.append("    public int method").append(m).append("(int x) {\n");
+                    text.append("        var list = new java.util.ArrayList<String>();\n");
+                    text.append("        for (var i = 0; i < x; i++) {\n");
+                    text.append("            list.add(String.valueOf(i * ").append(m).append("));\n");
+                    text.append("        }\n");
+                    text.append("        return list.stream().mapToInt(String::length).sum();\n");
+                    text.append("    }\n");
+                }
+                text.append("}\n");
+                Files.writeString(dir.resolve(className + ".java"), text);
+                useAll.append("        total += new ").append(className).append("().method0(total);\n");
+            }
+            target = dir.resolve("Target.java");
+            targetContents =
+                    "package org.example;\n\nclass Target {\n    int run() {\n        var total = 0;\n"
+                            + useAll
+                            + "        return total;\n    }\n}\n";
+            Files.writeString(target, targetContents);
+            FileStore.reset();
+            FileStore.setWorkspaceRoots(Set.of(root));
+            SourceFileManager.setEraseDependencies(erase);
+            // Measure javac reading dependencies from the source path, not from signature stubs
+            SignatureStubs.setEnabled(false);
+        }
+
+        @Setup(Level.Iteration)
+        public void createCompiler() {
+            compiler = new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+        }
+
+        @TearDown(Level.Trial)
+        public void restoreErase() {
+            SourceFileManager.setEraseDependencies(true);
+            SignatureStubs.setEnabled(true);
+        }
+    }
+
+    /** Compile a file that refers to every dependency, so javac has to enter all of them from the source path */
+    @Benchmark
+    public void compileTarget(SyntheticWorkspace workspace) {
+        var file = new SourceFileObject(workspace.target, workspace.targetContents, Instant.now());
+        workspace.compiler.compile(List.of(file)).close();
+    }
+}
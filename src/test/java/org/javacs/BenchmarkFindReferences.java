@@ -0,0 +1,85 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.tools.JavaFileObject;
+import org.javacs.lsp.Location;
+import org.javacs.navigation.ReferenceProvider;
+import org.openjdk.jmh.annotations.*;
+
+// Each iteration starts with a new compiler, so find-references can't reuse a batch from the last iteration
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BenchmarkFindReferences {
+
+    @State(Scope.Benchmark)
+    public static class SyntheticWorkspace {
+        @Param({"true", "false"})
+        public boolean indexed;
+
+        /** Files that have a method named `get`, but don't call Target.get */
+        public int unrelated = 200;
+        /** Files that call Target.get */
+        public int callers = 5;
+
+        public JavaCompilerService compiler;
+        public Path target;
+        public List<JavaFileObject> all = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void createWorkspace() throws IOException {
+            var root = Files.createTempDirectory("benchmark-find-references");
+            var dir = Files.createDirectories(root.resolve("org/example"));
+            target = dir.resolve("Target.java");
+            Files.writeString(target, "package org.example;\n\npublic class Target {\n    public int get() {\n        return 1;\n    }\n}\n");
+            all.add(new SourceFileObject(target));
+            for (var i = 0; i < unrelated; i++) {
+                var className = "Unrelated" + i;
+                var text = new StringBuilder("package org.example;\n\nclass " + className + " {\n");
+                text.append("    java.util.List<String> list = new java.util.ArrayList<>();\n\n");
+                text.append("    String get() {\n        return list.get(0);\n    }\n");
+                text.append("}\n");
+                var file = dir.resolve(className + ".java");
+                Files.writeString(file, text);
+                all.add(new SourceFileObject(file));
+            }
+            for (var i = 0; i < callers; i++) {
+                var className = "Caller" + i;
+                var text = "package org.example;\n\nclass " + className + " {\n    int run() {\n        return new Target().get();\n    }\n}\n";
+                var file = dir.resolve(className + ".java");
+                Files.writeString(file, text);
+                all.add(new SourceFileObject(file));
+            }
+            FileStore.reset();
+            FileStore.setWorkspaceRoots(Set.of(root));
+            SignatureStubs.setEnabled(false);
+        }
+
+        @Setup(Level.Iteration)
+        public void createCompiler() {
+            compiler = new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+            // Analyzing every file once fills in the reference index
+            if (indexed) compiler.compile(all).close();
+        }
+
+        @TearDown(Level.Trial)
+        public void restoreStubs() {
+            SignatureStubs.setEnabled(true);
+        }
+    }
+
+    /** Find references to Target.get, which has the same name as a method in every other file */
+    @Benchmark
+    public List<Location> findReferences(SyntheticWorkspace workspace) {
+        return new ReferenceProvider(workspace.compiler, workspace.target, 4, 16).find();
+    }
+}
@@ -0,0 +1,58 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkSourceFileManager {
+
+    @State(Scope.Benchmark)
+    public static class SyntheticWorkspace {
+        @Param({"100", "1000"})
+        public int packages;
+
+        public int filesPerPackage = 20;
+        public SourceFileManager fileManager = new SourceFileManager();
+        public Path root;
+
+        @Setup(Level.Trial)
+        public void createWorkspace() throws IOException {
+            root = Files.createTempDirectory("benchmark-source-file-manager");
+            for (var p = 0; p < packages; p++) {
+                var packageName = "org.example.p" + p;
+                var dir = Files.createDirectories(root.resolve(packageName.replace('.', '/')));
+                for (var f = 0; f < filesPerPackage; f++) {
+                    var className = "C" + f;
+                    var text = "package " + packageName + ";\n\nclass " + className + " {}\n";
+                    Files.writeString(dir.resolve(className + ".java"), text);
+                }
+            }
+            FileStore.reset();
+            FileStore.setWorkspaceRoots(Set.of(root));
+        }
+    }
+
+    @Benchmark
+    public int listPackage(SyntheticWorkspace workspace) throws IOException {
+        var kinds = Set.of(JavaFileObject.Kind.SOURCE);
+        var count = 0;
+        for (var __ : workspace.fileManager.list(StandardLocation.SOURCE_PATH, "org.example.p7", kinds, false)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public JavaFileObject getJavaFileForInput(SyntheticWorkspace workspace) throws IOException {
+        return workspace.fileManager.getJavaFileForInput(
+                StandardLocation.SOURCE_PATH, "org.example.p7.C3", JavaFileObject.Kind.SOURCE);
+    }
+}
@@ -0,0 +1,74 @@
+package org.javacs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkTrigramIndex {
+
+    @State(Scope.Benchmark)
+    public static class SyntheticWorkspace {
+        /** Files that don't mention the query */
+        public int unrelated = 2000;
+        /** Files that call `findNeedle` */
+        public int callers = 5;
+
+        public List<Path> all = new ArrayList<>();
+        public TrigramIndex index = new TrigramIndex();
+
+        @Setup(Level.Trial)
+        public void createWorkspace() throws IOException {
+            var root = Files.createTempDirectory("benchmark-trigram-index");
+            var dir = Files.createDirectories(root.resolve("org/example"));
+            for (var i = 0; i < unrelated + callers; i++) {
+                var className = "C" + i;
+                var call = i < callers ? "findNeedle" : "findHaystack";
+                var text = new StringBuilder("package org.example;\n\nclass " + className + " {\n");
+                for (var m = 0; m < 20; m++) {
+                    text.append("    int method" + m + "(java.util.List<String> list) {\n");
+                    text.append("        return list.size() + Needles." + call + "(" + m + ");\n    }\n\n");
+                }
+                text.append("}\n");
+                var file = dir.resolve(className + ".java");
+                Files.writeString(file, text);
+                all.add(file);
+            }
+            FileStore.reset();
+            FileStore.setWorkspaceRoots(Set.of(root));
+            // Index every file once, like the first search after the server starts
+            index.candidates(all, "findNeedle");
+        }
+    }
+
+    /** Read every file and search it for the query, which is what every text search did without the index */
+    @Benchmark
+    public int scanEveryFile(SyntheticWorkspace workspace) {
+        var search = new StringSearch("findNeedle");
+        var found = 0;
+        for (var f : workspace.all) {
+            if (search.nextWord(FileStore.contents(f)) != -1) found++;
+        }
+        return found;
+    }
+
+    /** Narrow down the files with the index, and only read the candidates */
+    @Benchmark
+    public int intersectTrigrams(SyntheticWorkspace workspace) {
+        var search = new StringSearch("findNeedle");
+        var found = 0;
+        for (var f : workspace.index.candidates(workspace.all, "findNeedle")) {
+            if (search.nextWord(FileStore.contents(f)) != -1) found++;
+        }
+        return found;
+    }
+}
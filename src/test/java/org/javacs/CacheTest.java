@@ -0,0 +1,108 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheTest {
+    private final Cache<String, Integer> cache = new Cache<>("test");
+    private final Path gotoFile = FindResource.path("/org/javacs/example/Goto.java");
+    private final Path hoverFile = FindResource.path("/org/javacs/example/HoverDocs.java");
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @After
+    public void resetCapacity() {
+        Cache.setCapacity(Cache.DEFAULT_CAPACITY);
+    }
+
+    @Test
+    public void hitAfterLoad() {
+        assertThat(cache.get(gotoFile, "a", () -> 1), equalTo(1));
+        assertThat(cache.get(gotoFile, "a", () -> 2), equalTo(1));
+        assertThat(cache.hits(), equalTo(1L));
+        assertThat(cache.misses(), equalTo(1L));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        Cache.setCapacity(2);
+        cache.get(gotoFile, "a", () -> 1);
+        cache.get(gotoFile, "b", () -> 2);
+        cache.get(gotoFile, "a", () -> 1);
+        cache.get(hoverFile, "c", () -> 3);
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.has(gotoFile, "a"), equalTo(true));
+        assertThat(cache.has(gotoFile, "b"), equalTo(false));
+        assertThat(cache.evictions(), equalTo(1L));
+    }
+
+    @Test
+    public void evictBySize() {
+        var strings = new Cache<String, String>("strings", String::length, 10);
+        strings.get(gotoFile, "a", () -> "aaaa");
+        strings.get(gotoFile, "b", () -> "bbbb");
+        strings.get(hoverFile, "c", () -> "cccc");
+        assertThat(strings.size(), equalTo(2));
+        assertThat(strings.totalSize(), equalTo(8L));
+        assertThat(strings.has(gotoFile, "a"), equalTo(false));
+        // A value that is bigger than the whole cache is still returned, and only it is kept
+        assertThat(strings.get(hoverFile, "d", () -> "dddddddddddd"), equalTo("dddddddddddd"));
+        assertThat(strings.size(), equalTo(1));
+    }
+
+    @Test
+    public void computeEvictedValue() throws Exception {
+        // Another thread fills the cache while the value is being computed, so it's evicted before get returns
+        Cache.setCapacity(1);
+        var value =
+                cache.get(
+                        gotoFile,
+                        "a",
+                        () -> {
+                            var other = new Thread(() -> cache.get(hoverFile, "b", () -> 2));
+                            other.start();
+                            try {
+                                other.join();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                            return 1;
+                        });
+        assertThat(value, equalTo(1));
+    }
+
+    @Test
+    public void invalidateFile() {
+        cache.get(gotoFile, "a", () -> 1);
+        cache.get(gotoFile, "b", () -> 2);
+        cache.get(hoverFile, "c", () -> 3);
+        cache.invalidate(gotoFile);
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.has(hoverFile, "c"), equalTo(true));
+    }
+
+    @Test
+    public void invalidateWhenFileStoreHearsOfChange() {
+        cache.get(gotoFile, "a", () -> 1);
+        cache.get(hoverFile, "c", () -> 3);
+        FileStore.externalChange(gotoFile);
+        // Goto.java didn't really change, but its mappings are dropped without waiting for the next lookup
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.has(hoverFile, "c"), equalTo(true));
+    }
+
+    @Test
+    public void reportEveryCache() {
+        cache.get(gotoFile, "a", () -> 1);
+        assertThat(Cache.report(), containsString("test has 1 entries, 0 hits, 1 misses, 0 evictions"));
+    }
+}
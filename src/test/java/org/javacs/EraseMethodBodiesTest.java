@@ -0,0 +1,58 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+
+public class EraseMethodBodiesTest {
+    private static Path write(String contents) throws IOException {
+        var dir = Files.createTempDirectory("erase-method-bodies");
+        var file = dir.resolve("Example.java");
+        Files.writeString(file, contents);
+        return file;
+    }
+
+    private static final String EXAMPLE =
+            "class Example {\n"
+                    + "    final int x;\n"
+                    + "    Example(int x) {\n"
+                    + "        this.x = x;\n"
+                    + "    }\n"
+                    + "    void run() {\n"
+                    + "        System.out.println(x);\n"
+                    + "    }\n"
+                    + "    int twice() {\n"
+                    + "        return 2 * x;\n"
+                    + "    }\n"
+                    + "    abstract static class Shape { abstract double area(); }\n"
+                    + "}\n";
+
+    @Test
+    public void eraseBodies() throws IOException {
+        var erased = EraseMethodBodies.erase(Parser.parseOnce(write(EXAMPLE)));
+        assertThat(erased.length(), equalTo(EXAMPLE.length()));
+        assertThat(erased, not(containsString("println")));
+        assertThat(erased, not(containsString("return 2 * x")));
+        assertThat(erased, containsString("throw null;"));
+        assertThat(erased, containsString("abstract double area();"));
+    }
+
+    @Test
+    public void keepConstructors() throws IOException {
+        var erased = EraseMethodBodies.erase(Parser.parseOnce(write(EXAMPLE)));
+        assertThat(erased, containsString("this.x = x;"));
+    }
+
+    @Test
+    public void keepLineBreaks() throws IOException {
+        var erased = EraseMethodBodies.erase(Parser.parseOnce(write(EXAMPLE)));
+        var lines = LineIndex.of(EXAMPLE);
+        var erasedLines = LineIndex.of(erased);
+        assertThat(erasedLines.lineCount(), equalTo(lines.lineCount()));
+        assertThat(erasedLines.offset(8, 4), equalTo(lines.offset(8, 4)));
+    }
+}
@@ -5,6 +5,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 
 import java.nio.file.Paths;
 import java.util.Set;
+import org.junit.After;
 import org.junit.Test;
 import org.junit.Before;
 
@@ -19,6 +20,13 @@ public class FileEncodingTest {
         FileStore.reset();
     }
 
+    @After
+    public void restoreSourcesAfter() {
+        // Other tests share a language server that expects the default workspace
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
     @Test
     public void packageNameForNonUnicodeSource() {
         var encodingTestRoot = Paths.get("src/test/examples/encoding").normalize();
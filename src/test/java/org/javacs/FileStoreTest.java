@@ -3,7 +3,12 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
 import java.util.Set;
+import org.javacs.lsp.*;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -14,6 +19,15 @@ public class FileStoreTest {
         FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
     }
 
+    @After
+    public void closeDocument() {
+        var close = new DidCloseTextDocumentParams();
+        close.textDocument.uri = FindResource.uri("/org/javacs/example/Goto.java");
+        FileStore.close(close);
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
     @Test
     public void packageName() {
         var file = FindResource.path("/org/javacs/example/Goto.java");
@@ -26,4 +40,108 @@ public class FileStoreTest {
         assertThat(FileStore.packageName(file), nullValue());
         assertThat(FileStore.modified(file), nullValue());
     }
+
+    @Test
+    public void listPackage() {
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        assertThat(FileStore.list("org.javacs.example"), hasItem(file));
+        FileStore.externalDelete(file);
+        assertThat(FileStore.list("org.javacs.example"), not(hasItem(file)));
+        FileStore.externalCreate(file);
+        assertThat(FileStore.list("org.javacs.example"), hasItem(file));
+    }
+
+    @Test
+    public void reloadSnapshot() throws IOException {
+        var workspace = Files.createTempDirectory("file-store");
+        var unchanged = workspace.resolve("Unchanged.java");
+        var touched = workspace.resolve("Touched.java");
+        Files.writeString(unchanged, "package a;\nclass Unchanged {}\n");
+        Files.writeString(touched, "package b;\nclass Touched {}\n");
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(workspace));
+        var snapshot = workspace.resolve(".javacs/sources.idx");
+        FileStore.saveSnapshot(snapshot);
+
+        // Same size and timestamp, so the package from the snapshot is trusted without reading the file
+        var modified = Files.getLastModifiedTime(unchanged);
+        Files.writeString(unchanged, "package x;\nclass Unchanged {}\n");
+        Files.setLastModifiedTime(unchanged, modified);
+        // A new timestamp means the package has to be read again
+        Files.writeString(touched, "package y;\nclass Touched {}\n");
+        Files.setLastModifiedTime(touched, FileTime.fromMillis(modified.toMillis() + 1000));
+
+        FileStore.reset();
+        FileStore.loadSnapshot(snapshot);
+        FileStore.setWorkspaceRoots(Set.of(workspace));
+        assertThat(FileStore.packageName(unchanged), equalTo("a"));
+        assertThat(FileStore.list("a"), contains(unchanged));
+        assertThat(FileStore.packageName(touched), equalTo("y"));
+        assertThat(FileStore.list("y"), contains(touched));
+        assertThat(FileStore.list("b"), empty());
+    }
+
+    private static TextDocumentContentChangeEvent change(int startLine, int startChar, int endLine, int endChar, String text) {
+        var change = new TextDocumentContentChangeEvent();
+        change.range = new Range(new Position(startLine, startChar), new Position(endLine, endChar));
+        change.text = text;
+        return change;
+    }
+
+    @Test
+    public void incrementalChanges() {
+        var uri = FindResource.uri("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = uri;
+        open.textDocument.version = 1;
+        open.textDocument.text = "class Goto {\r\n    void test() {\r\n    }\r\n}\r\n";
+        FileStore.open(open);
+
+        var edit = new DidChangeTextDocumentParams();
+        edit.textDocument.uri = uri;
+        edit.textDocument.version = 2;
+        // Insert a statement, rename the method and delete across lines, in one message
+        edit.contentChanges.add(change(1, 17, 1, 17, "\r\n        int x = 1;"));
+        edit.contentChanges.add(change(1, 9, 1, 13, "run"));
+        edit.contentChanges.add(change(2, 18, 3, 4, ""));
+        FileStore.change(edit);
+
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        var expected = "class Goto {\r\n    void run() {\r\n        int x = 1;}\r\n}\r\n";
+        assertThat(FileStore.contents(file), equalTo(expected));
+        assertThat(FileStore.offset(file, 3, 9), equalTo(expected.indexOf("int x")));
+        assertThat(FileStore.lineIndex(file).lineCount(), equalTo(5));
+
+        // The line index belongs to a version of the file, so the next change replaces it
+        var append = new DidChangeTextDocumentParams();
+        append.textDocument.uri = uri;
+        append.textDocument.version = 3;
+        append.contentChanges.add(change(4, 0, 4, 0, "class Other {}\r\n"));
+        FileStore.change(append);
+        assertThat(FileStore.lineIndex(file).lineCount(), equalTo(6));
+    }
+
+    @Test
+    public void carriageReturnChanges() {
+        var uri = FindResource.uri("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = uri;
+        open.textDocument.version = 1;
+        open.textDocument.text = "class Goto {\r    void test() {\r    }\r}\r";
+        FileStore.open(open);
+
+        var edit = new DidChangeTextDocumentParams();
+        edit.textDocument.uri = uri;
+        edit.textDocument.version = 2;
+        // Lines that end with a lone \r are lines too, the same as in javac's LineMap
+        edit.contentChanges.add(change(1, 9, 1, 13, "run"));
+        edit.contentChanges.add(change(3, 0, 3, 1, "}\r\rclass Other {}"));
+        FileStore.change(edit);
+
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        var expected = "class Goto {\r    void run() {\r    }\r}\r\rclass Other {}\r";
+        assertThat(FileStore.contents(file), equalTo(expected));
+        assertThat(FileStore.offset(file, 6, 7), equalTo(expected.indexOf("Other")));
+        assertThat(FileStore.lineIndex(file).lineCount(), equalTo(7));
+    }
 }
@@ -3,22 +3,36 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
 import java.util.ArrayList;
 import java.util.List;
 import org.javacs.lsp.*;
+import org.javacs.navigation.ReferenceProvider;
+import org.junit.After;
 import org.junit.Test;
 
 public class FindReferencesTest {
     private static final JavaLanguageServer server = LanguageServerFixture.getJavaLanguageServer();
 
-    protected List<String> items(String file, int row, int column) {
-        var uri = FindResource.uri(file);
-        var params = new ReferenceParams();
+    @After
+    public void restoreChunkHeapBudget() {
+        ReferenceProvider.setChunkHeapBudget(128L * 1024 * 1024);
+    }
 
-        params.textDocument = new TextDocumentIdentifier(uri);
+    private static ReferenceParams params(String file, int row, int column) {
+        var params = new ReferenceParams();
+        params.textDocument = new TextDocumentIdentifier(FindResource.uri(file));
         params.position = new Position(row - 1, column - 1);
+        return params;
+    }
 
-        var locations = server.findReferences(params).orElse(List.of());
+    protected List<String> items(String file, int row, int column) {
+        var locations = server.findReferences(params(file, row, column)).orElse(List.of());
+        return strings(locations);
+    }
+
+    private static List<String> strings(List<Location> locations) {
         var strings = new ArrayList<String>();
         for (var l : locations) {
             var fileName = StringSearch.fileName(l.uri);
@@ -61,4 +75,58 @@ public class FindReferencesTest {
     public void varTypeReferences() {
         assertThat(items("/org/javacs/example/VarTypeReferences.java", 4, 27), contains("VarTypeReferences.java(9)"));
     }
+
+    @Test
+    public void findInSmallChunks() {
+        var file = "/org/javacs/example/GotoOther.java";
+        var together = items(file, 6, 30);
+        // Every file gets a chunk of its own
+        ReferenceProvider.setChunkHeapBudget(1);
+        assertThat(items(file, 6, 30), equalTo(together));
+    }
+
+    @Test
+    public void streamPartialResults() {
+        var file = "/org/javacs/example/GotoOther.java";
+        var expected = items(file, 6, 30);
+        var progress = new ArrayList<ProgressParams>();
+        var client =
+                new LanguageClient() {
+                    @Override
+                    public void publishDiagnostics(PublishDiagnosticsParams params) {}
+
+                    @Override
+                    public void showMessage(ShowMessageParams params) {}
+
+                    @Override
+                    public void registerCapability(String method, JsonElement options) {}
+
+                    @Override
+                    public void customNotification(String method, JsonElement params) {
+                        if (method.equals("$/progress")) {
+                            synchronized (progress) {
+                                progress.add(JsonHelper.GSON.fromJson(params, ProgressParams.class));
+                            }
+                        }
+                    }
+                };
+        var streaming = LanguageServerFixture.getJavaLanguageServer(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT, client);
+        ReferenceProvider.setChunkHeapBudget(1);
+        var params = params(file, 6, 30);
+        params.partialResultToken = new JsonPrimitive("partial");
+        params.workDoneToken = new JsonPrimitive("work");
+        assertThat(streaming.findReferences(params).orElse(null), empty());
+        var streamed = new ArrayList<String>();
+        var kinds = new ArrayList<String>();
+        for (var p : progress) {
+            if (p.token.getAsString().equals("partial")) {
+                streamed.addAll(strings(List.of(JsonHelper.GSON.fromJson(p.value, Location[].class))));
+            } else {
+                kinds.add(p.value.getAsJsonObject().get("kind").getAsString());
+            }
+        }
+        assertThat(streamed, containsInAnyOrder(expected.toArray()));
+        assertThat(kinds.get(0), equalTo("begin"));
+        assertThat(kinds.get(kinds.size() - 1), equalTo("end"));
+    }
 }
@@ -3,6 +3,8 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Set;
@@ -74,6 +76,17 @@ public class InferConfigTest {
                 hasItem(hasToString(endsWith(".m2/repository/junit/junit/4.13.1/junit-4.13.1-sources.jar"))));
     }
 
+    @Test
+    public void thisProjectInferBoth() {
+        var inferred = thisProject.infer();
+        assertThat(inferred.fingerprint, equalTo(thisProject.fingerprint()));
+        assertThat(
+                inferred.classPath, hasItem(hasToString(endsWith(".m2/repository/junit/junit/4.13.1/junit-4.13.1.jar"))));
+        assertThat(
+                inferred.docPath,
+                hasItem(hasToString(endsWith(".m2/repository/junit/junit/4.13.1/junit-4.13.1-sources.jar"))));
+    }
+
     @Test
     public void parseDependencyLine() {
         String[][] testCases = {
@@ -94,4 +107,38 @@ public class InferConfigTest {
             assertThat(path, equalTo(Paths.get(expect)));
         }
     }
+
+    @Test
+    public void fingerprintBuildFiles() throws IOException {
+        var root = Files.createTempDirectory("infer-config");
+        Files.writeString(root.resolve("pom.xml"), "<project></project>");
+        var infer = new InferConfig(root);
+        var original = infer.fingerprint();
+        assertThat(infer.fingerprint(), equalTo(original));
+        // Build output and sources don't affect the class path
+        Files.createDirectories(root.resolve("target"));
+        Files.writeString(root.resolve("target/pom.xml"), "<project>copy</project>");
+        Files.writeString(root.resolve("Main.java"), "class Main {}");
+        assertThat(infer.fingerprint(), equalTo(original));
+        // Modules do
+        Files.createDirectories(root.resolve("module"));
+        Files.writeString(root.resolve("module/pom.xml"), "<project></project>");
+        var withModule = infer.fingerprint();
+        assertThat(withModule, not(equalTo(original)));
+        Files.writeString(root.resolve("pom.xml"), "<project><modules></modules></project>");
+        assertThat(infer.fingerprint(), not(equalTo(withModule)));
+    }
+
+    @Test
+    public void saveAndLoadInferredConfig() throws IOException {
+        var file = Files.createTempDirectory("infer-config").resolve(".javacs/classpath.json");
+        assertThat(InferredConfig.load(file), nullValue());
+        var jar = Paths.get("/repository/a/a-1.0.jar").toAbsolutePath();
+        var sources = Paths.get("/repository/a/a-1.0-sources.jar").toAbsolutePath();
+        new InferredConfig("abc", Set.of(jar), Set.of(sources)).save(file);
+        var loaded = InferredConfig.load(file);
+        assertThat(loaded.fingerprint, equalTo("abc"));
+        assertThat(loaded.classPath, contains(jar));
+        assertThat(loaded.docPath, contains(sources));
+    }
 }
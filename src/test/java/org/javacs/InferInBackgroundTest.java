@@ -0,0 +1,159 @@
+package org.javacs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.google.gson.JsonElement;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.javacs.lsp.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** JavaLanguageServer.createCompiler reuses classpath.json when it can, and re-infers stale ones in the background */
+public class InferInBackgroundTest {
+    /** A local Maven repository containing util 1.5 and testing 4.0, so inference never runs mvn */
+    static final Path MAVEN_HOME = Paths.get("src/test/examples/maven-resolver").toAbsolutePath();
+
+    Path workspace;
+    AtomicInteger inferences = new AtomicInteger();
+
+    @Before
+    public void createWorkspace() throws IOException {
+        workspace = Files.createTempDirectory("infer-in-background");
+        SignatureStubs.setEnabled(false);
+    }
+
+    @After
+    public void restore() {
+        SignatureStubs.setEnabled(true);
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    private void writePom(String... dependencies) throws IOException {
+        var pom = new StringBuilder();
+        pom.append("<project>\n  <modelVersion>4.0.0</modelVersion>\n");
+        pom.append("  <groupId>com.example</groupId>\n  <artifactId>app</artifactId>\n  <version>1.0</version>\n");
+        pom.append("  <dependencies>\n");
+        for (var d : dependencies) {
+            var parts = d.split(":");
+            pom.append("    <dependency><groupId>com.example</groupId>");
+            pom.append("<artifactId>" + parts[0] + "</artifactId><version>" + parts[1] + "</version></dependency>\n");
+        }
+        pom.append("  </dependencies>\n</project>\n");
+        var file = workspace.resolve("pom.xml");
+        var modified = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+        Files.writeString(file, pom);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Math.max(modified + 1000, System.currentTimeMillis())));
+    }
+
+    private JavaLanguageServer server() {
+        var client =
+                new LanguageClient() {
+                    @Override
+                    public void publishDiagnostics(PublishDiagnosticsParams params) {}
+
+                    @Override
+                    public void showMessage(ShowMessageParams params) {}
+
+                    @Override
+                    public void registerCapability(String method, JsonElement options) {}
+
+                    @Override
+                    public void customNotification(String method, JsonElement params) {}
+                };
+        var server =
+                new JavaLanguageServer(client) {
+                    @Override
+                    InferConfig inferConfig(Set<String> externalDependencies) {
+                        return new InferConfig(workspace, externalDependencies, MAVEN_HOME, Paths.get("nowhere")) {
+                            @Override
+                            InferredConfig infer(String fingerprint) {
+                                inferences.incrementAndGet();
+                                return super.infer(fingerprint);
+                            }
+                        };
+                    }
+                };
+        FileStore.reset();
+        var init = new InitializeParams();
+        init.rootUri = workspace.toUri();
+        server.initialize(init);
+        server.initialized();
+        return server;
+    }
+
+    private static List<String> jarNames(JavaCompilerService compiler) {
+        return compiler.classPath.stream().map(p -> p.getFileName().toString()).sorted().toList();
+    }
+
+    private void pomChanged(JavaLanguageServer server) {
+        var event = new FileEvent();
+        event.uri = workspace.resolve("pom.xml").toUri();
+        event.type = FileChangeType.Changed;
+        var params = new DidChangeWatchedFilesParams();
+        params.changes = List.of(event);
+        server.didChangeWatchedFiles(params);
+    }
+
+    @Test
+    public void inferOnceThenReuseCache() throws IOException {
+        writePom("util:1.5");
+        assertThat(jarNames(server().compiler()), contains("util-1.5.jar"));
+        assertThat(inferences.get(), equalTo(1));
+        assertThat(Files.exists(workspace.resolve(".javacs/classpath.json")), equalTo(true));
+
+        // A new server with the same build files reads classpath.json instead of inferring
+        assertThat(jarNames(server().compiler()), contains("util-1.5.jar"));
+        assertThat(inferences.get(), equalTo(1));
+    }
+
+    @Test
+    public void replaceStaleClassPathInBackground() throws IOException {
+        writePom("util:1.5");
+        server().compiler();
+        writePom("testing:4.0");
+
+        // The old class path is used right away, while the new one is inferred in the background
+        var server = server();
+        var stale = server.compiler();
+        assertThat(jarNames(stale), contains("util-1.5.jar"));
+        server.awaitInference();
+        assertThat(inferences.get(), equalTo(2));
+        var fresh = server.compiler();
+        assertThat(fresh, not(sameInstance(stale)));
+        assertThat(jarNames(fresh), contains("testing-4.0.jar"));
+
+        // The new class path was saved, so the next server doesn't infer it again
+        assertThat(jarNames(server().compiler()), contains("testing-4.0.jar"));
+        assertThat(inferences.get(), equalTo(2));
+    }
+
+    @Test
+    public void tryEmptyClassPathOnlyOnce() throws IOException {
+        writePom("util:1.5");
+        server().compiler();
+        writePom();
+
+        var server = server();
+        var first = server.compiler();
+        server.awaitInference();
+        assertThat(inferences.get(), equalTo(2));
+        // Nothing was found, so the compiler isn't replaced, and inference doesn't run again
+        assertThat(server.compiler(), sameInstance(first));
+        pomChanged(server);
+        var second = server.compiler();
+        server.awaitInference();
+        assertThat(jarNames(second), contains("util-1.5.jar"));
+        assertThat(server.compiler(), sameInstance(second));
+        assertThat(inferences.get(), equalTo(2));
+    }
+}
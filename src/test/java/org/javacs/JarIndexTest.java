@@ -0,0 +1,123 @@
+package org.javacs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JarIndexTest {
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("jar-index-test");
+    }
+
+    /** Write a jar of empty `entries` with fixed timestamps, so entries with same-length names give same-sized jars */
+    private Path jar(String name, String manifestClassPath, String... entries) throws IOException {
+        var file = dir.resolve(name);
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (manifestClassPath != null) manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, manifestClassPath);
+        try (var out = new JarOutputStream(Files.newOutputStream(file), manifest)) {
+            for (var e : entries) {
+                var entry = new JarEntry(e);
+                entry.setTime(0);
+                out.putNextEntry(entry);
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static ArrayList<String> classes(JarIndex index, Path jar) {
+        var classes = new ArrayList<String>();
+        index.addTopLevelClasses(jar, classes);
+        return classes;
+    }
+
+    @Test
+    public void topLevelClasses() throws IOException {
+        var jar =
+                jar(
+                        "lib.jar",
+                        null,
+                        "org/example/",
+                        "org/example/Foo.class",
+                        "org/example/Foo$Inner.class",
+                        "org/example/Bar.class",
+                        "org/example/messages.properties");
+        assertThat(classes(new JarIndex(), jar), contains("org.example.Bar", "org.example.Foo"));
+    }
+
+    @Test
+    public void followManifestClassPath() throws IOException {
+        jar("dependency.jar", null, "org/dependency/Dependency.class");
+        var jar = jar("lib.jar", "dependency.jar", "org/example/Foo.class");
+        var classes = ScanClassPath.classPathTopLevelClasses(Set.of(jar));
+        assertThat(classes, containsInAnyOrder("org.example.Foo", "org.dependency.Dependency"));
+    }
+
+    @Test
+    public void scanDirectories() throws IOException {
+        var classesDir = Files.createDirectories(dir.resolve("classes/org/example"));
+        Files.createFile(classesDir.resolve("Foo.class"));
+        Files.createFile(classesDir.resolve("Foo$Inner.class"));
+        var classes = ScanClassPath.classPathTopLevelClasses(Set.of(dir.resolve("classes")));
+        assertThat(classes, contains("org.example.Foo"));
+    }
+
+    @Test
+    public void reuseSavedIndexUntilJarChanges() throws IOException {
+        var jar = jar("lib.jar", null, "org/example/Foo.class");
+        var modified = Files.getLastModifiedTime(jar);
+        var index = new JarIndex();
+        assertThat(classes(index, jar), contains("org.example.Foo"));
+        var file = dir.resolve("jars.idx");
+        index.save(file);
+
+        // Same size and timestamp, so the saved index is trusted without opening the jar
+        var size = Files.size(jar);
+        jar("lib.jar", null, "org/example/Bar.class");
+        Files.setLastModifiedTime(jar, modified);
+        assertThat(Files.size(jar), equalTo(size));
+        var loaded = new JarIndex();
+        loaded.load(file);
+        assertThat(classes(loaded, jar), contains("org.example.Foo"));
+        assertThat(loaded.size(), equalTo(1));
+
+        // A new timestamp means the jar has to be scanned again
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(modified.toMillis() + 1000));
+        assertThat(classes(loaded, jar), contains("org.example.Bar"));
+    }
+
+    @Test
+    public void frontCodeManyNames() throws IOException {
+        var entries = new String[500];
+        for (var i = 0; i < entries.length; i++) {
+            entries[i] = String.format("org/example/package%d/Class%03d.class", i % 7, i);
+        }
+        var jar = jar("lib.jar", null, entries);
+        var index = new JarIndex();
+        var file = dir.resolve("jars.idx");
+        classes(index, jar);
+        index.save(file);
+        var loaded = new JarIndex();
+        loaded.load(file);
+        var classes = classes(loaded, jar);
+        assertThat(classes, hasSize(500));
+        assertThat(classes, hasItems("org.example.package0.Class000", "org.example.package6.Class496"));
+        assertThat(Files.size(file), lessThan(500L * "org.example.package0.Class000".length()));
+    }
+}
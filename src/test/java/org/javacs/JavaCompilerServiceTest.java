@@ -3,8 +3,13 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.util.Context;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import javax.tools.JavaFileManager;
+import org.javacs.lsp.CancelToken;
 import org.junit.*;
 
 public class JavaCompilerServiceTest {
@@ -12,8 +17,7 @@ public class JavaCompilerServiceTest {
         Main.setRootFormat();
     }
 
-    private JavaCompilerService compiler =
-            new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+    private final int defaultPoolSize = CompilerPool.defaultSize();
 
     static Path simpleProjectSrc() {
         return Paths.get("src/test/examples/simple-project").normalize();
@@ -23,4 +27,109 @@ public class JavaCompilerServiceTest {
     public void setWorkspaceRoot() {
         FileStore.setWorkspaceRoots(Set.of(simpleProjectSrc()));
     }
+
+    @After
+    public void restoreDefaults() {
+        CompilerPool.setDefaultSize(defaultPoolSize);
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    private static JavaCompilerService newCompiler(int poolSize) {
+        CompilerPool.setDefaultSize(poolSize);
+        return new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+    }
+
+    private static CompletableFuture<String> compileInBackground(JavaCompilerService compiler, Path file) {
+        return CompletableFuture.supplyAsync(
+                () -> {
+                    try (var task = compiler.compile(file)) {
+                        return task.roots.get(0).getSourceFile().getName();
+                    }
+                });
+    }
+
+    @Test
+    public void compileOnSeveralThreads() throws Exception {
+        var compiler = newCompiler(2);
+        var hello = simpleProjectSrc().resolve("HelloError.java");
+        var gotoDefinition = simpleProjectSrc().resolve("GotoDefinition.java");
+        try (var task = compiler.compile(hello)) {
+            var other = compileInBackground(compiler, gotoDefinition);
+            assertThat(other.get(1, TimeUnit.MINUTES), endsWith("GotoDefinition.java"));
+            assertThat(task.roots.get(0).getSourceFile().getName(), endsWith("HelloError.java"));
+        }
+    }
+
+    private static JavaFileManager fileManager(CompileTask task) {
+        return ((BasicJavacTask) task.task).getContext().get(JavaFileManager.class);
+    }
+
+    @Test
+    public void compileOnSeveralThreadsWithSeparateFileManagers() throws Exception {
+        var compiler = newCompiler(2);
+        try (var task = compiler.compile(simpleProjectSrc().resolve("HelloError.java"))) {
+            var other =
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try (var otherTask = compiler.compile(simpleProjectSrc().resolve("GotoDefinition.java"))) {
+                                    return fileManager(otherTask);
+                                }
+                            });
+            assertThat(other.get(1, TimeUnit.MINUTES), not(sameInstance(fileManager(task))));
+        }
+    }
+
+    @Test
+    public void waitForCompilerToBeReturned() throws Exception {
+        var compiler = newCompiler(1);
+        var hello = simpleProjectSrc().resolve("HelloError.java");
+        var gotoDefinition = simpleProjectSrc().resolve("GotoDefinition.java");
+        CompletableFuture<String> other;
+        try (var task = compiler.compile(hello)) {
+            other = compileInBackground(compiler, gotoDefinition);
+            Thread.sleep(100);
+            assertFalse("waits while the only compiler is in use", other.isDone());
+        }
+        assertThat(other.get(1, TimeUnit.MINUTES), endsWith("GotoDefinition.java"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void nestedCompileWithoutFreeCompiler() {
+        var compiler = newCompiler(1);
+        try (var task = compiler.compile(simpleProjectSrc().resolve("HelloError.java"))) {
+            compiler.compile(simpleProjectSrc().resolve("GotoDefinition.java"));
+        }
+    }
+
+    private static Context context(CompileTask task) {
+        return ((BasicJavacTask) task.task).getContext();
+    }
+
+    @Test
+    public void keepCompilerAfterCancellation() throws Exception {
+        var compiler = newCompiler(1);
+        Context before;
+        try (var task = compiler.compile(simpleProjectSrc().resolve("HelloError.java"))) {
+            before = context(task);
+        }
+        // Cancel the request once javac starts reading the file, so the compiler is already checked out
+        var cancel = new CancelToken();
+        var cancelWhileParsing =
+                new SourceFileObject(simpleProjectSrc().resolve("GotoDefinition.java")) {
+                    @Override
+                    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                        cancel.cancel();
+                        return super.getCharContent(ignoreEncodingErrors);
+                    }
+                };
+        try {
+            CancelToken.runAs(cancel, () -> compiler.compile(List.of(cancelWhileParsing)));
+            fail("compile should have been cancelled");
+        } catch (RuntimeException e) {
+            assertTrue("cancelled, not failed: " + e, CancelToken.isCancellation(e));
+        }
+        try (var task = compiler.compile(simpleProjectSrc().resolve("GotoDefinition.java"))) {
+            assertThat(context(task), sameInstance(before));
+        }
+    }
 }
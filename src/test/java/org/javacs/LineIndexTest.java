@@ -0,0 +1,54 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.javacs.lsp.Position;
+import org.junit.Test;
+
+public class LineIndexTest {
+    // Every kind of line ending javac accepts: \n, \r\n and a lone \r
+    private final String contents = "class A {\n  int x;\r\n  int y;\r}";
+    private final LineIndex lines = LineIndex.of(contents);
+
+    @Test
+    public void lineCount() {
+        assertThat(lines.lineCount(), equalTo(4));
+        assertThat(LineIndex.of("").lineCount(), equalTo(1));
+        assertThat(LineIndex.of("a\n").lineCount(), equalTo(2));
+    }
+
+    @Test
+    public void offset() {
+        assertThat(lines.offset(0, 0), equalTo(0));
+        assertThat(lines.offset(1, 2), equalTo(contents.indexOf("int x")));
+        assertThat(lines.offset(2, 2), equalTo(contents.indexOf("int y")));
+        assertThat(lines.offset(3, 0), equalTo(contents.indexOf("}")));
+        // Past the end of the file
+        assertThat(lines.offset(3, 10), equalTo(contents.length()));
+        assertThat(lines.offset(10, 0), equalTo(contents.length()));
+    }
+
+    @Test
+    public void position() {
+        assertPosition(lines.position(contents.indexOf("int x")), 1, 2);
+        // The \r of \r\n is still on the line it ends
+        assertPosition(lines.position(contents.indexOf("\r\n")), 1, 8);
+        assertPosition(lines.position(contents.indexOf("int y")), 2, 2);
+        assertPosition(lines.position(contents.indexOf("}")), 3, 0);
+        assertPosition(lines.position(contents.length()), 3, 1);
+    }
+
+    @Test
+    public void roundTrip() {
+        for (var offset = 0; offset <= contents.length(); offset++) {
+            var p = lines.position(offset);
+            assertThat(lines.offset(p), equalTo(offset));
+        }
+    }
+
+    private void assertPosition(Position p, int line, int character) {
+        assertThat(p.line, equalTo(line));
+        assertThat(p.character, equalTo(character));
+    }
+}
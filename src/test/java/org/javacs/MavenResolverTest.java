@@ -0,0 +1,73 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import org.junit.Test;
+
+public class MavenResolverTest {
+    private Path fixture = Paths.get("src/test/examples/maven-resolver");
+    private Path repository = fixture.resolve("repository");
+    // The fixture is laid out like ~/.m2, so it can stand in for the maven home
+    private InferConfig infer = new InferConfig(fixture.resolve("workspace"), Set.of(), fixture, Paths.get("nowhere"));
+    private MavenResolver resolver = new MavenResolver(repository, infer::findMavenJar);
+
+    private Path jar(String artifactId, String version, String classifier) {
+        var name = artifactId + "-" + version + (classifier.isEmpty() ? "" : "-" + classifier) + ".jar";
+        return repository.resolve("com/example").resolve(artifactId).resolve(version).resolve(name);
+    }
+
+    @Test
+    public void resolveFromLocalRepository() {
+        // InferConfig only runs maven if the local repository isn't enough, which would fail in this fixture
+        var jars = infer.classPath();
+        assertThat(
+                jars,
+                containsInAnyOrder(
+                        jar("lib", "2.0", ""),
+                        jar("testing", "4.0", ""),
+                        jar("transitive", "1.0", ""),
+                        // transitive asks for util 1.0, but company-parent manages it to 1.5
+                        jar("util", "1.5", ""),
+                        jar("util", "1.5", "extras")));
+    }
+
+    @Test
+    public void resolveSources() {
+        var jars = resolver.resolve(fixture.resolve("workspace/pom.xml"), true);
+        assertThat(
+                jars,
+                containsInAnyOrder(
+                        jar("lib", "2.0", "sources"),
+                        jar("testing", "4.0", "sources"),
+                        jar("transitive", "1.0", "sources"),
+                        jar("util", "1.5", "sources")));
+    }
+
+    @Test
+    public void resolveModule() {
+        // core inherits lib and testing from its parent, app, which it finds next to it in the workspace
+        var jars = resolver.resolve(fixture.resolve("workspace/core/pom.xml"), false);
+        assertThat(jars, hasItems(jar("lib", "2.0", ""), jar("util", "1.5", "extras")));
+    }
+
+    @Test
+    public void giveUpOnMissingArtifacts() {
+        assertThat(resolver.resolve(fixture.resolve("missing/pom.xml"), false), nullValue());
+    }
+
+    @Test
+    public void giveUpOnProfilesActivatedByEnvironment() {
+        // Whether the jdk profile is active, and turns off the default profile, depends on the JDK Maven runs on
+        assertThat(resolver.resolve(fixture.resolve("activation/pom.xml"), false), nullValue());
+    }
+
+    @Test
+    public void giveUpOnMalformedPom() {
+        // The dependency has no groupId
+        assertThat(resolver.resolve(fixture.resolve("malformed/pom.xml"), false), nullValue());
+    }
+}
@@ -0,0 +1,102 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.javacs.lsp.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParserTest {
+    private final Path gotoFile = FindResource.path("/org/javacs/example/Goto.java");
+    private final Path hoverFile = FindResource.path("/org/javacs/example/HoverDocs.java");
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @After
+    public void closeDocument() {
+        var close = new DidCloseTextDocumentParams();
+        close.textDocument.uri = gotoFile.toUri();
+        FileStore.close(close);
+    }
+
+    @Test
+    public void keepSeveralFiles() {
+        var gotoParse = Parser.parseFile(gotoFile);
+        var hoverParse = Parser.parseFile(hoverFile);
+        assertThat(Parser.parseFile(gotoFile), sameInstance(gotoParse));
+        assertThat(Parser.parseFile(hoverFile), sameInstance(hoverParse));
+    }
+
+    @Test
+    public void reparseAfterEdit() {
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = gotoFile.toUri();
+        open.textDocument.version = 1;
+        open.textDocument.text = FileStore.contents(gotoFile);
+        FileStore.open(open);
+        var before = Parser.parseFile(gotoFile);
+        assertThat(Parser.parseFile(gotoFile), sameInstance(before));
+
+        var change = new DidChangeTextDocumentParams();
+        change.textDocument.uri = gotoFile.toUri();
+        change.textDocument.version = 2;
+        var event = new TextDocumentContentChangeEvent();
+        event.range = new Range(new Position(0, 0), new Position(0, 0));
+        event.text = "// edited\n";
+        change.contentChanges.add(event);
+        FileStore.change(change);
+        var after = Parser.parseFile(gotoFile);
+        assertThat(after, not(sameInstance(before)));
+        assertThat(after.contents, startsWith("// edited\n"));
+    }
+
+    @Test
+    public void dontCacheSuppliedContents() {
+        var cached = Parser.parseFile(gotoFile);
+        var pruned = new SourceFileObject(gotoFile, "class Goto { }", Instant.now());
+        assertThat(Parser.parseJavaFileObject(pruned).contents, equalTo("class Goto { }"));
+        assertThat(Parser.parseFile(gotoFile), sameInstance(cached));
+    }
+
+    @Test
+    public void parseConcurrentRequestsOnce() throws Exception {
+        // Give gotoFile new contents, so the first parse of it is a miss
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = gotoFile.toUri();
+        open.textDocument.version = 1;
+        open.textDocument.text = "// " + Instant.now() + "\n" + FileStore.contents(gotoFile);
+        FileStore.open(open);
+        var threads = Executors.newFixedThreadPool(4);
+        try {
+            var start = new CountDownLatch(1);
+            var parses = new ArrayList<Future<Parser>>();
+            for (var i = 0; i < 4; i++) {
+                parses.add(
+                        threads.submit(
+                                () -> {
+                                    start.await();
+                                    return Parser.parseFile(gotoFile);
+                                }));
+            }
+            start.countDown();
+            var first = parses.get(0).get();
+            for (var parse : parses) {
+                assertThat(parse.get(), sameInstance(first));
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReferenceIndexTest {
+    private Path dir, a, b, c;
+    private JavaCompilerService compiler;
+
+    @Before
+    public void createWorkspace() throws IOException {
+        SignatureStubs.setEnabled(false);
+        var root = Files.createTempDirectory("reference-index");
+        dir = Files.createDirectories(root.resolve("org/example"));
+        a = write("A.java", "package org.example;\n\npublic class A {\n    public int twice(int x) {\n        return 2 * x;\n    }\n}\n");
+        b = write("B.java", "package org.example;\n\nclass B {\n    int run() {\n        return new A().twice(1);\n    }\n}\n");
+        // C mentions `twice`, but doesn't refer to A.twice
+        c = write("C.java", "package org.example;\n\nclass C {\n    int twice() {\n        return 2;\n    }\n}\n");
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(root));
+        compiler = new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+    }
+
+    @After
+    public void restoreWorkspace() {
+        SignatureStubs.setEnabled(true);
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    private Path write(String fileName, String contents) throws IOException {
+        var file = dir.resolve(fileName);
+        var existed = Files.exists(file);
+        Files.writeString(file, contents);
+        if (existed) {
+            // Make sure the new version doesn't land in the same millisecond as the old one
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(1)));
+            FileStore.externalChange(file);
+        }
+        return file;
+    }
+
+    private void analyzeAll() {
+        compiler.compile(List.of(new SourceFileObject(a), new SourceFileObject(b), new SourceFileObject(c))).close();
+    }
+
+    @Test
+    public void textSearchBeforeIndexing() {
+        assertThat(compiler.findMemberReferences("org.example.A", "twice"), arrayContainingInAnyOrder(a, b, c));
+    }
+
+    @Test
+    public void lookUpIndexedFiles() {
+        analyzeAll();
+        assertThat(compiler.findMemberReferences("org.example.A", "twice"), arrayContainingInAnyOrder(a, b));
+        assertThat(compiler.findTypeReferences("org.example.A"), arrayContainingInAnyOrder(a, b));
+        assertThat(compiler.findMemberReferences("org.example.A", "A"), arrayContainingInAnyOrder(a, b));
+    }
+
+    @Test
+    public void searchChangedFilesAsText() throws IOException {
+        analyzeAll();
+        write("C.java", "package org.example;\n\nclass C {\n    int twice() {\n        return new A().twice(2);\n    }\n}\n");
+        assertThat(compiler.findMemberReferences("org.example.A", "twice"), arrayContainingInAnyOrder(a, b, c));
+    }
+
+    @Test
+    public void dontIndexFilesWithErrors() throws IOException {
+        write("C.java", "package org.example;\n\nclass C {\n    int twice() {\n        return new A().twice(missing);\n    }\n}\n");
+        analyzeAll();
+        assertThat(compiler.references.isFresh(b), equalTo(true));
+        assertThat(compiler.references.isFresh(c), equalTo(false));
+        assertThat(compiler.findMemberReferences("org.example.A", "twice"), arrayContainingInAnyOrder(a, b, c));
+    }
+
+    @Test
+    public void searchFilesWhoseDependenciesChanged() throws IOException {
+        var base =
+                write(
+                        "Base.java",
+                        "package org.example;\n\nclass Base {\n    static Sub make() {\n        return new Sub();\n    }\n\n"
+                                + "    int foo() {\n        return 1;\n    }\n}\n");
+        var sub = write("Sub.java", "package org.example;\n\nclass Sub extends Base {\n}\n");
+        // Caller never names Sub, but calls foo through it
+        var caller =
+                write("Caller.java", "package org.example;\n\nclass Caller {\n    int run() {\n        return Base.make().foo();\n    }\n}\n");
+        for (var f : List.of(base, sub, caller)) {
+            FileStore.externalCreate(f);
+        }
+        compiler.compile(List.of(new SourceFileObject(base), new SourceFileObject(sub), new SourceFileObject(caller))).close();
+        assertThat(compiler.references.isFresh(caller), equalTo(true));
+        assertThat(compiler.findMemberReferences("org.example.Sub", "foo"), not(hasItemInArray(caller)));
+
+        // Only Sub changes, but now Caller calls Sub#foo instead of Base#foo
+        write(
+                "Sub.java",
+                "package org.example;\n\nclass Sub extends Base {\n    @Override\n    int foo() {\n        return 2;\n    }\n}\n");
+        assertThat(compiler.references.isFresh(caller), equalTo(false));
+        assertThat(compiler.findMemberReferences("org.example.Sub", "foo"), hasItemInArray(caller));
+    }
+}
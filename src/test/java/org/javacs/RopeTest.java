@@ -0,0 +1,112 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RopeTest {
+    @Test
+    public void replaceMatchesStringBuilder() {
+        var random = new Random(1);
+        var expected = new StringBuilder();
+        for (var i = 0; i < 10_000; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        var rope = Rope.of(expected.toString());
+        for (var i = 0; i < 2_000; i++) {
+            var start = random.nextInt(expected.length() + 1);
+            var end = Math.min(expected.length(), start + random.nextInt(i % 100 == 0 ? 5_000 : 10));
+            var text = random.nextBoolean() ? "x" : "new\ntext " + i;
+            expected.replace(start, end, text);
+            rope = rope.replace(start, end, text);
+            assertThat(rope.length(), equalTo(expected.length()));
+        }
+        assertThat(rope.toString(), equalTo(expected.toString()));
+        assertThat(rope.newlines(), equalTo((int) expected.chars().filter(c -> c == '\n').count()));
+    }
+
+    @Test
+    public void lineStart() {
+        var rope = Rope.of("a\nbc\n\ndef");
+        assertThat(rope.lineStart(0), equalTo(0));
+        assertThat(rope.lineStart(1), equalTo(2));
+        assertThat(rope.lineStart(2), equalTo(5));
+        assertThat(rope.lineStart(3), equalTo(6));
+        assertThat(rope.lineStart(4), equalTo(9));
+    }
+
+    @Test
+    public void lineOf() {
+        var rope = Rope.of("a\nbc\n\ndef");
+        assertThat(rope.lineOf(0), equalTo(0));
+        assertThat(rope.lineOf(1), equalTo(0));
+        assertThat(rope.lineOf(2), equalTo(1));
+        assertThat(rope.lineOf(5), equalTo(2));
+        assertThat(rope.lineOf(8), equalTo(3));
+    }
+
+    @Test
+    public void linesAfterManyEdits() {
+        var text = new StringBuilder();
+        for (var i = 0; i < 5_000; i++) {
+            text.append("int x").append(i).append(" = ").append(i).append(";\n");
+        }
+        var rope = Rope.of(text.toString());
+        // Type a line at the top of the file, one character at a time
+        for (var c : "// comment\n".toCharArray()) {
+            var offset = rope.lineStart(0) + rope.length() - text.length();
+            rope = rope.replace(offset, offset, String.valueOf(c));
+        }
+        var expected = "// comment\n" + text;
+        assertThat(rope.toString(), equalTo(expected));
+        for (var line = 0; line <= rope.newlines(); line += 97) {
+            var offset = rope.lineStart(line);
+            assertThat(offset == 0 || expected.charAt(offset - 1) == '\n', equalTo(true));
+            assertThat(rope.lineOf(offset), equalTo(line));
+        }
+    }
+
+    @Test
+    public void carriageReturns() {
+        var rope = Rope.of("a\rbc\r\n\rdef\r");
+        assertThat(rope.newlines(), equalTo(4));
+        assertThat(rope.lineStart(1), equalTo(2));
+        assertThat(rope.lineStart(2), equalTo(6));
+        assertThat(rope.lineStart(3), equalTo(7));
+        assertThat(rope.lineStart(4), equalTo(11));
+        assertThat(rope.lineOf(4), equalTo(1));
+        // Between the \r and \n of a line break is still on the line it ends
+        assertThat(rope.lineOf(5), equalTo(1));
+        assertThat(rope.lineOf(6), equalTo(2));
+    }
+
+    @Test
+    public void lineEndingsAgreeWithLineIndex() {
+        var random = new Random(2);
+        var endings = new String[] {"\n", "\r", "\r\n"};
+        var expected = new StringBuilder();
+        for (var i = 0; i < 2_000; i++) {
+            expected.append("line ").append(i).append(endings[i % 3]);
+        }
+        var rope = Rope.of(expected.toString());
+        for (var i = 0; i < 2_000; i++) {
+            // Small edits, some of which join or split \r\n pairs, including across chunks
+            var start = random.nextInt(expected.length() + 1);
+            var end = Math.min(expected.length(), start + random.nextInt(3));
+            var text = random.nextInt(4) == 0 ? "" : endings[random.nextInt(3)];
+            expected.replace(start, end, text);
+            rope = rope.replace(start, end, text);
+        }
+        assertThat(rope.toString(), equalTo(expected.toString()));
+        var lines = LineIndex.of(expected);
+        assertThat(rope.newlines() + 1, equalTo(lines.lineCount()));
+        for (var line = 0; line < lines.lineCount(); line++) {
+            assertThat(rope.lineStart(line), equalTo(lines.offset(line, 0)));
+        }
+        for (var offset = 0; offset <= expected.length(); offset++) {
+            assertThat(rope.lineOf(offset), equalTo(lines.line(offset)));
+        }
+    }
+}
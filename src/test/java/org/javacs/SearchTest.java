@@ -6,10 +6,15 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import org.javacs.index.SymbolIndex;
 import org.javacs.lsp.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -91,4 +96,51 @@ public class SearchTest {
 
         assertThat("includes explicit constructor", all, hasItem("ReferenceConstructor"));
     }
+
+    private static Set<String> names(List<SymbolInformation> symbols) {
+        return symbols.stream().map(s -> s.name).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void reloadSavedIndex() throws IOException {
+        var indexFile = Files.createTempDirectory("symbol-index").resolve("symbols.idx");
+        var parsed = new AtomicInteger();
+        Function<Path, ParseTask> parser =
+                file -> {
+                    parsed.incrementAndGet();
+                    var parse = Parser.parseFile(file);
+                    return new ParseTask(parse.task, parse.root);
+                };
+        var index = new SymbolIndex(indexFile, parser);
+        index.updateInBackground();
+        assertThat(names(index.search("mStatic", Integer.MAX_VALUE)), hasItem("methodStatic"));
+        assertThat(parsed.get(), greaterThan(0));
+
+        // Nothing changed since the index was saved, so nothing is parsed again
+        parsed.set(0);
+        var reloaded = new SymbolIndex(indexFile, parser);
+        reloaded.updateInBackground();
+        assertThat(names(reloaded.search("mStatic", Integer.MAX_VALUE)), hasItem("methodStatic"));
+        assertThat(parsed.get(), equalTo(0));
+    }
+
+    @Test
+    public void searchEditedDocument() throws IOException {
+        var uri = FindResource.uri("/org/javacs/example/ReferenceConstructor.java");
+        var text = Files.readString(Paths.get(uri));
+        var end = text.lastIndexOf('}');
+        var document = new TextDocumentItem();
+        document.uri = uri;
+        document.text = text.substring(0, end) + "    void addedWhileEditing() {}\n" + text.substring(end);
+        server.didOpenTextDocument(new DidOpenTextDocumentParams(document));
+        try {
+            assertThat(searchWorkspace("aWhileEditing", Integer.MAX_VALUE), hasItem("addedWhileEditing"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = uri;
+            server.didCloseTextDocument(close);
+        }
+        // Closing the document goes back to the file on disk, which doesn't have the new method
+        assertThat(searchWorkspace("aWhileEditing", Integer.MAX_VALUE), not(hasItem("addedWhileEditing")));
+    }
 }
@@ -0,0 +1,149 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.sun.source.util.Trees;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.tools.Diagnostic;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignatureStubsTest {
+    private Path dir;
+    private JavaCompilerService compiler;
+
+    @Before
+    public void createWorkspace() throws IOException {
+        // Tests refresh the stubs themselves, so they don't race with the background thread
+        SignatureStubs.setEnabled(false);
+        var root = Files.createTempDirectory("signature-stubs");
+        dir = Files.createDirectories(root.resolve("org/example"));
+        write(
+                "A.java",
+                "package org.example;\n\npublic class A {\n    public int twice(int x) {\n        return 2 * x;\n    }\n}\n\nclass Helper {}\n");
+        write("B.java", "package org.example;\n\nclass B {\n    int run() {\n        new Helper();\n        return new A().twice(1);\n    }\n}\n");
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(root));
+        compiler = new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+    }
+
+    @After
+    public void restoreStubs() {
+        SignatureStubs.setEnabled(true);
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    private void write(String fileName, String contents) throws IOException {
+        var file = dir.resolve(fileName);
+        var existed = Files.exists(file);
+        Files.writeString(file, contents);
+        if (existed) {
+            // Make sure the new version doesn't land in the same millisecond as the old one
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(1)));
+            FileStore.externalChange(file);
+        }
+    }
+
+    private Set<String> stubNames() {
+        return compiler.stubs.list("org.example").stream().map(s -> s.binaryName).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void compileEveryClass() {
+        compiler.stubs.refresh();
+        assertThat(stubNames(), containsInAnyOrder("org.example.A", "org.example.Helper", "org.example.B"));
+    }
+
+    @Test
+    public void readDependencyFromStub() {
+        compiler.stubs.refresh();
+        try (var task = compiler.compile(dir.resolve("B.java"))) {
+            assertThat(errors(task), empty());
+            var a = task.task.getElements().getTypeElement("org.example.A");
+            assertThat(a, notNullValue());
+            // Classes that javac reads from a class file have no source tree
+            assertThat(Trees.instance(task.task).getPath(a), nullValue());
+        }
+    }
+
+    @Test
+    public void referencesThroughStubsGoStale() throws IOException {
+        compiler.stubs.refresh();
+        var b = dir.resolve("B.java");
+        compiler.compile(b).close();
+        assertThat(compiler.references.isFresh(b), equalTo(true));
+        // B was indexed against the stub of A, so it has to be searched again when A.java changes
+        write("A.java", "package org.example;\n\npublic class A {\n    public int twice(int x) {\n        return x + x;\n    }\n}\n\nclass Helper {}\n");
+        assertThat(compiler.references.isFresh(b), equalTo(false));
+    }
+
+    @Test
+    public void dropStaleStubs() throws IOException {
+        compiler.stubs.refresh();
+        write(
+                "A.java",
+                "package org.example;\n\npublic class A {\n    public int twice(int x) {\n        return 2 * x;\n    }\n    public int thrice(int x) {\n        return 3 * x;\n    }\n}\n");
+        assertThat(stubNames(), not(hasItem("org.example.A")));
+        // Helper used to be declared in A.java, so it's stale too
+        assertThat(stubNames(), not(hasItem("org.example.Helper")));
+        compiler.stubs.refresh();
+        assertThat(stubNames(), hasItem("org.example.A"));
+        assertThat(stubNames(), not(hasItem("org.example.Helper")));
+    }
+
+    @Test
+    public void compileNewFiles() throws IOException {
+        compiler.stubs.refresh();
+        assertThat(compiler.stubs.hasNewFiles("org.example"), equalTo(false));
+        write("C.java", "package org.example;\n\nclass C {}\n");
+        FileStore.externalCreate(dir.resolve("C.java"));
+        // No stub of org.example is stale, but listing it still has to schedule a refresh for C
+        assertThat(compiler.stubs.hasNewFiles("org.example"), equalTo(true));
+        compiler.stubs.refresh();
+        assertThat(compiler.stubs.hasNewFiles("org.example"), equalTo(false));
+        assertThat(stubNames(), hasItem("org.example.C"));
+    }
+
+    @Test
+    public void compileAroundBrokenDependency() throws IOException {
+        // B depends on Broken, so it can't be compiled until Broken is fixed, but A doesn't
+        write("B.java", "package org.example;\n\nclass B {\n    Broken broken;\n}\n");
+        write("Broken.java", "package org.example;\n\nclass Broken {\n    Missing missing;\n}\n");
+        FileStore.externalCreate(dir.resolve("Broken.java"));
+        compiler.stubs.refresh();
+        assertThat(stubNames(), containsInAnyOrder("org.example.A", "org.example.Helper"));
+        // B is waiting for another file to change, so listing the package doesn't compile it again and again
+        assertThat(compiler.stubs.hasNewFiles("org.example"), equalTo(false));
+
+        write("Broken.java", "package org.example;\n\nclass Broken {}\n");
+        compiler.stubs.refresh();
+        assertThat(stubNames(), hasItems("org.example.B", "org.example.Broken"));
+    }
+
+    @Test
+    public void fallBackToChangedSource() throws IOException {
+        compiler.stubs.refresh();
+        write("A.java", "package org.example;\n\npublic class A {\n    public int twice(int x) {\n        return 2 * x;\n    }\n    public int thrice(int x) {\n        return 3 * x;\n    }\n}\n\nclass Helper {}\n");
+        write("B.java", "package org.example;\n\nclass B {\n    int run() {\n        new Helper();\n        return new A().thrice(1);\n    }\n}\n");
+        try (var task = compiler.compile(dir.resolve("B.java"))) {
+            assertThat(errors(task), empty());
+        }
+    }
+
+    private static java.util.List<String> errors(CompileTask task) {
+        return task.diagnostics.stream()
+                .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                .map(d -> d.getMessage(null))
+                .collect(Collectors.toList());
+    }
+}
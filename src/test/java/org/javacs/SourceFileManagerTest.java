@@ -10,6 +10,7 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.logging.Logger;
 import javax.tools.*;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -85,5 +86,34 @@ public class SourceFileManagerTest {
         assertTrue(header.isPublic);
     }
 
+    private CharSequence listedContents(String packageName, String fileName) throws IOException {
+        var kinds = Set.of(JavaFileObject.Kind.SOURCE);
+        for (var f : sourceFileManager.list(StandardLocation.SOURCE_PATH, packageName, kinds, false)) {
+            if (f.getName().endsWith(fileName)) {
+                return f.getCharContent(true);
+            }
+        }
+        throw new RuntimeException(fileName + " is not in " + packageName);
+    }
+
+    @Test
+    public void eraseDependencies() throws IOException {
+        var contents = listedContents("com.example", "Signatures.java");
+        assertThat(contents.toString(), not(containsString("\"Foo\"")));
+        assertThat(contents.toString(), containsString("throw null;"));
+    }
+
+    @Test
+    public void dontEraseDependencies() throws IOException {
+        SourceFileManager.setEraseDependencies(false);
+        var contents = listedContents("com.example", "Signatures.java");
+        assertThat(contents.toString(), containsString("\"Foo\""));
+    }
+
+    @After
+    public void restoreErase() {
+        SourceFileManager.setEraseDependencies(true);
+    }
+
     private static final Logger LOG = Logger.getLogger("main");
 }
@@ -5,7 +5,15 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.javacs.lsp.CancelToken;
 import org.javacs.lsp.DidChangeTextDocumentParams;
 import org.javacs.lsp.DidCloseTextDocumentParams;
 import org.javacs.lsp.DidOpenTextDocumentParams;
@@ -131,4 +139,71 @@ public class StringSearchTest {
         assertTrue(StringSearch.matchesPartialName("foobar", "foo"));
         assertFalse(StringSearch.matchesPartialName("foo", "foobar"));
     }
+
+    @Test
+    public void searchPastFirstMegabyte() throws IOException {
+        var file = Files.createTempDirectory("string-search").resolve("Huge.java");
+        var text = new StringBuilder("package org.example;\n\nclass Huge {\n");
+        while (text.length() < 3 * 1024 * 1024) {
+            text.append("    // filler filler filler filler filler filler filler filler filler\n");
+        }
+        text.append("    int needle;\n}\n");
+        Files.writeString(file, text);
+        try {
+            assertTrue(StringSearch.containsWord(file, "needle"));
+            assertTrue(StringSearch.containsWordMatching(file, "needle"));
+            assertFalse(StringSearch.containsWord(file, "needles"));
+        } finally {
+            FileStore.externalDelete(file);
+        }
+    }
+
+    private static List<Path> numberedFiles(int count) {
+        var files = new ArrayList<Path>();
+        for (var i = 0; i < count; i++) {
+            files.add(Paths.get("F" + i + ".java"));
+        }
+        return files;
+    }
+
+    @Test
+    public void searchInParallel() {
+        var files = numberedFiles(1000);
+        var even = StringSearch.searchParallel(files, f -> files.indexOf(f) % 2 == 0, Integer.MAX_VALUE);
+        assertThat(even, hasSize(500));
+        assertThat(even.get(0), equalTo(files.get(0)));
+        assertThat(even.get(499), equalTo(files.get(998)));
+    }
+
+    @Test
+    public void stopSearchingAtLimit() {
+        var files = numberedFiles(1000);
+        var tested = new AtomicInteger();
+        var found =
+                StringSearch.searchParallel(
+                        files,
+                        f -> {
+                            tested.incrementAndGet();
+                            return true;
+                        },
+                        3);
+        assertThat(found, hasSize(3));
+        assertThat(tested.get(), lessThan(1000));
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelParallelSearch() throws Exception {
+        var cancel = new CancelToken();
+        cancel.cancel();
+        CancelToken.runAs(
+                cancel,
+                () ->
+                        StringSearch.searchParallel(
+                                numberedFiles(100),
+                                f -> {
+                                    CancelToken.checkCancelled();
+                                    return true;
+                                },
+                                Integer.MAX_VALUE));
+    }
 }
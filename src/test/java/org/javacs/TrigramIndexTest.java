@@ -0,0 +1,108 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrigramIndexTest {
+    private Path dir, a, b, c;
+    private List<Path> all;
+    private TrigramIndex index = new TrigramIndex();
+
+    @Before
+    public void createWorkspace() throws IOException {
+        var root = Files.createTempDirectory("trigram-index");
+        dir = Files.createDirectories(root.resolve("org/example"));
+        a = write("A.java", "package org.example;\n\npublic class A {\n    public int twice(int x) {\n        return 2 * x;\n    }\n}\n");
+        b = write("B.java", "package org.example;\n\nclass B {\n    int run() {\n        return new A().twice(1);\n    }\n}\n");
+        c = write("C.java", "package org.example;\n\nclass C {\n    int thrice() {\n        return 3;\n    }\n}\n");
+        all = List.of(a, b, c);
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(root));
+    }
+
+    @After
+    public void restoreWorkspace() {
+        FileStore.reset();
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    private Path write(String fileName, String contents) throws IOException {
+        var file = dir.resolve(fileName);
+        var existed = Files.exists(file);
+        Files.writeString(file, contents);
+        if (existed) {
+            // Make sure the new version doesn't land in the same millisecond as the old one
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(1)));
+            FileStore.externalChange(file);
+        }
+        return file;
+    }
+
+    @Test
+    public void findFilesWithEveryTrigram() {
+        assertThat(index.candidates(all, "twice"), contains(a, b));
+        assertThat(index.candidates(all, "thrice"), contains(c));
+        // "wicet" shares wic and ice with "twice", but no file contains cet
+        assertThat(index.candidates(all, "wicet"), empty());
+        assertThat(index.mayContain(b, "twice"), equalTo(true));
+        assertThat(index.mayContain(c, "twice"), equalTo(false));
+    }
+
+    @Test
+    public void shortQueriesMatchEverything() {
+        assertThat(index.candidates(all, "tw"), contains(a, b, c));
+        assertThat(index.mayContain(c, "x"), equalTo(true));
+    }
+
+    @Test
+    public void reindexChangedFiles() throws IOException {
+        assertThat(index.candidates(all, "twice"), contains(a, b));
+        write("C.java", "package org.example;\n\nclass C {\n    int thrice() {\n        return new A().twice(3);\n    }\n}\n");
+        write("B.java", "package org.example;\n\nclass B {\n    int run() {\n        return 2;\n    }\n}\n");
+        assertThat(index.candidates(all, "twice"), contains(a, c));
+        assertThat(index.size(), equalTo(3));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        index.candidates(all, "twice");
+        var file = Files.createTempDirectory("trigram-index-cache").resolve("trigrams.idx");
+        index.save(file);
+        var loaded = new TrigramIndex();
+        loaded.load(file);
+        assertThat(loaded.size(), equalTo(3));
+        assertThat(loaded.mayContain(c, "thrice"), equalTo(true));
+        Files.delete(a);
+        // Until FileStore hears that A was deleted, its saved entry is still trusted
+        assertThat(loaded.candidates(all, "twice"), contains(a, b));
+        FileStore.externalDelete(a);
+        assertThat(loaded.candidates(all, "twice"), contains(b));
+        assertThat(loaded.mayContain(a, "twice"), equalTo(false));
+        assertThat(loaded.size(), equalTo(2));
+    }
+
+    @Test
+    public void compactIds() throws IOException {
+        index.candidates(all, "twice");
+        for (var i = 0; i < 10; i++) {
+            write("C.java", "package org.example;\n\nclass C {\n    int thrice() {\n        return " + i + ";\n    }\n}\n");
+            index.candidates(all, "thrice");
+        }
+        // Every re-index leaves a dead id behind, until there are more dead ids than files
+        assertThat(index.ids(), lessThanOrEqualTo(2 * all.size()));
+        assertThat(index.candidates(all, "twice"), contains(a, b));
+        assertThat(index.candidates(all, "return 9"), contains(c));
+        assertThat(index.candidates(all, "return 8"), empty());
+    }
+}
@@ -0,0 +1,79 @@
+package org.javacs.lsp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkFraming {
+    @State(Scope.Thread)
+    public static class Messages {
+        @Param({"small", "large"})
+        public String size;
+
+        public byte[] stream;
+        public int count = 100;
+        public PublishDiagnosticsParams diagnostics;
+        public FrameWriter sink = new FrameWriter(OutputStream.nullOutputStream());
+
+        @Setup(Level.Trial)
+        public void setup() {
+            String body;
+            if (size.equals("small")) {
+                body =
+                        "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":{\"uri\":\"file:///workspace/src/main/java/org/example/Example.java\",\"version\":42},\"contentChanges\":[{\"range\":{\"start\":{\"line\":10,\"character\":4},\"end\":{\"line\":10,\"character\":4}},\"text\":\"a\"}]}}";
+                diagnostics = diagnostics(1);
+            } else {
+                diagnostics = diagnostics(1000);
+                body = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\",\"params\":" + LSP.toJson(diagnostics) + "}";
+            }
+            var bytes = body.getBytes(StandardCharsets.UTF_8);
+            var out = new ByteArrayOutputStream();
+            for (var i = 0; i < count; i++) {
+                out.writeBytes(String.format("Content-Length: %d\r\n\r\n", bytes.length).getBytes(StandardCharsets.UTF_8));
+                out.writeBytes(bytes);
+            }
+            stream = out.toByteArray();
+        }
+
+        private static PublishDiagnosticsParams diagnostics(int n) {
+            var list = new ArrayList<Diagnostic>();
+            for (var i = 0; i < n; i++) {
+                var d = new Diagnostic();
+                d.range = new Range(new Position(i, 4), new Position(i, 20));
+                d.severity = DiagnosticSeverity.Error;
+                d.code = "compiler.err.cant.resolve.location";
+                d.message = "cannot find symbol\n  symbol:   variable foo" + i + "\n  location: class Example";
+                list.add(d);
+            }
+            return new PublishDiagnosticsParams(java.net.URI.create("file:///workspace/Example.java"), list);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public int read(Messages messages) {
+        // System.in is a BufferedInputStream, so the reader sees the same per-call overhead here
+        var in = new FrameReader(new BufferedInputStream(new ByteArrayInputStream(messages.stream)));
+        var total = 0;
+        for (var i = 0; i < messages.count; i++) {
+            total += in.nextToken().length();
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void write(Messages messages) {
+        for (var i = 0; i < messages.count; i++) {
+            LSP.respond(messages.sink, i, messages.diagnostics);
+        }
+    }
+}
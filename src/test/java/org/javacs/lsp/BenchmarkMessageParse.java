@@ -0,0 +1,76 @@
+package org.javacs.lsp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkMessageParse {
+    @State(Scope.Thread)
+    public static class Messages {
+        @Param({"small", "large"})
+        public String size;
+
+        public byte[] stream;
+        public int count = 10;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            String body;
+            if (size.equals("small")) {
+                body =
+                        "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":{\"uri\":\"file:///workspace/src/main/java/org/example/Example.java\",\"version\":42},\"contentChanges\":[{\"range\":{\"start\":{\"line\":10,\"character\":4},\"end\":{\"line\":10,\"character\":4}},\"text\":\"a\"}]}}";
+            } else {
+                // A generated source file of about 2 MB
+                var text = new StringBuilder("package org.example;\n\nclass Generated {\n");
+                for (var i = 0; i < 40_000; i++) {
+                    text.append("    static final String FIELD_").append(i).append(" = \"value\\t").append(i).append("\";\n");
+                }
+                text.append("}\n");
+                var params = new DidOpenTextDocumentParams();
+                params.textDocument.uri = URI.create("file:///workspace/src/main/java/org/example/Generated.java");
+                params.textDocument.languageId = "java";
+                params.textDocument.text = text.toString();
+                body = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":" + LSP.toJson(params) + "}";
+            }
+            var bytes = body.getBytes(StandardCharsets.UTF_8);
+            var out = new ByteArrayOutputStream();
+            for (var i = 0; i < count; i++) {
+                out.writeBytes(String.format("Content-Length: %d\r\n\r\n", bytes.length).getBytes(StandardCharsets.UTF_8));
+                out.writeBytes(bytes);
+            }
+            stream = out.toByteArray();
+        }
+
+        FrameReader frames() {
+            return new FrameReader(new BufferedInputStream(new ByteArrayInputStream(stream)));
+        }
+    }
+
+    /** Decode the body as a String, then as a JsonElement tree, then bind the tree to the params class */
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void tree(Messages messages) {
+        var frames = messages.frames();
+        for (var i = 0; i < messages.count; i++) {
+            var message = LSP.parseMessage(frames.nextToken());
+            var type = message.method.equals("textDocument/didOpen") ? DidOpenTextDocumentParams.class : DidChangeTextDocumentParams.class;
+            LSP.gson.fromJson(message.params, type);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void streaming(Messages messages) {
+        var frames = messages.frames();
+        for (var i = 0; i < messages.count; i++) {
+            LSP.readMessage(frames);
+        }
+    }
+}
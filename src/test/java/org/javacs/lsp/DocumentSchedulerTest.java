@@ -0,0 +1,57 @@
+package org.javacs.lsp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class DocumentSchedulerTest {
+    DocumentScheduler scheduler = new DocumentScheduler(2);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void releaseClosedDocument() throws Exception {
+        var finishHover = new CountDownLatch(1);
+        var closed = new CountDownLatch(1);
+        scheduler.submit("file:///A.java", true, () -> awaitQuietly(finishHover));
+        scheduler.submit("file:///A.java", false, closed::countDown);
+        scheduler.release("file:///A.java");
+        // The lane is kept while the hover and the close are still waiting
+        assertThat(scheduler.size(), equalTo(1));
+        finishHover.countDown();
+        assertThat(closed.await(10, TimeUnit.SECONDS), equalTo(true));
+        scheduler.awaitAll();
+        for (var i = 0; i < 100 && scheduler.size() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(scheduler.size(), equalTo(0));
+    }
+
+    @Test
+    public void keepReopenedDocument() throws Exception {
+        var finishClose = new CountDownLatch(1);
+        var reopened = new CountDownLatch(1);
+        scheduler.submit("file:///A.java", false, () -> awaitQuietly(finishClose));
+        scheduler.release("file:///A.java");
+        scheduler.submit("file:///A.java", false, () -> awaitQuietly(reopened));
+        finishClose.countDown();
+        Thread.sleep(100);
+        assertThat("The document was used again before its lane was released", scheduler.size(), equalTo(1));
+        reopened.countDown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
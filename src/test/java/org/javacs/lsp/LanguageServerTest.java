@@ -3,10 +3,14 @@ package org.javacs.lsp;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import com.google.gson.JsonParser;
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -19,9 +23,18 @@ public class LanguageServerTest {
     PipedInputStream clientToServer = new PipedInputStream(10 * 1024 * 1024),
             serverToClient = new PipedInputStream(10 * 1024 * 1024);
     PipedOutputStream writeClientToServer, writeServerToClient;
+    FrameReader fromServer = new FrameReader(serverToClient);
     LanguageServer mockServer;
     Thread main;
     CompletableFuture<Void> receivedInitialize = new CompletableFuture<>();
+    CompletableFuture<Void> receivedChange = new CompletableFuture<>();
+    /** Hovers over slow.java don't finish until this is released */
+    CountDownLatch finishSlowHover = new CountDownLatch(1);
+    /** If set, async work acts like linting while the class path is inferred, and doesn't finish until released */
+    volatile boolean slowAsyncWork;
+
+    CompletableFuture<Void> startedAsyncWork = new CompletableFuture<>();
+    CountDownLatch finishAsyncWork = new CountDownLatch(1);
 
     class TestLanguageServer extends LanguageServer {
         @Override
@@ -29,6 +42,50 @@ public class LanguageServerTest {
             receivedInitialize.complete(null);
             return new InitializeResult();
         }
+
+        @Override
+        public Optional<Hover> hover(TextDocumentPositionParams params) {
+            if (params.textDocument.uri.getPath().endsWith("endless.java")) {
+                while (true) {
+                    CancelToken.checkCancelled();
+                    Thread.onSpinWait();
+                }
+            }
+            if (params.textDocument.uri.getPath().endsWith("slow.java")) {
+                try {
+                    finishSlowHover.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<CompletionList> completion(TextDocumentPositionParams params) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void didChangeTextDocument(DidChangeTextDocumentParams params) {
+            receivedChange.complete(null);
+        }
+
+        @Override
+        public List<FoldingRange> foldingRange(FoldingRangeParams params) {
+            return List.of();
+        }
+
+        @Override
+        public void doAsyncWork() {
+            if (!slowAsyncWork) return;
+            startedAsyncWork.complete(null);
+            try {
+                finishAsyncWork.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     static {
@@ -66,6 +123,38 @@ public class LanguageServerTest {
         writeClientToServer.write(message.getBytes());
     }
 
+    private String hoverMessage(int id, String file) {
+        return String.format(
+                "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/hover\",\"params\":{\"textDocument\":{\"uri\":\"file:///%s\"},\"position\":{\"line\":0,\"character\":0}}}",
+                id, file);
+    }
+
+    private String completionMessage(int id, String file) {
+        return String.format(
+                "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/completion\",\"params\":{\"textDocument\":{\"uri\":\"file:///%s\"},\"position\":{\"line\":0,\"character\":0}}}",
+                id, file);
+    }
+
+    private String changeMessage(String file) {
+        return String.format(
+                "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":{\"uri\":\"file:///%s\",\"version\":2},\"contentChanges\":[]}}",
+                file);
+    }
+
+    private String foldingRangeMessage(int id, String file) {
+        return String.format(
+                "{\"jsonrpc\":\"2.0\",\"id\":%d,\"method\":\"textDocument/foldingRange\",\"params\":{\"textDocument\":{\"uri\":\"file:///%s\"}}}",
+                id, file);
+    }
+
+    private Message receiveFromServer() {
+        return LSP.parseMessage(fromServer.nextToken());
+    }
+
+    private String cancelMessage(int id) {
+        return String.format("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":%d}}", id);
+    }
+
     String initializeMessage = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{}}";
     String exitMessage = "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}";
 
@@ -94,4 +183,83 @@ public class LanguageServerTest {
         main.join(10_000);
         assertThat("Main thread has quit", main.isAlive(), equalTo(false));
     }
+
+    @Test
+    public void slowRequestDoesNotBlockOtherDocuments() throws Exception {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(1));
+        // Hover over slow.java blocks, but hover over fast.java still gets a response
+        sendToServer(hoverMessage(2, "slow.java"));
+        sendToServer(hoverMessage(3, "fast.java"));
+        assertThat(receiveFromServer().id, equalTo(3));
+        finishSlowHover.countDown();
+        assertThat(receiveFromServer().id, equalTo(2));
+    }
+
+    @Test
+    public void completeWhileReadingTheSameDocument() throws Exception {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(1));
+        // Completion only reads slow.java, so it doesn't wait for the slow hover
+        sendToServer(hoverMessage(2, "slow.java"));
+        sendToServer(completionMessage(3, "slow.java"));
+        var response = CompletableFuture.supplyAsync(this::receiveFromServer);
+        assertThat(response.get(10, TimeUnit.SECONDS).id, equalTo(3));
+        finishSlowHover.countDown();
+        assertThat(receiveFromServer().id, equalTo(2));
+    }
+
+    @Test
+    public void editsWaitForRequestsOnTheSameDocument() throws Exception {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(1));
+        sendToServer(hoverMessage(2, "slow.java"));
+        sendToServer(changeMessage("slow.java"));
+        Thread.sleep(500);
+        assertThat("didChange waits for hover to finish", receivedChange.isDone(), equalTo(false));
+        finishSlowHover.countDown();
+        receivedChange.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(2));
+    }
+
+    @Test
+    public void cancelRunningRequest() throws Exception {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(1));
+        sendToServer(hoverMessage(2, "endless.java"));
+        sendToServer(cancelMessage(2));
+        var response = JsonParser.parseString(fromServer.nextToken()).getAsJsonObject();
+        assertThat(response.get("id").getAsInt(), equalTo(2));
+        assertThat(response.getAsJsonObject("error").get("code").getAsInt(), equalTo(ErrorCodes.RequestCancelled));
+    }
+
+    @Test
+    public void ignoreResponsesFromClient() throws Exception {
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(1));
+        // The client's reply to client/registerCapability has an id but no method
+        sendToServer("{\"jsonrpc\":\"2.0\",\"id\":\"123\",\"result\":null}");
+        sendToServer(hoverMessage(2, "fast.java"));
+        assertThat(receiveFromServer().id, equalTo(2));
+        assertThat("Main thread is still running", main.isAlive(), equalTo(true));
+    }
+
+    @Test
+    public void answerRequestsDuringAsyncWork() throws Exception {
+        slowAsyncWork = true;
+        sendToServer(initializeMessage);
+        receivedInitialize.get(10, TimeUnit.SECONDS);
+        assertThat(receiveFromServer().id, equalTo(1));
+        // Once the server is idle, it starts async work, which is stuck waiting for the class path
+        startedAsyncWork.get(10, TimeUnit.SECONDS);
+        sendToServer(foldingRangeMessage(2, "fast.java"));
+        var response = CompletableFuture.supplyAsync(this::receiveFromServer);
+        assertThat(response.get(10, TimeUnit.SECONDS).id, equalTo(2));
+        finishAsyncWork.countDown();
+    }
 }
@@ -8,6 +8,7 @@ import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import org.junit.After;
@@ -45,14 +46,14 @@ public class LspTest {
 
     @Test
     public void writeResponse() {
-        LSP.respond(writer, 1, 2);
+        LSP.respond(new FrameWriter(writer), 1, 2);
         var expected = "Content-Length: 35\r\n\r\n{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":2}";
         assertThat(bufferToString(), equalTo(expected));
     }
 
     @Test
     public void writeError() {
-        LSP.error(writer, 1, new ResponseError(-100, "something went wrong", null));
+        LSP.error(new FrameWriter(writer), 1, new ResponseError(-100, "something went wrong", null));
         var expected =
                 "Content-Length: 79\r\n\r\n{\"jsonrpc\":\"2.0\",\"id\":1,\"error\":{\"code\":-100,\"message\":\"something went wrong\"}}";
         assertThat(bufferToString(), equalTo(expected));
@@ -60,21 +61,21 @@ public class LspTest {
 
     @Test
     public void writeMultibyteCharacters() {
-        LSP.respond(writer, 1, "🔥");
+        LSP.respond(new FrameWriter(writer), 1, "🔥");
         var expected = "Content-Length: 40\r\n\r\n{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":\"🔥\"}";
         assertThat(bufferToString(), equalTo(expected));
     }
 
     @Test
     public void writeOptional() {
-        LSP.respond(writer, 1, Optional.of(1));
+        LSP.respond(new FrameWriter(writer), 1, Optional.of(1));
         var expected = "Content-Length: 35\r\n\r\n{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":1}";
         assertThat(bufferToString(), equalTo(expected));
     }
 
     @Test
     public void writeEmpty() {
-        LSP.respond(writer, 1, Optional.empty());
+        LSP.respond(new FrameWriter(writer), 1, Optional.empty());
         var expected = "Content-Length: 38\r\n\r\n{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":null}";
         assertThat(bufferToString(), equalTo(expected));
     }
@@ -86,7 +87,7 @@ public class LspTest {
         writer.write(header.getBytes());
         writer.write(message.getBytes());
 
-        var token = LSP.nextToken(buffer);
+        var token = new FrameReader(buffer).nextToken();
         assertThat(token, equalTo(message));
 
         var parse = LSP.parseMessage(token);
@@ -107,7 +108,7 @@ public class LspTest {
         writer.write(header.getBytes());
         writer.write(message.getBytes());
 
-        var token = LSP.nextToken(buffer);
+        var token = new FrameReader(buffer).nextToken();
         assertThat(token, equalTo(message));
 
         var parse = LSP.parseMessage(token);
@@ -117,6 +118,75 @@ public class LspTest {
         assertThat(parse.params, equalTo(gson.toJsonTree(params)));
     }
 
+    private void writeMessage(String message) throws IOException {
+        var bytes = message.getBytes(StandardCharsets.UTF_8);
+        writer.write(String.format("Content-Length: %d\r\n\r\n", bytes.length).getBytes());
+        writer.write(bytes);
+    }
+
+    @Test
+    public void readMessageBindsParams() throws IOException {
+        writeMessage(
+                "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":{\"textDocument\":{\"uri\":\"file:///Foo.java\"},\"position\":{\"line\":3,\"character\":4}}}");
+
+        var parse = LSP.readMessage(new FrameReader(buffer));
+        assertThat(parse.id, equalTo(2));
+        assertThat(parse.method, equalTo("textDocument/hover"));
+        assertThat(parse.params, nullValue());
+        assertThat(parse.bound, instanceOf(TextDocumentPositionParams.class));
+        var params = (TextDocumentPositionParams) parse.bound;
+        assertThat(params.textDocument.uri.toString(), equalTo("file:///Foo.java"));
+        assertThat(params.position.line, equalTo(3));
+        assertThat(params.position.character, equalTo(4));
+    }
+
+    @Test
+    public void readMessageWithParamsBeforeMethod() throws IOException {
+        writeMessage("{\"params\":{\"id\":7},\"method\":\"$/cancelRequest\",\"jsonrpc\":\"2.0\"}");
+
+        var parse = LSP.readMessage(new FrameReader(buffer));
+        assertThat(parse.id, nullValue());
+        assertThat(parse.method, equalTo("$/cancelRequest"));
+        assertThat(parse.bound, instanceOf(CancelParams.class));
+        assertThat(((CancelParams) parse.bound).id, equalTo(7));
+    }
+
+    @Test
+    public void readMessageWithUnknownMethod() throws IOException {
+        writeMessage("{\"jsonrpc\":\"2.0\",\"id\":null,\"method\":\"custom/thing\",\"params\":{\"a\":[1,2]},\"extra\":{}}");
+
+        var parse = LSP.readMessage(new FrameReader(buffer));
+        assertThat(parse.id, nullValue());
+        assertThat(parse.bound, nullValue());
+        assertThat(parse.params, equalTo(gson.fromJson("{\"a\":[1,2]}", JsonObject.class)));
+    }
+
+    @Test
+    public void readMessageWithMultibyteText() throws IOException {
+        var text = "class Fire { String s = \"🔥 héllo 世界\"; }";
+        var params = new DidOpenTextDocumentParams();
+        params.textDocument.uri = java.net.URI.create("file:///Fire.java");
+        params.textDocument.text = text;
+        writeMessage("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":" + gson.toJson(params) + "}");
+        // Malformed UTF-8 is replaced the same way new String(bytes, UTF_8) would replace it
+        var malformed = new byte[] {'"', (byte) 0xE4, (byte) 0xB8, '"'};
+        var body = new byte[] {'{', '"', 'x', '"', ':'};
+        writer.write(String.format("Content-Length: %d\r\n\r\n", body.length + malformed.length + 1).getBytes());
+        writer.write(body);
+        writer.write(malformed);
+        writer.write('}');
+
+        var frames = new FrameReader(buffer);
+        var parse = LSP.readMessage(frames);
+        assertThat(((DidOpenTextDocumentParams) parse.bound).textDocument.text, equalTo(text));
+        var bad = LSP.readMessage(frames);
+        assertThat(bad.method, nullValue());
+        var expected = new String(frames.body(), 0, frames.bodyLength(), StandardCharsets.UTF_8);
+        var decoded = new StringWriter();
+        frames.bodyReader().transferTo(decoded);
+        assertThat(decoded.toString(), equalTo(expected));
+    }
+
     @Test
     public void excludeDefaults() {
         var item = new CompletionItem();